@@ -0,0 +1,108 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one background thread shared by every {@link SMTPAppender} in the JVM
+ * for its housekeeping, such as closing idle SMTP connections.  Having one
+ * thread, rather than a timer per appender, keeps the overhead flat no matter
+ * how many appenders there are.
+ * <p/>
+ * Tasks run one at a time, so they must be short, and must never wait on an
+ * SMTP server for long; anything slow belongs on a sender thread.
+ */
+public final class AppenderScheduler
+{
+    private static final ScheduledThreadPoolExecutor EXECUTOR;
+    /**
+     * The thread running the tasks, replaced by the executor if it dies.
+     */
+    private static volatile Thread thread;
+
+    static
+    {
+        EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable ->
+        {
+            final Thread created = new Thread(runnable,
+                "au-log4j scheduler");
+            created.setDaemon(true);
+            thread = created;
+            return created;
+        });
+        // cancelled tasks should not pile up until their delay expires
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private AppenderScheduler()
+    {
+    }
+
+    /**
+     * @return the shared scheduler.
+     */
+    public static ScheduledExecutorService get()
+    {
+        return EXECUTOR;
+    }
+
+    /**
+     * @return whether this is the scheduler thread, which must not be made to
+     *         wait.
+     */
+    public static boolean isCurrentThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task repeatedly, swallowing and reporting any exception it throws
+     * so that it keeps being run.
+     *
+     * @param task         the task to run
+     * @param periodMillis the delay between the end of one run and the start
+     *                     of the next.
+     *
+     * @return the future, which is cancelled to stop the task.
+     */
+    public static ScheduledFuture<?> scheduleWithFixedDelay(
+        final Runnable task, final long periodMillis)
+    {
+        return EXECUTOR.scheduleWithFixedDelay(guard(task), periodMillis,
+            periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task once, after a delay.
+     *
+     * @param task        the task to run
+     * @param delayMillis how long to wait before running it.
+     *
+     * @return the future, which is cancelled to stop the task.
+     */
+    public static ScheduledFuture<?> schedule(final Runnable task,
+        final long delayMillis)
+    {
+        return EXECUTOR.schedule(guard(task), delayMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private static Runnable guard(final Runnable task)
+    {
+        return () ->
+        {
+            try
+            {
+                task.run();
+            }
+            catch (final RuntimeException e)
+            {
+                LogLog.error("Scheduled au-log4j task failed", e);
+            }
+        };
+    }
+}
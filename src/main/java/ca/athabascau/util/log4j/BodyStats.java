@@ -0,0 +1,94 @@
+package ca.athabascau.util.log4j;
+
+/**
+ * What is needed to choose the transfer encoding of an email body, gathered
+ * as the body is put together from pieces whose statistics are mostly known
+ * already, as those of each {@link RenderedBuffer.Entry} are worked out when
+ * the event is accepted.  The body itself is then never scanned again.
+ */
+final class BodyStats
+{
+    private int nonAscii;
+    private int longestLine;
+    /**
+     * The length of the last line, which the next piece carries on.
+     */
+    private int openLine;
+
+    /**
+     * Adds a piece of the body, whose statistics are already known.
+     *
+     * @param length      the bytes in the piece
+     * @param nonAscii    the bytes which are not US-ASCII
+     * @param firstLine   the bytes before the first line feed, or the length
+     *                    if there is none
+     * @param longestLine the bytes in the longest line
+     * @param lastLine    the bytes after the last line feed, or the length if
+     *                    there is none.
+     */
+    void add(final int length, final int nonAscii, final int firstLine,
+        final int longestLine, final int lastLine)
+    {
+        this.nonAscii += nonAscii;
+        if (firstLine < length)
+        {   // the open line ends within the piece
+            this.longestLine = Math.max(this.longestLine,
+                Math.max(openLine + firstLine, longestLine));
+            openLine = lastLine;
+        }
+        else
+        {
+            openLine += length;
+            this.longestLine = Math.max(this.longestLine, openLine);
+        }
+    }
+
+    /**
+     * Adds a piece of the body, working out its statistics.
+     *
+     * @param bytes  the piece
+     * @param length the bytes to add from the start of the array.
+     */
+    void add(final byte[] bytes, final int length)
+    {
+        int pieceNonAscii = 0;
+        int firstLine = -1;
+        int longest = 0;
+        int lineStart = 0;
+        for (int index = 0; index < length; index++)
+        {
+            if (bytes[index] < 0)
+            {
+                pieceNonAscii++;
+            }
+            else if (bytes[index] == '\n')
+            {
+                if (firstLine < 0)
+                {
+                    firstLine = index;
+                }
+                longest = Math.max(longest, index - lineStart);
+                lineStart = index + 1;
+            }
+        }
+        longest = Math.max(longest, length - lineStart);
+        add(length, pieceNonAscii, firstLine < 0 ? length : firstLine,
+            longest, length - lineStart);
+    }
+
+    /**
+     * @return the bytes which are not US-ASCII.
+     */
+    int getNonAscii()
+    {
+        return nonAscii;
+    }
+
+    /**
+     * @return the bytes in the longest line, line feed excluded.
+     */
+    int getLongestLine()
+    {
+        return longestLine;
+    }
+}
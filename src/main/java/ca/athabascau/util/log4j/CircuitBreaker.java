@@ -0,0 +1,216 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Stops an {@link SMTPAppender} from trying an SMTP server which keeps
+ * failing, so that each email does not wait out the connect timeout in turn,
+ * and reports the failures without a stack trace for each.
+ * <p/>
+ * The breaker is closed, letting every email through, until the threshold of
+ * failures in a row is reached.  It is then open for the open interval, and
+ * emails fail straight away.  After that it is half open: the next email is
+ * let through as a probe, and while it is being sent the others still fail
+ * straight away.  If the probe is sent, the breaker closes; if it fails, it
+ * opens for another interval.  Only failures of the server count, not emails
+ * it refuses for their addresses.
+ * <p/>
+ * The first failure is reported with its stack trace; those in the minute
+ * after it, including the emails failed by the open breaker, are reported
+ * together at the end of the minute, with the last of their messages.  A
+ * minute without failures starts afresh.
+ */
+public class CircuitBreaker
+{
+    /**
+     * The default number of failures in a row which open the breaker.
+     */
+    public static final int DEFAULT_THRESHOLD = 5;
+    /**
+     * The default milliseconds the breaker stays open before a probe.
+     */
+    public static final long DEFAULT_OPEN_INTERVAL = 30000;
+    /**
+     * The milliseconds over which failures are reported together.
+     */
+    static final long REPORT_INTERVAL = 60000;
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int threshold;
+    private final long openInterval;
+    private State state = State.CLOSED;
+    private int failuresInARow;
+    private long openUntil;
+    private boolean probing;
+    /**
+     * The failures since the last report, and the last of them, while a
+     * report is scheduled.
+     */
+    private int unreported;
+    private String lastFailure;
+    private ScheduledFuture<?> report;
+
+    /**
+     * @param name         identifies the appender in diagnostics
+     * @param threshold    the failures in a row which open the breaker, 0 to
+     *                     never open it, only limiting the reports
+     * @param openInterval the milliseconds the breaker stays open before a
+     *                     probe.
+     */
+    public CircuitBreaker(final String name, final int threshold,
+        final long openInterval)
+    {
+        this.name = name;
+        this.threshold = threshold;
+        this.openInterval = openInterval;
+    }
+
+    /**
+     * Asks whether to try sending an email.  An email allowed through must be
+     * followed by a call to {@link #success()} or {@link #failure()}.
+     *
+     * @return false if the email should fail straight away.
+     */
+    public synchronized boolean allow()
+    {
+        if (state == State.OPEN &&
+            System.currentTimeMillis() >= openUntil)
+        {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.CLOSED)
+        {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probing)
+        {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that an email was sent.
+     */
+    public synchronized void success()
+    {
+        if (state != State.CLOSED)
+        {
+            LogLog.warn("SMTP server for appender [" + name + "] is " +
+                "answering again, emails are being sent");
+        }
+        state = State.CLOSED;
+        probing = false;
+        failuresInARow = 0;
+    }
+
+    /**
+     * Records that the server failed to take an email.
+     */
+    public synchronized void failure()
+    {
+        failuresInARow++;
+        probing = false;
+        if (state == State.HALF_OPEN ||
+            state == State.CLOSED && threshold > 0 &&
+            failuresInARow >= threshold)
+        {
+            if (state == State.CLOSED)
+            {
+                LogLog.warn("SMTP server for appender [" + name + "] " +
+                    "failed " + failuresInARow + " times in a row, emails " +
+                    "will fail straight away for " + openInterval + "ms at " +
+                    "a time until it answers");
+            }
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openInterval;
+        }
+    }
+
+    /**
+     * Reports an email which was not sent, with its stack trace only if it
+     * is the first for a minute.
+     *
+     * @param message what failed
+     * @param e       why.
+     */
+    public synchronized void report(final String message, final Exception e)
+    {
+        if (report == null)
+        {
+            LogLog.error(message, e);
+            report = AppenderScheduler.schedule(this::summarize,
+                REPORT_INTERVAL);
+        }
+        else
+        {
+            unreported++;
+            lastFailure = String.valueOf(e);
+        }
+    }
+
+    /**
+     * @return the state the breaker is in.
+     */
+    public synchronized State getState()
+    {
+        if (state == State.OPEN &&
+            System.currentTimeMillis() >= openUntil)
+        {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Reports any failures not yet reported, and stops reporting.
+     */
+    public synchronized void close()
+    {
+        if (report != null)
+        {
+            report.cancel(false);
+            report = null;
+        }
+        summarize();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "CircuitBreaker{" +
+            "name='" + name + '\'' +
+            ", state=" + state +
+            ", failuresInARow=" + failuresInARow +
+            '}';
+    }
+
+    private synchronized void summarize()
+    {
+        if (unreported == 0)
+        {   // a quiet minute, the next failure gets its trace
+            report = null;
+            return;
+        }
+        LogLog.error(unreported + " sends failed in the last minute for " +
+            "appender [" + name + "], the last with: " + lastFailure);
+        unreported = 0;
+        lastFailure = null;
+        if (report != null)
+        {
+            report = AppenderScheduler.schedule(this::summarize,
+                REPORT_INTERVAL);
+        }
+    }
+}
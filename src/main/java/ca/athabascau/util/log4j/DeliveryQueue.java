@@ -0,0 +1,631 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.FilterType;
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A bounded queue of {@link OutboundMessage}s, drained by dedicated sender
+ * threads, so that a slow or unreachable SMTP server never holds up the
+ * threads doing the logging.  With more than one sender thread, the emails a
+ * buffer is split into are delivered in parallel.
+ * <p/>
+ * What happens to a message offered when the queue is full is decided by
+ * the {@link Overflow} policy.  By default the message is dropped, so {@link
+ * #offer(OutboundMessage)} never blocks, as blocking would defeat the
+ * purpose; what each policy discards is counted.  The first email dropped is
+ * reported straight away, and those in the minute after it together, like
+ * the failures reported by {@link CircuitBreaker}.
+ * <p/>
+ * Messages wait in a lane for their {@link FilterType#getRank() priority},
+ * each holding up to the capacity, and the sender threads take them from the
+ * most urgent lane first, so a flood of ordinary errors never delays an
+ * urgent one behind it.  Reserved sender threads take only urgent messages,
+ * so one is never left waiting for a sender thread either.
+ * <p/>
+ * The sender threads are started by {@link SenderThreads}, as platform
+ * threads on Java 8, and as virtual threads on Java 21 and later.  The
+ * conversations held at once with one SMTP server, by every queue in the JVM
+ * sending to it, may be limited, so that many sender threads do not overwhelm
+ * it.
+ */
+public class DeliveryQueue
+{
+    /**
+     * The conversations allowed with each SMTP server, by host and port.
+     */
+    private static final ConcurrentMap<String, Semaphore> relays =
+        new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * The default most bytes a message coalesced from others may have.
+     */
+    public static final long DEFAULT_COALESCE_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * What is done with a message offered when its lane is full.
+     */
+    public enum Overflow
+    {
+        /**
+         * The message is dropped.
+         */
+        DROP_NEWEST,
+        /**
+         * The message waiting longest in the lane is dropped, to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * The logging thread waits, for at most the block timeout, for room,
+         * and the message is dropped if there is none.  The appender is
+         * locked while it waits, so every thread logging to it waits too.
+         * The {@link AppenderScheduler} thread never waits: its message is
+         * spilled, if there is a spill, or dropped.
+         */
+        BLOCK,
+        /**
+         * The message is merged into the last waiting for the same route, as
+         * a section of it, or dropped if there is none.
+         */
+        COALESCE,
+        /**
+         * The message is handed to the spill, typically a {@link
+         * MessageSpool}, or dropped if it will not take it.
+         */
+        SPILL
+    }
+
+    private final List<LinkedList<OutboundMessage>> lanes;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled for every message, and for urgent messages only.
+     */
+    private final Condition queued = lock.newCondition();
+    private final Condition urgentQueued = lock.newCondition();
+    /**
+     * Signalled when a message is taken, for offers blocked on a full lane.
+     */
+    private final Condition taken = lock.newCondition();
+    private int size;
+    private final Consumer<OutboundMessage> sender;
+    private final String name;
+    private Overflow overflow = Overflow.DROP_NEWEST;
+    private long blockTimeout;
+    private Function<OutboundMessage, String> route;
+    private long coalesceMaxBytes = DEFAULT_COALESCE_MAX_BYTES;
+    private Predicate<OutboundMessage> spill;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    /**
+     * The counts when overflows were last reported, while a report is
+     * scheduled.
+     */
+    private long reportedDropped;
+    private long reportedEvicted;
+    private long reportedCoalesced;
+    private long reportedSpilled;
+    private ScheduledFuture<?> report;
+    private final int threadCount;
+    private final int reservedThreads;
+    private final Semaphore relay;
+    private volatile boolean closed;
+    private Thread[] threads;
+
+    /**
+     * @param name     identifies the queue in thread names and diagnostics
+     * @param capacity the maximum number of messages waiting to be sent
+     * @param sender   delivers a message, on the sender thread.
+     */
+    public DeliveryQueue(final String name, final int capacity,
+        final Consumer<OutboundMessage> sender)
+    {
+        this(name, capacity, 1, sender);
+    }
+
+    /**
+     * @param name        identifies the queue in thread names and diagnostics
+     * @param capacity    the maximum number of messages waiting to be sent
+     * @param threadCount the number of sender threads
+     * @param sender      delivers a message, on a sender thread; it must be
+     *                    thread safe when there is more than one.
+     */
+    public DeliveryQueue(final String name, final int capacity,
+        final int threadCount, final Consumer<OutboundMessage> sender)
+    {
+        this(name, capacity, threadCount, 0, null, 0, sender);
+    }
+
+    /**
+     * @param name            identifies the queue in thread names and
+     *                        diagnostics
+     * @param capacity        the maximum number of messages of each priority
+     *                        waiting to be sent
+     * @param threadCount     the number of sender threads
+     * @param reservedThreads the number of sender threads, in addition, which
+     *                        only send {@link FilterType#PRIORITY_HIGH urgent}
+     *                        messages
+     * @param relay           the SMTP server, as host and port
+     * @param relayLimit      the most messages sent to the server at once, by
+     *                        every queue in the JVM, 0 for no limit; the first
+     *                        queue for a server sets it
+     * @param sender          delivers a message, on a sender thread; it must
+     *                        be thread safe when there is more than one.
+     */
+    public DeliveryQueue(final String name, final int capacity,
+        final int threadCount, final int reservedThreads, final String relay,
+        final int relayLimit, final Consumer<OutboundMessage> sender)
+    {
+        this.name = name;
+        this.relay = relay == null || relayLimit <= 0 ? null :
+            relays.computeIfAbsent(relay, key -> new Semaphore(relayLimit));
+        this.capacity = capacity;
+        lanes = new ArrayList<LinkedList<OutboundMessage>>(FilterType.RANKS);
+        for (int rank = 0; rank < FilterType.RANKS; rank++)
+        {
+            lanes.add(new LinkedList<OutboundMessage>());
+        }
+        this.threadCount = Math.max(1, threadCount);
+        this.reservedThreads = Math.max(0, reservedThreads);
+        this.sender = sender;
+    }
+
+    /**
+     * Sets what is done with a message offered when its lane is full, which
+     * is to drop it until this is called.  It must be called before the queue
+     * is started.
+     *
+     * @param overflow     the policy
+     * @param blockTimeout for {@link Overflow#BLOCK}, the longest in
+     *                     milliseconds an offer waits for room
+     * @param route            for {@link Overflow#COALESCE}, identifies the
+     *                         recipients and subject of a message, as only
+     *                         messages going to the same ones are merged
+     * @param coalesceMaxBytes for {@link Overflow#COALESCE}, the most bytes
+     *                         a merged body may have; a message which would
+     *                         take it beyond this is dropped
+     * @param spill            for {@link Overflow#SPILL}, takes a message,
+     *                         answering false if it could not.
+     */
+    public void setOverflow(final Overflow overflow, final long blockTimeout,
+        final Function<OutboundMessage, String> route,
+        final long coalesceMaxBytes, final Predicate<OutboundMessage> spill)
+    {
+        this.overflow = overflow;
+        this.blockTimeout = blockTimeout;
+        this.route = route;
+        this.coalesceMaxBytes = coalesceMaxBytes;
+        this.spill = spill;
+    }
+
+    /**
+     * Starts the sender threads.
+     */
+    public synchronized void start()
+    {
+        threads = new Thread[threadCount + reservedThreads];
+        for (int index = 0; index < threadCount; index++)
+        {
+            threads[index] = SenderThreads.start("au-log4j SMTP sender [" +
+                name + "]" + (threadCount == 1 ? "" : "-" + (index + 1)),
+                () -> drain(false));
+        }
+        for (int index = 0; index < reservedThreads; index++)
+        {
+            threads[threadCount + index] = SenderThreads.start(
+                "au-log4j SMTP sender [" + name + "]-urgent-" + (index + 1),
+                () -> drain(true));
+        }
+    }
+
+    /**
+     * Queues a message for delivery, applying the overflow policy if its lane
+     * is full.  Only {@link Overflow#BLOCK} waits, and never on the {@link
+     * AppenderScheduler} thread.
+     *
+     * @param message the message to send.
+     *
+     * @return false if the queue is full or closed, and the message was
+     *         dropped.
+     */
+    public boolean offer(final OutboundMessage message)
+    {
+        final int rank = message.getRank();
+        final LinkedList<OutboundMessage> lane = lanes.get(rank);
+        lock.lock();
+        try
+        {
+            if (!closed && lane.size() >= capacity)
+            {
+                switch (overflow)
+                {
+                    case DROP_OLDEST:
+                        lane.removeFirst();
+                        size--;
+                        evicted.incrementAndGet();
+                        report("is full, oldest email dropped");
+                        break;
+                    case BLOCK:
+                        if (!AppenderScheduler.isCurrentThread())
+                        {
+                            awaitRoom(lane);
+                        }
+                        break;
+                    case COALESCE:
+                        if (coalesce(lane, message))
+                        {
+                            return true;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (!closed && lane.size() < capacity)
+            {
+                lane.addLast(message);
+                size++;
+                queued.signal();
+                if (rank == FilterType.RANK_HIGH)
+                {
+                    urgentQueued.signal();
+                }
+                return true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (!closed && spill != null && (overflow == Overflow.SPILL ||
+            overflow == Overflow.BLOCK && AppenderScheduler.isCurrentThread())
+            && spill.test(message))
+        {
+            spilled.incrementAndGet();
+            return true;
+        }
+        dropped.incrementAndGet();
+        report(closed ? "is closed, email dropped" : "is full, email dropped");
+        return false;
+    }
+
+    /**
+     * Reports an email dropped, straight away only if it is the first for a
+     * minute.
+     *
+     * @param what what happened.
+     */
+    private synchronized void report(final String what)
+    {
+        if (report == null)
+        {
+            LogLog.warn("SMTP delivery queue [" + name + "] " + what +
+                ", those dropped in the next minute are reported together");
+            reportedDropped = dropped.get();
+            reportedEvicted = evicted.get();
+            reportedCoalesced = coalesced.get();
+            reportedSpilled = spilled.get();
+            report = AppenderScheduler.schedule(this::summarize,
+                CircuitBreaker.REPORT_INTERVAL);
+        }
+    }
+
+    private synchronized void summarize()
+    {
+        final long droppedNow = dropped.get();
+        final long evictedNow = evicted.get();
+        if (droppedNow == reportedDropped && evictedNow == reportedEvicted)
+        {   // a quiet minute, the next email dropped is reported straight away
+            report = null;
+            return;
+        }
+        final long coalescedNow = coalesced.get();
+        final long spilledNow = spilled.get();
+        LogLog.warn("SMTP delivery queue [" + name + "] overflowed in the " +
+            "last minute: " + (droppedNow - reportedDropped) + " emails " +
+            "dropped, " + (evictedNow - reportedEvicted) + " oldest emails " +
+            "dropped, " + (coalescedNow - reportedCoalesced) + " coalesced, " +
+            (spilledNow - reportedSpilled) + " spilled");
+        reportedDropped = droppedNow;
+        reportedEvicted = evictedNow;
+        reportedCoalesced = coalescedNow;
+        reportedSpilled = spilledNow;
+        if (report != null)
+        {
+            report = AppenderScheduler.schedule(this::summarize,
+                CircuitBreaker.REPORT_INTERVAL);
+        }
+    }
+
+    /**
+     * Waits, for at most the block timeout, for room in the lane.
+     */
+    private void awaitRoom(final LinkedList<OutboundMessage> lane)
+    {
+        blocked.incrementAndGet();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        try
+        {
+            while (!closed && lane.size() >= capacity && remaining > 0)
+            {
+                remaining = taken.awaitNanos(remaining);
+            }
+        }
+        catch (final InterruptedException e)
+        {   // given up, the message is dropped
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Merges the message into the last one waiting in the lane for the same
+     * route, unless the merged body would be larger than the coalesce
+     * maximum.
+     *
+     * @return false if there is none, or it is too large.
+     */
+    private boolean coalesce(final LinkedList<OutboundMessage> lane,
+        final OutboundMessage message)
+    {
+        final String key = route.apply(message);
+        final ListIterator<OutboundMessage> waiting =
+            lane.listIterator(lane.size());
+        while (waiting.hasPrevious())
+        {
+            final OutboundMessage previous = waiting.previous();
+            if (key.equals(route.apply(previous)))
+            {
+                if (previous.getBody().length + message.getBody().length +
+                    DigestCollector.SECTION_SEPARATOR.length() >
+                    coalesceMaxBytes)
+                {   // copying ever larger bodies would be unbounded
+                    return false;
+                }
+                waiting.set(DigestCollector.merge(Arrays.asList(previous,
+                    message)));
+                coalesced.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops accepting messages, and waits for those already queued to be sent.
+     *
+     * @param timeoutMilliseconds the longest to wait for the queue to drain.
+     */
+    public void close(final long timeoutMilliseconds)
+    {
+        closed = true;
+        final Thread[] senders;
+        synchronized (this)
+        {
+            senders = threads;
+            if (report != null)
+            {   // report any dropped since the last report, and stop
+                report.cancel(false);
+                report = null;
+                summarize();
+            }
+        }
+        if (senders == null)
+        {
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        boolean drained = true;
+        for (final Thread sender : senders)
+        {
+            try
+            {
+                sender.join(Math.max(1,
+                    deadline - System.currentTimeMillis()));
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            drained &= !sender.isAlive();
+        }
+        if (!drained)
+        {
+            LogLog.warn("SMTP delivery queue [" + name + "] did not drain " +
+                "within " + timeoutMilliseconds + "ms, " + size() +
+                " emails were not sent");
+            for (final Thread sender : senders)
+            {
+                sender.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be sent.
+     */
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full, or
+     *         closed, when they were offered.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages dropped by {@link Overflow#DROP_OLDEST}
+     *         to make room.
+     */
+    public long getEvicted()
+    {
+        return evicted.get();
+    }
+
+    /**
+     * @return the number of offers which waited for room, under {@link
+     *         Overflow#BLOCK}.
+     */
+    public long getBlocked()
+    {
+        return blocked.get();
+    }
+
+    /**
+     * @return the number of messages merged into another, under {@link
+     *         Overflow#COALESCE}.
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of messages handed to the spill, under {@link
+     *         Overflow#SPILL}, or from the scheduler under {@link
+     *         Overflow#BLOCK}.
+     */
+    public long getSpilled()
+    {
+        return spilled.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeliveryQueue{" +
+            "name='" + name + '\'' +
+            ", overflow=" + overflow +
+            ", size=" + size() +
+            ", dropped=" + dropped +
+            ", evicted=" + evicted +
+            ", blocked=" + blocked +
+            ", coalesced=" + coalesced +
+            ", spilled=" + spilled +
+            '}';
+    }
+
+    /**
+     * Sends messages until the queue is closed and there are none left.
+     *
+     * @param urgentOnly whether this is a reserved sender thread.
+     */
+    private void drain(final boolean urgentOnly)
+    {
+        try
+        {
+            OutboundMessage message;
+            while ((message = take(urgentOnly)) != null)
+            {
+                deliver(message);
+            }
+        }
+        catch (final InterruptedException ignored)
+        {   // abandoned by close()
+        }
+    }
+
+    /**
+     * @return the most urgent message, waiting for one, or null once the
+     *         queue is closed and there are none left.
+     */
+    private OutboundMessage take(final boolean urgentOnly)
+        throws InterruptedException
+    {
+        final int lanesTaken = urgentOnly ? FilterType.RANK_HIGH + 1 :
+            lanes.size();
+        lock.lock();
+        try
+        {
+            while (true)
+            {
+                for (int rank = 0; rank < lanesTaken; rank++)
+                {
+                    final OutboundMessage message =
+                        lanes.get(rank).pollFirst();
+                    if (message != null)
+                    {
+                        size--;
+                        if (overflow == Overflow.BLOCK)
+                        {
+                            taken.signalAll();
+                        }
+                        return message;
+                    }
+                }
+                if (closed)
+                {
+                    return null;
+                }
+                // closing does not signal, so look again now and then
+                (urgentOnly ? urgentQueued : queued).await(100,
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void deliver(final OutboundMessage message)
+        throws InterruptedException
+    {
+        // urgent messages are not held up by the others for the server
+        final Semaphore relay = message.getRank() == FilterType.RANK_HIGH ?
+            null : this.relay;
+        if (relay != null)
+        {
+            relay.acquire();
+        }
+        try
+        {
+            sender.accept(message);
+        }
+        catch (final RuntimeException e)
+        {   // never let a bad message kill the sender thread
+            LogLog.error("Error occurred while sending e-mail notification.",
+                e);
+        }
+        finally
+        {
+            if (relay != null)
+            {
+                relay.release();
+            }
+        }
+    }
+}
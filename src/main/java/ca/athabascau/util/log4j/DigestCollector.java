@@ -0,0 +1,199 @@
+package ca.athabascau.util.log4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * Collects the emails triggered during a digest window, and merges all of
+ * those going to the same recipients with the same subject into one email.
+ * An incident which fills a small buffer dozens of times then costs one SMTP
+ * transaction per recipient rather than dozens, while each triggered buffer
+ * still appears in full, with its filter's message prefix, as a section of
+ * the digest.
+ * <p/>
+ * The window starts with the first email for a recipient and subject, and is
+ * closed by the {@link AppenderScheduler}, which hands the digest to the
+ * sender.
+ */
+public class DigestCollector
+{
+    /**
+     * Separates the sections of a digest.
+     */
+    static final String SECTION_SEPARATOR =
+        "\n----------------------------------------" +
+            "----------------------------------------\n\n";
+
+    private final long windowMilliseconds;
+    private final Consumer<OutboundMessage> sender;
+    /**
+     * The digests waiting for their window to close, by recipients and
+     * subject, in the order they were started.
+     */
+    private final Map<String, Digest> pending =
+        new LinkedHashMap<String, Digest>();
+    private boolean closed;
+
+    /**
+     * @param windowMilliseconds how long after the first email of a digest
+     *                           the digest is sent
+     * @param sender             sends a finished digest; it is called from
+     *                           the scheduler thread, so it must not wait on
+     *                           the SMTP server.
+     */
+    public DigestCollector(final long windowMilliseconds,
+        final Consumer<OutboundMessage> sender)
+    {
+        this.windowMilliseconds = windowMilliseconds;
+        this.sender = sender;
+    }
+
+    /**
+     * Adds an email to the digest for its recipients and subject, starting a
+     * new digest if there is none.  Once closed, the email is sent on its own.
+     *
+     * @param key     identifies the resolved recipients and subject of the
+     *                email
+     * @param message the email.
+     */
+    public void add(final String key, final OutboundMessage message)
+    {
+        synchronized (this)
+        {
+            if (!closed)
+            {
+                Digest digest = pending.get(key);
+                if (digest == null)
+                {
+                    digest = new Digest();
+                    pending.put(key, digest);
+                    digest.future = AppenderScheduler.schedule(
+                        () -> flush(key), windowMilliseconds);
+                }
+                digest.sections.add(message);
+                return;
+            }
+        }
+        sender.accept(message);
+    }
+
+    /**
+     * Sends every digest now, without waiting for their windows to close, and
+     * sends any later email on its own.
+     */
+    public void close()
+    {
+        final List<Digest> digests;
+        synchronized (this)
+        {
+            closed = true;
+            digests = new ArrayList<Digest>(pending.values());
+            pending.clear();
+        }
+        for (final Digest digest : digests)
+        {
+            digest.future.cancel(false);
+            sender.accept(digest.merge());
+        }
+    }
+
+    /**
+     * @return the number of digests waiting for their window to close.
+     */
+    public synchronized int size()
+    {
+        return pending.size();
+    }
+
+    private void flush(final String key)
+    {
+        final Digest digest;
+        synchronized (this)
+        {
+            digest = pending.remove(key);
+        }
+        if (digest != null)
+        {
+            sender.accept(digest.merge());
+        }
+    }
+
+    /**
+     * The emails collected for one recipient and subject.
+     */
+    private static class Digest
+    {
+        private final List<OutboundMessage> sections =
+            new ArrayList<OutboundMessage>();
+        private ScheduledFuture<?> future;
+
+        /**
+         * @return one email with the body of every collected email, in order,
+         *         addressed like the first.
+         */
+        OutboundMessage merge()
+        {
+            return DigestCollector.merge(sections);
+        }
+    }
+
+    /**
+     * Merges emails into one, each as a section of it.
+     *
+     * @param sections the emails, in order
+     *
+     * @return one email with the body of every email, in order, addressed
+     *         like the first.
+     */
+    static OutboundMessage merge(final List<OutboundMessage> sections)
+    {
+        final OutboundMessage first = sections.get(0);
+        if (sections.size() == 1)
+        {
+            return first;
+        }
+        final byte[] separator = SECTION_SEPARATOR.getBytes(
+            StandardCharsets.US_ASCII);
+        int length = -separator.length;
+        int nonAscii = 0;
+        // the separator starts with a line feed, so no line runs from
+        // one section into the next
+        int longestLine = SECTION_SEPARATOR.length();
+        // the summaries of the sections large enough to have one
+        StringBuilder summary = null;
+        for (final OutboundMessage section : sections)
+        {
+            length += section.getBody().length + separator.length;
+            nonAscii += section.getNonAscii();
+            longestLine = Math.max(longestLine, section.getLongestLine());
+            if (section.getSummary() != null)
+            {
+                summary = summary == null ? new StringBuilder() :
+                    summary.append(SECTION_SEPARATOR);
+                summary.append(section.getSummary());
+            }
+        }
+        final byte[] body = new byte[length];
+        int position = 0;
+        for (final OutboundMessage section : sections)
+        {
+            if (section != first)
+            {
+                System.arraycopy(separator, 0, body, position,
+                    separator.length);
+                position += separator.length;
+            }
+            System.arraycopy(section.getBody(), 0, body, position,
+                section.getBody().length);
+            position += section.getBody().length;
+        }
+        return new OutboundMessage(first.getFilter(), first.getTo(),
+            first.getSubject(), body, nonAscii, longestLine,
+            summary == null ? null : summary.toString());
+    }
+}
@@ -1,6 +1,5 @@
 package ca.athabascau.util.log4j;
 
-import ca.athabascau.util.log4j.xml.ConfigType;
 import ca.athabascau.util.log4j.xml.FilterType;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.TriggeringEventEvaluator;
@@ -16,7 +15,6 @@ import org.apache.log4j.spi.TriggeringEventEvaluator;
  */
 public class EmailEvaluator implements TriggeringEventEvaluator
 {
-    private EventTimeQueue eventTimeQueue;
     private SMTPAppender smtpAppender;
 
 
@@ -31,33 +29,78 @@ public class EmailEvaluator implements TriggeringEventEvaluator
      * <p>This method returns <code>true</code> if flood protection is enabled
      * but flooding is not in progress and if the matched filter from
      * filter-config.xml is designated to be included in logging. Otherwise it
-     * returns <code>false</code>.
+     * returns <code>false</code>.  Flooding is tracked separately for each
+     * filter or error fingerprint when the appender's FloodProtectionKey says
+     * so.
+     * <p/>
+     * Flood protection which does not depend on the filter is checked first,
+     * so that during a flood events are dropped without even being matched.
+     * <p/>
+     * The filter is matched by {@link SMTPAppender#findFilter(LoggingEvent)},
+     * as the appender matches it for routing.  The appender makes the same
+     * decision through {@link #isBelowFlood(LoggingEvent, long)} and {@link
+     * #isTriggeringEvent(LoggingEvent, FilterType, long)}, so that the match
+     * is not repeated.
      */
     public boolean isTriggeringEvent(final LoggingEvent event)
     {
-        final ConfigType config = smtpAppender.getConfig();
-        if (eventTimeQueue == null)
-        {
-            eventTimeQueue = new EventTimeQueue(smtpAppender);
+        final long fingerprint = isKeyedByFingerprint() ?
+            Fingerprint.of(event) : 0;
+        if (!isBelowFlood(event, fingerprint))
+        {   // frequency exceeded
+            return false;
         }
+        return isTriggeringEvent(event, smtpAppender.findFilter(event),
+            fingerprint);
+    }
 
-        final boolean frequencyExceeded = !eventTimeQueue.add();
-        System.out.println(eventTimeQueue.toString());
+    /**
+     * @return true if flood budgets are kept for each error fingerprint, so
+     *         that the fingerprint is needed before the flood check.
+     */
+    boolean isKeyedByFingerprint()
+    {
+        final FloodLimiter floodLimiter = smtpAppender.getFloodLimiter();
+        return floodLimiter != null && floodLimiter.isKeyedByFingerprint();
+    }
 
-        boolean log = true;
-        if (config != null)
-        {
-            final FilterType filter = config.findMatch(
-                event.getRenderedMessage());
+    /**
+     * The flood protection which does not depend on the filter, checked
+     * before the event is matched.
+     *
+     * @param event       the event
+     * @param fingerprint the {@link Fingerprint} of the event, only needed
+     *                    when {@link #isKeyedByFingerprint()}.
+     *
+     * @return false if the frequency has been exceeded.
+     */
+    boolean isBelowFlood(final LoggingEvent event, final long fingerprint)
+    {
+        final FloodLimiter floodLimiter = smtpAppender.getFloodLimiter();
+        return floodLimiter == null || floodLimiter.isKeyedByFilter() ||
+            floodLimiter.add(event, null, fingerprint);
+    }
 
-            if (filter != null)
-            {
-                log = filter.isLog().booleanValue();
-            }
+    /**
+     * The rest of the decision, once the event has been matched.
+     *
+     * @param event       the event
+     * @param filter      the filter the event matched, or null
+     * @param fingerprint the {@link Fingerprint} of the event, only needed
+     *                    when {@link #isKeyedByFingerprint()}.
+     *
+     * @return true if the filter is logged, and the frequency for it has not
+     *         been exceeded.
+     */
+    boolean isTriggeringEvent(final LoggingEvent event,
+        final FilterType filter, final long fingerprint)
+    {
+        if (filter != null && !filter.isLog().booleanValue())
+        {
+            return false;
         }
-
-        return !frequencyExceeded && log;
+        final FloodLimiter floodLimiter = smtpAppender.getFloodLimiter();
+        return floodLimiter == null || !floodLimiter.isKeyedByFilter() ||
+            floodLimiter.add(event, filter, fingerprint);
     }
-
-
 }
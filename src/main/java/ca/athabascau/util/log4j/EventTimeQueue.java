@@ -2,15 +2,9 @@ package ca.athabascau.util.log4j;
 
 import org.apache.log4j.helpers.LogLog;
 
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeUtility;
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Implements a time queue that maintains a list of event times.  If the logging
@@ -27,24 +21,51 @@ import java.util.Date;
  */
 public class EventTimeQueue
 {
+    /**
+     * Marks a slot of the ring which has never held a timestamp.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
     /**
      * Frequency per minAgeInMilliseconds
      */
     private int frequency;
-    private ArrayList timestampList;
+    /**
+     * The timestamps of the last "frequency" events, the slot for event n
+     * being n % frequency, so that it still holds the timestamp of event n -
+     * frequency when event n arrives.
+     */
+    private final AtomicLongArray timestamps;
+    private final AtomicLong sequence = new AtomicLong();
     private long minAgeInMilliseconds;
-    private boolean currentlyFlooding;
+    private final AtomicBoolean currentlyFlooding = new AtomicBoolean();
     private SMTPAppender smtpAppender;
     private String floodEnabledMessage;
+    /**
+     * Told when a flood starts instead of sending the notification, or null.
+     */
+    private Runnable floodStarted;
 
     public EventTimeQueue(final SMTPAppender smtpAppender)
     {
-        timestampList = new ArrayList(frequency);
+        this(smtpAppender, null);
+    }
+
+    /**
+     * @param smtpAppender the appender, whose flood settings are used
+     * @param floodStarted told when a flood starts, in place of sending the
+     *                     flood protection notification.
+     */
+    EventTimeQueue(final SMTPAppender smtpAppender,
+        final Runnable floodStarted)
+    {
+        this.floodStarted = floodStarted;
         this.frequency = smtpAppender.getFloodFrequency();
         this.minAgeInMilliseconds =
             smtpAppender.getFloodFrequencyMilliseconds();
         this.floodEnabledMessage = smtpAppender.getFloodEnabledMessage();
         this.smtpAppender = smtpAppender;
+        timestamps = createRing(frequency);
     }
 
     /**
@@ -62,11 +83,22 @@ public class EventTimeQueue
     public EventTimeQueue(final int frequency, final long minAgeInMilliseconds,
         final String floodEnabledMessage)
     {
-        timestampList = new ArrayList(frequency);
         this.frequency = frequency;
         this.minAgeInMilliseconds = minAgeInMilliseconds;
         this.floodEnabledMessage = floodEnabledMessage;
         smtpAppender = new SMTPAppender();
+        timestamps = createRing(frequency);
+    }
+
+    private static AtomicLongArray createRing(final int frequency)
+    {
+        final AtomicLongArray ring = new AtomicLongArray(
+            Math.max(1, frequency));
+        for (int index = 0; index < ring.length(); index++)
+        {
+            ring.set(index, EMPTY);
+        }
+        return ring;
     }
 
     /**
@@ -75,43 +107,70 @@ public class EventTimeQueue
      *
      * @return true if the frequency per minAgeInMilliseconds has not been
      *         exceeded.
+     *
+     * @see #add(long)
+     */
+    public boolean add()
+    {
+        return add(System.currentTimeMillis());
+    }
+
+    /**
+     * Records an event which happened at the given time.  This neither locks
+     * nor allocates, so that many threads logging errors at once do not queue
+     * up behind one another here.  When they race, an event may be compared
+     * with one a little newer or older than exactly "frequency" events ago,
+     * which only moves the point at which flooding is detected by an event or
+     * two.
+     *
+     * @param timestamp when the event happened, normally {@link
+     *                  org.apache.log4j.spi.LoggingEvent#timeStamp}.
+     *
+     * @return true if the frequency per minAgeInMilliseconds has not been
+     *         exceeded.
      */
-    public synchronized boolean add()
+    public boolean add(final long timestamp)
     {
         if (frequency == 0 || minAgeInMilliseconds == 0)
         {   // flood protection not enabled
             return true;
         }
 
-        final boolean alreadyFlooding = currentlyFlooding;
-        long oldestTime = -1;
-        final Long newestTime = new Long(System.currentTimeMillis());
-        if (timestampList.size() <= frequency - 1)
-        {
-            timestampList.add(newestTime);
-        }
-        else
-        {
-            timestampList.add(newestTime);
-            oldestTime = ((Long) timestampList.remove(0)).longValue();
-        }
+        final int slot = (int) (sequence.getAndIncrement() % frequency);
+        final long oldestTime = timestamps.getAndSet(slot, timestamp);
 
         // if the oldest time hasn't aged enough, then we're flooding.
         // Essentially, we negate the following to determine we're flooding.
         // 1. oldestTime does not exist, because we haven't reached frequency
-        // 2. newestTime - oldestTime is older than min age
-        currentlyFlooding = !(oldestTime == -1 ||
-            newestTime.longValue() - oldestTime > minAgeInMilliseconds);
-        if (!alreadyFlooding && currentlyFlooding &&
-            !SMTPAppender.isFloodProtectionDisabled())
+        // 2. timestamp - oldestTime is older than min age
+        final boolean flooding = !(oldestTime == EMPTY ||
+            timestamp - oldestTime > minAgeInMilliseconds);
+        if (flooding)
         {
-            LogLog.warn("Flood protection activated");
-            sendNotification();
+            // only the thread which starts the flood sends the notification
+            if (!currentlyFlooding.get() &&
+                currentlyFlooding.compareAndSet(false, true) &&
+                !SMTPAppender.isFloodProtectionDisabled())
+            {
+                if (floodStarted != null)
+                {
+                    floodStarted.run();
+                }
+                else
+                {
+                    LogLog.warn("Flood protection activated");
+                    sendNotification(null);
+                }
+            }
+        }
+        else if (currentlyFlooding.get())
+        {   // only written when it changes, to keep the cache line shared
+            currentlyFlooding.set(false);
         }
 
         // the oldest times is older than the minimum age, we're not flooding
         // If flood protection is disabled for testing, then just return true
-        return SMTPAppender.isFloodProtectionDisabled() || !currentlyFlooding;
+        return SMTPAppender.isFloodProtectionDisabled() || !flooding;
     }
 
     @Override
@@ -119,44 +178,28 @@ public class EventTimeQueue
     {
         return "EventTimeQueue{" +
             "frequency=" + frequency +
-            ", timestampList=" + timestampList +
+            ", timestamps=" + timestamps +
             ", minAgeInMilliseconds=" + minAgeInMilliseconds +
             ", currentlyFlooding=" + currentlyFlooding +
             ", floodEnabledMessage='" + floodEnabledMessage + '\'' +
             '}';
     }
 
-    private void sendNotification()
+    /**
+     * Sends the flood protection message through the appender, so that it is
+     * queued like any other email when the appender is asynchronous.
+     *
+     * @param throttled what is being throttled, added to the message, or
+     *                  null.
+     */
+    void sendNotification(final String throttled)
     {
-        final Session session = smtpAppender.createSession();
-        final MimeMessage msg = new MimeMessage(session);
-
-        try
-        {
-            smtpAppender.addressMessage(msg, null);
-            if (smtpAppender.getSubject() != null)
-            {
-                try
-                {
-                    msg.setSubject(MimeUtility.encodeText(
-                        smtpAppender.getSubject() + " flood protection activated",
-                        "UTF-8", null));
-                    msg.setContent(smtpAppender.getFloodEnabledMessage(),
-                        "text/plain");
-                    msg.setSentDate(new Date());
-                    msg.setRecipients(Message.RecipientType.TO,
-                        smtpAppender.getTo());
-                    Transport.send(msg);
-                }
-                catch (UnsupportedEncodingException ex)
-                {
-                    LogLog.error("Unable to encode SMTP subject", ex);
-                }
-            }
-        }
-        catch (MessagingException e)
+        if (smtpAppender.getSubject() != null)
         {
-            LogLog.error("Could not notify someone of flooding.", e);
+            smtpAppender.dispatch(new OutboundMessage(null,
+                smtpAppender.getSubject() + " flood protection activated",
+                throttled == null ? floodEnabledMessage :
+                    floodEnabledMessage + "\n\n" + throttled));
         }
     }
 
@@ -0,0 +1,256 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.ConfigType;
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the compiled filter-config.xml snapshot for an {@link SMTPAppender},
+ * and swaps it for a new one when the file changes on disk.
+ * <p/>
+ * The append path only ever reads the volatile {@link #getConfig()} reference;
+ * all I/O and XML parsing happens once at start up, and then on a background
+ * daemon thread.  When the configuration is a plain file, a {@link
+ * WatchService} is used.  When it is a classpath resource inside a jar, or
+ * the file system can not be watched, the last modified time is polled
+ * instead.
+ * <p/>
+ * If a changed configuration fails to load, the error is reported and the
+ * previous snapshot remains in effect.
+ */
+public class FilterConfigWatcher
+{
+    private static final long SETTLE_MILLISECONDS = 200;
+
+    private final String filterConfig;
+    private final long checkIntervalMilliseconds;
+    private volatile ConfigType config;
+    private volatile boolean running;
+    private Thread thread;
+    private WatchService watchService;
+
+    /**
+     * @param filterConfig              the classpath resource, or file system
+     *                                  path, as given to {@link
+     *                                  ConfigType#load(String)}
+     * @param checkIntervalMilliseconds how often to check for modifications
+     *                                  when the file system can not notify us
+     *                                  of them.
+     */
+    public FilterConfigWatcher(final String filterConfig,
+        final long checkIntervalMilliseconds)
+    {
+        this.filterConfig = filterConfig;
+        this.checkIntervalMilliseconds = checkIntervalMilliseconds;
+    }
+
+    /**
+     * Loads the initial snapshot, and starts watching for changes.  If the
+     * initial configuration is not valid the error is reported, and no filters
+     * are in effect until it has been corrected.
+     */
+    public synchronized void start()
+    {
+        reload();
+        if (checkIntervalMilliseconds <= 0)
+        {   // reloading disabled
+            return;
+        }
+
+        running = true;
+        final Path path = getPath();
+        Runnable watcher = null;
+        if (path != null && path.getParent() != null)
+        {
+            try
+            {
+                final WatchService service =
+                    FileSystems.getDefault().newWatchService();
+                watchService = service;
+                path.getParent().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                watcher = () -> watch(service, path.getFileName());
+            }
+            catch (final IOException e)
+            {
+                LogLog.warn("Unable to watch " + path + ", polling for " +
+                    "changes instead", e);
+                closeWatchService();
+            }
+        }
+        if (watcher == null)
+        {
+            watcher = this::poll;
+        }
+
+        thread = new Thread(watcher, "au-log4j filter-config watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching for changes.  The current snapshot remains available.
+     */
+    public synchronized void stop()
+    {
+        running = false;
+        closeWatchService();
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * @return the current compiled configuration, or null if there is none.
+     */
+    public ConfigType getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * Loads the configuration again, and publishes it if it is valid.
+     */
+    void reload()
+    {
+        try
+        {
+            config = ConfigType.load(filterConfig);
+            LogLog.debug("Loaded " + filterConfig);
+        }
+        catch (final RuntimeException e)
+        {
+            LogLog.error("Unable to load " + filterConfig + ", the " +
+                "previous configuration, if any, remains in effect", e);
+        }
+    }
+
+    /**
+     * @return the file backing the configuration, or null if it is not a
+     *         plain file.
+     */
+    private Path getPath()
+    {
+        final URL url = ConfigType.class.getResource(filterConfig);
+        try
+        {
+            if (url == null)
+            {
+                return new File(filterConfig).getAbsoluteFile().toPath();
+            }
+            if ("file".equals(url.getProtocol()))
+            {
+                return new File(url.toURI()).toPath();
+            }
+        }
+        catch (final URISyntaxException | RuntimeException e)
+        {
+            LogLog.debug("Unable to resolve " + filterConfig + " to a file", e);
+        }
+        return null;
+    }
+
+    private void watch(final WatchService service, final Path fileName)
+    {
+        try
+        {
+            while (running)
+            {
+                WatchKey key = service.take();
+                boolean changed = false;
+                while (key != null)
+                {   // editors write in several steps, wait for them to settle
+                    for (final WatchEvent<?> event : key.pollEvents())
+                    {
+                        changed |= fileName.equals(event.context()) ||
+                            event.kind() == StandardWatchEventKinds.OVERFLOW;
+                    }
+                    key.reset();
+                    key = service.poll(SETTLE_MILLISECONDS,
+                        TimeUnit.MILLISECONDS);
+                }
+                if (changed)
+                {
+                    reload();
+                }
+            }
+        }
+        catch (final InterruptedException | ClosedWatchServiceException ignored)
+        {   // stopped
+        }
+    }
+
+    private void poll()
+    {
+        long lastModified = getLastModified();
+        try
+        {
+            while (running)
+            {
+                TimeUnit.MILLISECONDS.sleep(checkIntervalMilliseconds);
+                final long modified = getLastModified();
+                if (modified != lastModified)
+                {
+                    lastModified = modified;
+                    reload();
+                }
+            }
+        }
+        catch (final InterruptedException ignored)
+        {   // stopped
+        }
+    }
+
+    private long getLastModified()
+    {
+        final URL url = ConfigType.class.getResource(filterConfig);
+        if (url == null)
+        {
+            return new File(filterConfig).lastModified();
+        }
+
+        try
+        {
+            final URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            final long modified = connection.getLastModified();
+            connection.getInputStream().close();
+            return modified;
+        }
+        catch (final IOException e)
+        {
+            return 0;
+        }
+    }
+
+    private void closeWatchService()
+    {
+        if (watchService != null)
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch (final IOException ignored)
+            {
+            }
+            watchService = null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Reduces an error to a 64 bit fingerprint, so that repeats of the same error
+ * can be recognised cheaply however their messages differ.
+ * <p/>
+ * An event with a throwable is identified by the class of the throwable and
+ * of each of its causes, and the class and method of their top few frames;
+ * line numbers and messages are left out, as they change between releases
+ * and between occurrences.  An event without one is identified by its logger
+ * and its message, with every run of digits treated alike, so that ids,
+ * counts and times do not make each occurrence unique.
+ */
+public final class Fingerprint
+{
+    /**
+     * The number of frames of each throwable in the fingerprint.
+     */
+    public static final int TOP_FRAMES = 5;
+    /**
+     * The number of causes in the fingerprint, which also guards against
+     * cycles in the cause chain.
+     */
+    public static final int MAX_CAUSES = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String FRAME_PREFIX = "\tat ";
+    private static final String CAUSE_PREFIX = "Caused by: ";
+
+    private Fingerprint()
+    {
+    }
+
+    /**
+     * @param event the logging event
+     *
+     * @return the fingerprint of the event's throwable, or of its logger and
+     *         message if it has none.
+     */
+    public static long of(final LoggingEvent event)
+    {
+        final ThrowableInformation information =
+            event.getThrowableInformation();
+        if (information != null)
+        {
+            final Throwable throwable = information.getThrowable();
+            if (throwable != null)
+            {
+                return of(throwable);
+            }
+            final String[] lines = information.getThrowableStrRep();
+            if (lines != null && lines.length > 0)
+            {   // deserialized, only the text is left
+                return of(lines);
+            }
+        }
+
+        long hash = mix(FNV_OFFSET, event.getLoggerName());
+        hash = mix(hash, '\n');
+        final String message = event.getRenderedMessage();
+        if (message != null)
+        {
+            boolean digits = false;
+            for (int index = 0; index < message.length(); index++)
+            {
+                final char c = message.charAt(index);
+                if (c >= '0' && c <= '9')
+                {
+                    if (!digits)
+                    {
+                        hash = mix(hash, '#');
+                    }
+                    digits = true;
+                }
+                else
+                {
+                    hash = mix(hash, c);
+                    digits = false;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param throwable the throwable
+     *
+     * @return the fingerprint of the throwable and its causes.
+     */
+    public static long of(final Throwable throwable)
+    {
+        long hash = FNV_OFFSET;
+        Throwable cause = throwable;
+        StackTraceElement[] enclosing = null;
+        for (int depth = 0; cause != null && depth < MAX_CAUSES; depth++)
+        {
+            hash = mix(hash, cause.getClass().getName());
+            final StackTraceElement[] frames = cause.getStackTrace();
+            // like printStackTrace(), leave out the frames a cause shares
+            // with the throwable it caused, so the text gives the same answer
+            final int unique = frames.length -
+                framesInCommon(frames, enclosing);
+            for (int index = 0;
+                index < unique && index < TOP_FRAMES; index++)
+            {
+                hash = mix(hash, '\n');
+                hash = mix(hash, frames[index].getClassName());
+                hash = mix(hash, '.');
+                hash = mix(hash, frames[index].getMethodName());
+            }
+            hash = mix(hash, '\n');
+            enclosing = frames;
+            cause = cause.getCause();
+        }
+        return hash;
+    }
+
+    /**
+     * Unlike {@link #of(Throwable)}, identifies exactly what would be printed
+     * for the throwable, so that two throwables with the same exact
+     * fingerprint have the same stack trace text: messages, every frame with
+     * its line number, and every cause and suppressed throwable.
+     *
+     * @param throwable the throwable
+     *
+     * @return the exact fingerprint of the throwable.
+     */
+    public static long exact(final Throwable throwable)
+    {
+        return exact(FNV_OFFSET, throwable, Collections.newSetFromMap(
+            new IdentityHashMap<Throwable, Boolean>()));
+    }
+
+    private static long exact(long hash, final Throwable throwable,
+        final Set<Throwable> seen)
+    {
+        if (!seen.add(throwable))
+        {   // printed as circular
+            return mix(hash, '\u0000');
+        }
+        hash = mix(hash, String.valueOf(throwable));
+        for (final StackTraceElement frame : throwable.getStackTrace())
+        {
+            hash = mix(hash, '\n');
+            hash = mix(hash, frame.getClassName());
+            hash = mix(hash, '.');
+            hash = mix(hash, frame.getMethodName());
+            hash = mix(hash, '(');
+            hash = mix(hash, frame.getFileName());
+            hash = mix(hash, (char) (frame.getLineNumber() >>> 16));
+            hash = mix(hash, (char) frame.getLineNumber());
+        }
+        for (final Throwable suppressed : throwable.getSuppressed())
+        {
+            hash = mix(hash, '\t');
+            hash = exact(hash, suppressed, seen);
+        }
+        if (throwable.getCause() != null)
+        {
+            hash = mix(hash, '\r');
+            hash = exact(hash, throwable.getCause(), seen);
+        }
+        return hash;
+    }
+
+    private static int framesInCommon(final StackTraceElement[] frames,
+        final StackTraceElement[] enclosing)
+    {
+        if (enclosing == null)
+        {
+            return 0;
+        }
+        int common = 0;
+        int frame = frames.length - 1;
+        int enclosingFrame = enclosing.length - 1;
+        while (frame >= 0 && enclosingFrame >= 0 &&
+            frames[frame].equals(enclosing[enclosingFrame]))
+        {
+            common++;
+            frame--;
+            enclosingFrame--;
+        }
+        return common;
+    }
+
+    /**
+     * Gives the same fingerprint as {@link #of(Throwable)} from the text of a
+     * stack trace, as found in {@link
+     * ThrowableInformation#getThrowableStrRep()}.
+     *
+     * @param lines the lines of the stack trace
+     *
+     * @return the fingerprint of the throwable and its causes.
+     */
+    public static long of(final String[] lines)
+    {
+        long hash = FNV_OFFSET;
+        int causes = 0;
+        int frames = 0;
+        for (int index = 0; index < lines.length; index++)
+        {
+            final String line = lines[index];
+            if (line.startsWith(FRAME_PREFIX))
+            {
+                if (frames++ < TOP_FRAMES)
+                {   // class.method, without the (File.java:123), or the
+                    // java.base/ module prefix of newer JVMs
+                    final int end = line.indexOf('(') == -1 ? line.length() :
+                        line.indexOf('(');
+                    final int module = line.lastIndexOf('/', end);
+                    hash = mix(hash, '\n');
+                    hash = mix(hash, line, module == -1 ?
+                        FRAME_PREFIX.length() : module + 1, end);
+                }
+            }
+            else if (index == 0 || line.startsWith(CAUSE_PREFIX))
+            {
+                if (causes++ == MAX_CAUSES)
+                {
+                    break;
+                }
+                if (index > 0)
+                {
+                    hash = mix(hash, '\n');
+                }
+                final int start = index == 0 ? 0 : CAUSE_PREFIX.length();
+                final int end = line.indexOf(':', start);
+                hash = mix(hash, line, start,
+                    end == -1 ? line.length() : end);
+                frames = 0;
+            }
+        }
+        return mix(hash, '\n');
+    }
+
+    private static long mix(final long hash, final char c)
+    {
+        return (hash ^ c) * FNV_PRIME;
+    }
+
+    private static long mix(final long hash, final String text)
+    {
+        return text == null ? hash : mix(hash, text, 0, text.length());
+    }
+
+    private static long mix(long hash, final String text, final int start,
+        final int end)
+    {
+        for (int index = start; index < end; index++)
+        {
+            hash = (hash ^ text.charAt(index)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
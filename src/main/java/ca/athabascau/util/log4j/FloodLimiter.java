@@ -0,0 +1,392 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.FilterType;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flood protection for an {@link SMTPAppender}, with a separate {@link
+ * EventTimeQueue} budget for each key, so that one runaway error is throttled
+ * without also silencing every unrelated error.  The key is chosen by the
+ * appender's <b>FloodProtectionKey</b>:
+ * <ul>
+ * <li>{@link #KEY_GLOBAL}, one budget for everything, as it always was</li>
+ * <li>{@link #KEY_FILTER}, one budget for each filter, and one for the events
+ * matching no filter</li>
+ * <li>{@link #KEY_FINGERPRINT}, one budget for each distinct error, as
+ * identified by its {@link Fingerprint}</li>
+ * </ul>
+ * <p/>
+ * Memory stays flat however many keys turn up.  At most
+ * <b>FloodProtectionMaxKeys</b> keys have a budget of their own, further keys
+ * sharing one overflow budget until there is room, and a key is evicted once
+ * it has been idle for the flood frequency period, after which its budget
+ * would be full again anyway.  Idle keys are found with a {@link TimerWheel}
+ * advanced by the {@link AppenderScheduler}, so eviction never scans the map.
+ * <p/>
+ * The flood protection notification names the key being throttled.  However
+ * many keys flood, at most one notification is sent each flood frequency
+ * period; the keys which start flooding in between are named together in the
+ * next one, or logged when the limiter is closed.
+ */
+public class FloodLimiter
+{
+    /**
+     * One flood budget for the whole appender.
+     */
+    public static final String KEY_GLOBAL = "global";
+    /**
+     * A flood budget for each filter.
+     */
+    public static final String KEY_FILTER = "filter";
+    /**
+     * A flood budget for each error fingerprint.
+     */
+    public static final String KEY_FINGERPRINT = "fingerprint";
+
+    private static final int WHEEL_BUCKETS = 64;
+    /**
+     * The key for events which match no filter.
+     */
+    private static final Object NO_FILTER = new Object();
+    /**
+     * The most keys named in one notification.
+     */
+    static final int MAX_NOTIFIED_KEYS = 20;
+
+    private final SMTPAppender smtpAppender;
+    private final String keyType;
+    private final int maxKeys;
+    private final long idleMilliseconds;
+    private final EventTimeQueue shared;
+    private final ConcurrentMap<Object, Budget> budgets =
+        new ConcurrentHashMap<Object, Budget>();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final TimerWheel<Budget> wheel;
+    private final ScheduledFuture<?> evictor;
+    /**
+     * The keys which started flooding since the last notification, and when
+     * it was sent.
+     */
+    private final List<String> unnotified = new ArrayList<String>();
+    private int unnotifiedCount;
+    private long lastNotified;
+
+    /**
+     * @param smtpAppender the appender to protect, whose flood settings are
+     *                     used.
+     */
+    public FloodLimiter(final SMTPAppender smtpAppender)
+    {
+        this.smtpAppender = smtpAppender;
+        this.maxKeys = smtpAppender.getFloodProtectionMaxKeys();
+        this.idleMilliseconds = smtpAppender.getFloodFrequencyMilliseconds();
+        this.lastNotified = System.currentTimeMillis() - idleMilliseconds;
+
+        final String configured = smtpAppender.getFloodProtectionKey();
+        if (KEY_FILTER.equalsIgnoreCase(configured) ||
+            KEY_FINGERPRINT.equalsIgnoreCase(configured))
+        {
+            keyType = configured.toLowerCase();
+        }
+        else
+        {
+            if (configured != null && !KEY_GLOBAL.equalsIgnoreCase(configured))
+            {
+                LogLog.warn("Unknown FloodProtectionKey [" + configured +
+                    "], using [" + KEY_GLOBAL + "]");
+            }
+            keyType = KEY_GLOBAL;
+        }
+
+        if (KEY_GLOBAL.equals(keyType))
+        {   // the one notification, as it always was
+            shared = new EventTimeQueue(smtpAppender);
+            wheel = null;
+            evictor = null;
+        }
+        else
+        {
+            shared = new EventTimeQueue(smtpAppender, () -> floodStarted(
+                "errors beyond the " + maxKeys + " keys with a budget of " +
+                    "their own"));
+            final long tick = Math.max(100, idleMilliseconds / 8);
+            wheel = new TimerWheel<Budget>(WHEEL_BUCKETS, tick,
+                System.currentTimeMillis());
+            evictor = AppenderScheduler.scheduleWithFixedDelay(
+                this::evictIdle, tick);
+        }
+    }
+
+    /**
+     * Records an event against the budget for its key.
+     *
+     * @param event  the event
+     * @param filter the filter the event matched, or null.
+     *
+     * @return true if the budget has not been exceeded, and the event may be
+     *         emailed.
+     */
+    public boolean add(final LoggingEvent event, final FilterType filter)
+    {
+        return add(event, filter, wheel == null || isKeyedByFilter() ? 0 :
+            Fingerprint.of(event));
+    }
+
+    /**
+     * Records an event against the budget for its key, with its fingerprint
+     * already worked out.
+     *
+     * @param event       the event
+     * @param filter      the filter the event matched, or null
+     * @param fingerprint the {@link Fingerprint} of the event.
+     *
+     * @return true if the budget has not been exceeded, and the event may be
+     *         emailed.
+     */
+    public boolean add(final LoggingEvent event, final FilterType filter,
+        final long fingerprint)
+    {
+        if (wheel == null)
+        {
+            return shared.add(event.timeStamp);
+        }
+
+        final Object key;
+        if (KEY_FILTER.equals(keyType))
+        {
+            key = filter == null ? NO_FILTER : filter;
+        }
+        else
+        {
+            key = Long.valueOf(fingerprint);
+        }
+
+        final Budget budget = getBudget(key, event);
+        if (budget == null)
+        {   // too many keys, share the overflow budget
+            return shared.add(event.timeStamp);
+        }
+        if (event.timeStamp > budget.lastSeen)
+        {
+            budget.lastSeen = event.timeStamp;
+        }
+        return budget.queue.add(event.timeStamp);
+    }
+
+    /**
+     * @return true if the budgets are kept for each filter, so that {@link
+     *         #add(LoggingEvent, FilterType)} needs the filter the event
+     *         matched; otherwise it may be given null.
+     */
+    public boolean isKeyedByFilter()
+    {
+        return KEY_FILTER.equals(keyType);
+    }
+
+    /**
+     * @return true if each error fingerprint has a budget of its own.
+     */
+    public boolean isKeyedByFingerprint()
+    {
+        return KEY_FINGERPRINT.equals(keyType);
+    }
+
+    /**
+     * @return the number of keys with a budget of their own.
+     */
+    public int getKeyCount()
+    {
+        return keyCount.get();
+    }
+
+    /**
+     * Stops evicting idle keys, and logs any keys flooding since the last
+     * notification.
+     */
+    public void close()
+    {
+        if (evictor != null)
+        {
+            evictor.cancel(false);
+        }
+        synchronized (unnotified)
+        {
+            if (unnotifiedCount > 0)
+            {
+                LogLog.warn("Flood protection activated for appender [" +
+                    smtpAppender.getName() + "], throttling " +
+                    listUnnotified());
+            }
+        }
+    }
+
+    /**
+     * Notes that a key started flooding, and sends the notification naming
+     * it, and any others since the last, unless one was sent less than a
+     * flood frequency period ago.
+     *
+     * @param description what the key is.
+     */
+    private void floodStarted(final String description)
+    {
+        final String throttled;
+        synchronized (unnotified)
+        {
+            if (unnotified.size() < MAX_NOTIFIED_KEYS)
+            {
+                unnotified.add(description);
+            }
+            unnotifiedCount++;
+            final long now = System.currentTimeMillis();
+            if (now - lastNotified < idleMilliseconds)
+            {   // named in the next notification
+                return;
+            }
+            lastNotified = now;
+            throttled = "Throttling " + listUnnotified();
+        }
+        LogLog.warn("Flood protection activated, " + throttled);
+        notifyFlood(throttled);
+    }
+
+    /**
+     * Sends the flood protection notification.
+     *
+     * @param throttled what is being throttled.
+     */
+    void notifyFlood(final String throttled)
+    {
+        shared.sendNotification(throttled);
+    }
+
+    /**
+     * @return the keys which started flooding since the last notification,
+     *         which are then forgotten.
+     */
+    private String listUnnotified()
+    {
+        final StringBuilder list = new StringBuilder();
+        for (final String description : unnotified)
+        {
+            list.append(list.length() == 0 ? "" : ", ").append(description);
+        }
+        if (unnotifiedCount > unnotified.size())
+        {
+            list.append(" and ").append(unnotifiedCount - unnotified.size())
+                .append(" more");
+        }
+        unnotified.clear();
+        unnotifiedCount = 0;
+        return list.toString();
+    }
+
+    /**
+     * @return what a key is, for the notification.
+     */
+    private static String describe(final Object key, final LoggingEvent event)
+    {
+        if (key == NO_FILTER)
+        {
+            return "errors matching no filter";
+        }
+        if (key instanceof FilterType)
+        {
+            final FilterType filter = (FilterType) key;
+            return "the filter [" + (filter.getMessage() != null ?
+                filter.getMessage() : filter.getRegex()) + "]";
+        }
+        final String message = event.getRenderedMessage();
+        return "the error " + Long.toHexString((Long) key) + " [" +
+            (message == null ? "" : firstLine(message)) + "]";
+    }
+
+    private static String firstLine(final String text)
+    {
+        final int end = text.indexOf('\n');
+        return end < 0 ? text : text.substring(0, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FloodLimiter{" +
+            "keyType='" + keyType + '\'' +
+            ", keyCount=" + keyCount +
+            ", shared=" + shared +
+            '}';
+    }
+
+    private Budget getBudget(final Object key, final LoggingEvent event)
+    {
+        final long timestamp = event.timeStamp;
+        final Budget existing = budgets.get(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+        if (keyCount.incrementAndGet() > maxKeys)
+        {
+            keyCount.decrementAndGet();
+            return null;
+        }
+
+        final String description = describe(key, event);
+        final Budget created = new Budget(key, new EventTimeQueue(
+            smtpAppender, () -> floodStarted(description)), timestamp);
+        final Budget raced = budgets.putIfAbsent(key, created);
+        if (raced != null)
+        {
+            keyCount.decrementAndGet();
+            return raced;
+        }
+        wheel.schedule(created, timestamp + idleMilliseconds);
+        return created;
+    }
+
+    /**
+     * Evicts the keys which have been idle for the flood frequency period,
+     * and looks again later at those which have not.
+     */
+    synchronized void evictIdle()
+    {
+        final long now = System.currentTimeMillis();
+        wheel.advance(now, budget ->
+        {
+            final long idleUntil = budget.lastSeen + idleMilliseconds;
+            if (idleUntil > now)
+            {
+                wheel.schedule(budget, idleUntil);
+            }
+            else if (budgets.remove(budget.key, budget))
+            {
+                keyCount.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * The flood budget for one key, and when it was last used.
+     */
+    private static final class Budget
+    {
+        private final Object key;
+        private final EventTimeQueue queue;
+        private volatile long lastSeen;
+
+        Budget(final Object key, final EventTimeQueue queue,
+            final long lastSeen)
+        {
+            this.key = key;
+            this.queue = queue;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
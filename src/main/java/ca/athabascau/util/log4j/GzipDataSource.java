@@ -0,0 +1,101 @@
+package ca.athabascau.util.log4j;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An attachment holding the gzip compressed body of an email.  It is
+ * compressed as it is written to the SMTP server, through {@link
+ * #createDataHandler()}, so the compressed copy is never held in memory; it is
+ * only compressed into memory if read, as when the message is inspected.
+ */
+public class GzipDataSource implements DataSource
+{
+    private final byte[] data;
+    private final String name;
+
+    /**
+     * @param data the bytes to compress, which are not copied
+     * @param name the file name of the attachment.
+     */
+    public GzipDataSource(final byte[] data, final String name)
+    {
+        this.data = data;
+        this.name = name;
+    }
+
+    /**
+     * @return a data handler writing the compressed bytes straight to the
+     *         stream it is given.
+     */
+    public DataHandler createDataHandler()
+    {
+        return new DataHandler(this)
+        {
+            @Override
+            public void writeTo(final OutputStream os) throws IOException
+            {
+                GzipDataSource.this.writeTo(os);
+            }
+        };
+    }
+
+    /**
+     * Compresses the bytes into the stream, leaving it open.
+     *
+     * @param os the stream.
+     *
+     * @throws IOException if the stream can not be written.
+     */
+    public void writeTo(final OutputStream os) throws IOException
+    {
+        final GZIPOutputStream gzip = new GZIPOutputStream(
+            new FilterOutputStream(os)
+            {
+                @Override
+                public void write(final byte[] b, final int off,
+                    final int len) throws IOException
+                {   // not a byte at a time
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    flush();
+                }
+            }, 8192);
+        gzip.write(data);
+        gzip.close();
+    }
+
+    public InputStream getInputStream() throws IOException
+    {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+            data.length / 8);
+        writeTo(compressed);
+        return new ByteArrayInputStream(compressed.toByteArray());
+    }
+
+    public OutputStream getOutputStream() throws IOException
+    {
+        throw new IOException("read only");
+    }
+
+    public String getContentType()
+    {
+        return "application/gzip";
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+}
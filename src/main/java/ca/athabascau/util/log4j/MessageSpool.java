@@ -0,0 +1,844 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * A directory on local disk holding every {@link OutboundMessage} of an
+ * appender until it has been delivered, so that the errors logged while the
+ * SMTP server is down, which are the ones most needed, are sent once it is
+ * back rather than lost.  A replayer thread delivers the messages in the
+ * order they were spooled, and while the server is failing, tries again after
+ * a delay which doubles each time, up to five minutes.  A message the server
+ * refuses outright, for its addresses say, is logged and skipped, as trying
+ * again would not help.
+ * <p/>
+ * Messages are appended to segment files, each record a length, a checksum
+ * and the message.  Appending is a write into the operating system's cache;
+ * the segment is only forced to disk by the replayer, at most every sync
+ * interval, so a storm costs no more than the copy.  How far the replayer has
+ * got is kept in an acknowledgement file, and a segment is deleted once it
+ * has all been delivered.  When the spool would grow beyond its maximum size,
+ * the oldest segment is deleted, delivered or not, and the messages it held
+ * are counted as dropped.  Messages are delivered at least once: one sent
+ * just before a crash may be sent again.
+ */
+public class MessageSpool
+{
+    /**
+     * The default most bytes kept on disk.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /**
+     * The default most milliseconds between forcing the spool to disk, which
+     * is also the first delay before trying a failing server again.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    /**
+     * The longest delay before trying a failing server again.
+     */
+    static final long MAX_BACKOFF = 300000;
+    private static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String ACK_FILE = "spool.ack";
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * Sends a message, telling the spool whether it went.
+     */
+    public interface Sender
+    {
+        /**
+         * @param message the message.
+         *
+         * @throws MessagingException if it was not sent; it is tried again
+         *                            unless it was refused outright
+         * @throws IOException        if it can never be sent.
+         */
+        void send(OutboundMessage message)
+            throws MessagingException, IOException;
+    }
+
+    private final File directory;
+    private final String name;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final long syncInterval;
+    private final Sender sender;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private final FileChannel ack;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(16);
+    private long totalBytes;
+    /**
+     * Whether anything was written since the spool was last forced to disk.
+     */
+    private boolean dirty;
+    /**
+     * The next record to deliver, and how many records of its segment came
+     * before it.
+     */
+    private long readSequence;
+    private long readOffset;
+    private long readRecords;
+    private FileChannel reading;
+    private long readingSequence = -1;
+    private long dropped;
+    private volatile boolean closed;
+    private Thread replayer;
+
+    /**
+     * Opens the spool, creating the directory if need be.  Messages left in
+     * it by the last run are delivered first, once {@link #start()} is
+     * called.
+     *
+     * @param directory    where the spool is kept, by this spool alone
+     * @param name         identifies the spool in thread names and
+     *                     diagnostics
+     * @param maxBytes     the most bytes kept on disk
+     * @param syncInterval the most milliseconds between forcing the spool to
+     *                     disk
+     * @param sender       delivers a message, on the replayer thread.
+     *
+     * @throws IOException if the spool can not be opened.
+     */
+    public MessageSpool(final File directory, final String name,
+        final long maxBytes, final long syncInterval, final Sender sender)
+        throws IOException
+    {
+        this.directory = directory;
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.max(1, Math.min(SEGMENT_BYTES, maxBytes / 4));
+        this.syncInterval = Math.max(1, syncInterval);
+        this.sender = sender;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create spool directory [" +
+                directory + "]");
+        }
+
+        ack = FileChannel.open(new File(directory, ACK_FILE).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try
+        {
+            recover();
+            roll();
+        }
+        catch (IOException e)
+        {
+            close(0);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the replayer thread.
+     */
+    public synchronized void start()
+    {
+        replayer = new Thread(this::replay, "au-log4j SMTP spool [" + name +
+            "]");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Adds a message to the end of the spool, without waiting for the disk.
+     * The message is stored as it is, with its own recipients and subject; it
+     * must not need a filter to be addressed, as filters are not stored.
+     *
+     * @param message the message to send.
+     *
+     * @return false if the message could not be spooled, and was dropped.
+     */
+    public synchronized boolean append(final OutboundMessage message)
+    {
+        if (closed)
+        {
+            return drop("the spool is closed");
+        }
+        final byte[] body = message.getBody();
+        try
+        {
+            record.reset();
+            recordOut.writeInt(0); // length and checksum, filled in below
+            recordOut.writeInt(0);
+            writeString(message.getTo());
+            writeString(message.getSubject());
+            writeString(message.getSummary());
+            recordOut.writeInt(message.getNonAscii());
+            recordOut.writeInt(message.getLongestLine());
+            recordOut.writeInt(body.length);
+            final long size = (long) record.size() + body.length;
+            if (size > maxBytes || size > Integer.MAX_VALUE)
+            {
+                return drop("the email is larger than the spool");
+            }
+
+            crc.reset();
+            crc.update(record.array(), RECORD_HEADER,
+                record.size() - RECORD_HEADER);
+            crc.update(body, 0, body.length);
+            final ByteBuffer head = record.buffer();
+            head.putInt(0, (int) size - RECORD_HEADER);
+            head.putInt(4, (int) crc.getValue());
+
+            Segment tail = segments.getLast();
+            if (tail.size > 0 && tail.size + size > segmentBytes)
+            {
+                roll();
+                tail = segments.getLast();
+            }
+            while (totalBytes + size > maxBytes && segments.size() > 1)
+            {
+                dropOldest();
+            }
+            final ByteBuffer[] buffers = {head, ByteBuffer.wrap(body)};
+            tail.channel.position(tail.size);
+            while (head.hasRemaining() || buffers[1].hasRemaining())
+            {
+                tail.channel.write(buffers);
+            }
+            tail.size += size;
+            tail.records++;
+            totalBytes += size;
+            dirty = true;
+            notifyAll();
+            return true;
+        }
+        catch (IOException e)
+        {
+            LogLog.error("Unable to write to SMTP spool [" + name + "]", e);
+            return drop("it could not be written");
+        }
+    }
+
+    /**
+     * Stops accepting messages, and waits for the replayer to deliver those
+     * already spooled while the server is answering.  Whatever is left is
+     * kept on disk, and delivered by the next spool opened on the directory.
+     *
+     * @param timeoutMilliseconds the longest to wait for the replayer.
+     */
+    public void close(final long timeoutMilliseconds)
+    {
+        final Thread thread;
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+            thread = replayer;
+        }
+        if (thread != null)
+        {
+            try
+            {
+                thread.join(Math.max(1, timeoutMilliseconds));
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive())
+            {
+                thread.interrupt();
+            }
+        }
+
+        synchronized (this)
+        {
+            final long pending = getPending();
+            if (pending > 0)
+            {
+                LogLog.warn("SMTP spool [" + name + "] closed with " +
+                    pending + " emails not sent, they will be sent when it " +
+                    "is next opened");
+            }
+            for (final Segment segment : segments)
+            {
+                close(segment.channel, true);
+                segment.channel = null;
+            }
+            close(reading, false);
+            reading = null;
+            close(ack, true);
+        }
+    }
+
+    /**
+     * @return the number of messages spooled and not yet delivered.
+     */
+    public synchronized long getPending()
+    {
+        long pending = -readRecords;
+        for (final Segment segment : segments)
+        {
+            pending += segment.records;
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of messages dropped, because the spool was full or
+     *         they could never be sent.
+     */
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MessageSpool{" +
+            "name='" + name + '\'' +
+            ", directory=" + directory +
+            ", pending=" + getPending() +
+            ", dropped=" + getDropped() +
+            '}';
+    }
+
+    /**
+     * Finds the segments left by the last run, and where it got to.
+     */
+    private void recover() throws IOException
+    {
+        final File[] files = directory.listFiles();
+        final long[] sequences = new long[files == null ? 0 : files.length];
+        int count = 0;
+        for (int index = 0; index < sequences.length; index++)
+        {
+            final String file = files[index].getName();
+            if (file.startsWith(SEGMENT_PREFIX) &&
+                file.endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    sequences[count] = Long.parseLong(file.substring(
+                        SEGMENT_PREFIX.length(),
+                        file.length() - SEGMENT_SUFFIX.length()), 16);
+                    count++;
+                }
+                catch (NumberFormatException ignored)
+                {   // not ours
+                }
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+
+        long ackSequence = -1;
+        long ackOffset = 0;
+        if (ack.size() >= ackBuffer.capacity())
+        {
+            ackBuffer.clear();
+            readFully(ack, ackBuffer, 0);
+            ackSequence = ackBuffer.getLong(0);
+            ackOffset = ackBuffer.getLong(8);
+        }
+        readSequence = count > 0 ? sequences[0] : ackSequence + 1;
+        for (int index = 0; index < count; index++)
+        {
+            final Segment segment = new Segment(sequences[index]);
+            if (segment.sequence < ackSequence)
+            {   // delivered, but not yet deleted
+                segment.file.delete();
+                continue;
+            }
+            segment.channel = FileChannel.open(segment.file.toPath(),
+                StandardOpenOption.READ);
+            // a record cut short by a crash ends the segment
+            final long[] scanned = scan(segment.channel,
+                segment.channel.size());
+            segment.size = scanned[0];
+            segment.records = scanned[1];
+            close(segment.channel, false);
+            segment.channel = null;
+            segments.addLast(segment);
+            totalBytes += segment.size;
+            if (segment.sequence == ackSequence)
+            {
+                readSequence = ackSequence;
+                readOffset = Math.min(ackOffset, segment.size);
+                readRecords = scan(openReading(segment), readOffset)[1];
+            }
+            else if (segments.size() == 1)
+            {
+                readSequence = segment.sequence;
+            }
+        }
+    }
+
+    /**
+     * Counts the whole records before the limit.
+     *
+     * @return the end of the last of them, and their number.
+     */
+    private static long[] scan(final FileChannel channel, final long limit)
+        throws IOException
+    {
+        final ByteBuffer head = ByteBuffer.allocate(4);
+        long offset = 0;
+        long records = 0;
+        while (offset + RECORD_HEADER <= limit)
+        {
+            head.clear();
+            readFully(channel, head, offset);
+            final int length = head.getInt(0);
+            if (length < 0 || offset + RECORD_HEADER + length > limit)
+            {
+                break;
+            }
+            offset += RECORD_HEADER + length;
+            records++;
+        }
+        return new long[]{offset, records};
+    }
+
+    /**
+     * Starts a new segment for appending, forcing the last one to disk.
+     */
+    private void roll() throws IOException
+    {
+        final Segment last = segments.peekLast();
+        if (last != null && last.channel != null)
+        {
+            last.channel.force(false);
+            close(last.channel, false);
+            last.channel = null;
+        }
+        final Segment segment = new Segment(last != null ?
+            last.sequence + 1 : readSequence);
+        segment.channel = FileChannel.open(segment.file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        segments.addLast(segment);
+    }
+
+    /**
+     * Deletes the oldest segment, to make room.
+     */
+    private void dropOldest()
+    {
+        final Segment oldest = segments.removeFirst();
+        long lost = oldest.records;
+        if (oldest.sequence == readSequence)
+        {
+            lost -= readRecords;
+            readSequence = segments.getFirst().sequence;
+            readOffset = 0;
+            readRecords = 0;
+        }
+        delete(oldest);
+        dropped += lost;
+        LogLog.warn("SMTP spool [" + name + "] is full, " + lost +
+            " emails dropped (" + dropped + " dropped so far)");
+    }
+
+    private void delete(final Segment segment)
+    {
+        if (readingSequence == segment.sequence)
+        {
+            close(reading, false);
+            reading = null;
+            readingSequence = -1;
+        }
+        totalBytes -= segment.size;
+        if (!segment.file.delete())
+        {
+            LogLog.warn("Unable to delete SMTP spool segment [" +
+                segment.file + "]");
+        }
+    }
+
+    private boolean drop(final String reason)
+    {
+        dropped++;
+        LogLog.warn("SMTP spool [" + name + "] dropped an email as " +
+            reason + " (" + dropped + " dropped so far)");
+        return false;
+    }
+
+    private void writeString(final String value) throws IOException
+    {
+        if (value == null)
+        {
+            recordOut.writeInt(-1);
+        }
+        else
+        {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            recordOut.writeInt(bytes.length);
+            recordOut.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in)
+        throws IOException
+    {
+        final int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(final FileChannel channel,
+        final ByteBuffer buffer, final long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private FileChannel openReading(final Segment segment) throws IOException
+    {
+        if (readingSequence != segment.sequence)
+        {
+            close(reading, false);
+            reading = null;
+            reading = FileChannel.open(segment.file.toPath(),
+                StandardOpenOption.READ);
+            readingSequence = segment.sequence;
+        }
+        return reading;
+    }
+
+    private static void close(final FileChannel channel, final boolean force)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        try
+        {
+            if (force && channel.isOpen())
+            {
+                channel.force(false);
+            }
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            LogLog.warn("Unable to close SMTP spool file", e);
+        }
+    }
+
+    /**
+     * Delivers the spooled messages in order, until closed.
+     */
+    private void replay()
+    {
+        long backoff = syncInterval;
+        try
+        {
+            while (true)
+            {
+                sync();
+                final Record next = next();
+                if (next == null)
+                {
+                    synchronized (this)
+                    {
+                        if (closed)
+                        {
+                            break;
+                        }
+                        wait(syncInterval);
+                    }
+                    continue;
+                }
+
+                try
+                {
+                    sender.send(next.message);
+                    acknowledge(next);
+                    backoff = syncInterval;
+                }
+                catch (SendFailedException | AddressException |
+                    IOException | RuntimeException e)
+                {   // trying again would not help
+                    LogLog.error("Unable to send spooled email, dropped", e);
+                    synchronized (this)
+                    {
+                        dropped++;
+                    }
+                    acknowledge(next);
+                }
+                catch (MessagingException e)
+                {
+                    if (closed)
+                    {
+                        break;
+                    }
+                    LogLog.warn("Unable to send spooled email, trying again " +
+                        "in " + backoff + "ms", e);
+                    pause(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+            }
+        }
+        catch (InterruptedException ignored)
+        {   // abandoned by close()
+        }
+        catch (IOException e)
+        {
+            LogLog.error("Unable to read SMTP spool [" + name + "], " +
+                "spooled emails will not be sent until it is reopened", e);
+        }
+        sync();
+    }
+
+    /**
+     * Waits before trying the server again, still forcing what is appended
+     * meanwhile to disk.
+     */
+    private void pause(final long delay) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + delay;
+        long remaining = delay;
+        while (remaining > 0)
+        {
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                wait(Math.min(remaining, syncInterval));
+            }
+            sync();
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forces what was written since the last time to disk, without holding
+     * up appending.
+     */
+    private void sync()
+    {
+        final FileChannel channel;
+        synchronized (this)
+        {
+            if (!dirty || segments.isEmpty())
+            {
+                return;
+            }
+            dirty = false;
+            channel = segments.getLast().channel;
+        }
+        try
+        {
+            if (channel != null)
+            {
+                channel.force(false);
+            }
+            ack.force(false);
+        }
+        catch (IOException e)
+        {   // closed by a roll, which forced it, or by close()
+            if (!closed)
+            {
+                LogLog.warn("Unable to sync SMTP spool [" + name + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the next message to deliver, deleting the segments delivered.
+     *
+     * @return the message, or null if there is none yet.
+     */
+    private synchronized Record next() throws IOException
+    {
+        while (!segments.isEmpty())
+        {
+            final Segment segment = segments.getFirst();
+            if (segment.sequence != readSequence)
+            {
+                readSequence = segment.sequence;
+                readOffset = 0;
+                readRecords = 0;
+            }
+            if (readOffset + RECORD_HEADER <= segment.size)
+            {
+                final Record next = read(segment);
+                if (next != null)
+                {
+                    return next;
+                }
+                LogLog.error("SMTP spool segment [" + segment.file +
+                    "] is corrupt, the rest of it is dropped");
+                dropped += segment.records - readRecords;
+                readOffset = segment.size;
+                readRecords = segment.records;
+            }
+            if (segments.size() == 1)
+            {   // still being appended to
+                return null;
+            }
+            segments.removeFirst();
+            delete(segment);
+        }
+        return null;
+    }
+
+    /**
+     * @return the record at the read offset, or null if it is corrupt.
+     */
+    private Record read(final Segment segment) throws IOException
+    {
+        final FileChannel channel = openReading(segment);
+        final ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(channel, head, readOffset);
+        final int length = head.getInt(0);
+        if (length < 0 || readOffset + RECORD_HEADER + length > segment.size)
+        {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        readFully(channel, ByteBuffer.wrap(payload), readOffset +
+            RECORD_HEADER);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != head.getInt(4))
+        {
+            return null;
+        }
+
+        final DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(payload));
+        try
+        {
+            final String to = readString(in);
+            final String subject = readString(in);
+            final String summary = readString(in);
+            final int nonAscii = in.readInt();
+            final int longestLine = in.readInt();
+            final byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Record(segment.sequence, readOffset,
+                readOffset + RECORD_HEADER + length, new OutboundMessage(
+                null, to, subject, body, nonAscii, longestLine, summary));
+        }
+        catch (IOException | NegativeArraySizeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Moves past a message, once it has been dealt with, unless its segment
+     * was dropped meanwhile.
+     */
+    private synchronized void acknowledge(final Record done)
+    {
+        if (done.sequence != readSequence || done.offset != readOffset)
+        {
+            return;
+        }
+        readOffset = done.next;
+        readRecords++;
+        ackBuffer.clear();
+        ackBuffer.putLong(0, readSequence);
+        ackBuffer.putLong(8, readOffset);
+        try
+        {
+            ack.write(ackBuffer, 0);
+            dirty = true;
+        }
+        catch (IOException e)
+        {   // the message may be sent again by the next run
+            LogLog.warn("Unable to record progress of SMTP spool [" + name +
+                "]", e);
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private final class Segment
+    {
+        private final long sequence;
+        private final File file;
+        /**
+         * Open for appending, for the last segment only.
+         */
+        private FileChannel channel;
+        private long size;
+        private long records;
+
+        Segment(final long sequence)
+        {
+            this.sequence = sequence;
+            this.file = new File(directory, SEGMENT_PREFIX +
+                String.format("%016x", sequence) + SEGMENT_SUFFIX);
+        }
+    }
+
+    /**
+     * A message read from the spool, and where it was.
+     */
+    private static final class Record
+    {
+        private final long sequence;
+        private final long offset;
+        private final long next;
+        private final OutboundMessage message;
+
+        Record(final long sequence, final long offset, final long next,
+            final OutboundMessage message)
+        {
+            this.sequence = sequence;
+            this.offset = offset;
+            this.next = next;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Exposes its bytes, so a record is never copied before it is written.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream
+    {
+        byte[] array()
+        {
+            return buf;
+        }
+
+        ByteBuffer buffer()
+        {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
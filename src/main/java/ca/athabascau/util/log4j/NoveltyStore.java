@@ -0,0 +1,203 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The error {@link Fingerprint}s an appender has already seen, kept in a
+ * memory-mapped file so that they survive restarts.  The file is a fixed size
+ * hash table of fingerprints and when each was last seen, so it never grows,
+ * and a lookup touches a handful of neighbouring slots.  When those slots are
+ * all taken, the one seen longest ago is reused; a fingerprint not seen for
+ * the caller's maximum age counts as never seen.
+ * <p/>
+ * A store is shared by every appender in the JVM naming the same file, and is
+ * written out and closed when the last of them releases it.  The slot count is
+ * fixed when the file is created.
+ */
+public class NoveltyStore
+{
+    /**
+     * The default number of fingerprints held, taking 1MB on disk.
+     */
+    public static final int DEFAULT_SLOTS = 65536;
+
+    private static final int MAGIC = 0x4e4f5631; // NOV1
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 16;
+    /**
+     * The most slots looked at for one fingerprint.
+     */
+    private static final int MAX_PROBES = 8;
+    /**
+     * Marks an empty slot; a fingerprint of 0 is stored as 1.
+     */
+    private static final long EMPTY = 0;
+
+    private static final Map<String, NoveltyStore> stores =
+        new HashMap<String, NoveltyStore>();
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int mask;
+    private int references;
+
+    private NoveltyStore(final String path, final int slots) throws IOException
+    {
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        try
+        {
+            final boolean ours = file.length() >= HEADER_BYTES &&
+                file.readInt() == MAGIC;
+            // keep the size it was created with
+            int slotCount = ours ? file.readInt() : 0;
+            if (!ours || Integer.bitCount(slotCount) != 1 ||
+                file.length() != HEADER_BYTES + (long) slotCount * SLOT_BYTES)
+            {   // new, a different size, or not ours
+                slotCount = Integer.highestOneBit(Math.max(MAX_PROBES, slots));
+                file.setLength(0);
+                file.setLength(HEADER_BYTES + (long) slotCount * SLOT_BYTES);
+                file.seek(0);
+                file.writeInt(MAGIC);
+                file.writeInt(slotCount);
+            }
+            mask = slotCount - 1;
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                file.length());
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store in the given file, creating it if need be, or shares
+     * the one already open in this JVM.  Each call must be matched by a call
+     * to {@link #release()}.
+     *
+     * @param path  the file
+     * @param slots the number of fingerprints held, rounded down to a power of
+     *              two, if the file is created.
+     *
+     * @return the store.
+     *
+     * @throws IOException if the file can not be mapped.
+     */
+    public static NoveltyStore open(final String path, final int slots)
+        throws IOException
+    {
+        final String key = new File(path).getCanonicalPath();
+        synchronized (stores)
+        {
+            NoveltyStore store = stores.get(key);
+            if (store == null)
+            {
+                store = new NoveltyStore(key, slots);
+                stores.put(key, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    /**
+     * Records that an error was seen.
+     *
+     * @param fingerprint the {@link Fingerprint} of the error
+     * @param timestamp   when it was seen
+     * @param maxAge      how long, in milliseconds, a fingerprint is
+     *                    remembered after it was last seen, 0 for ever.
+     *
+     * @return true if the error has not been seen before, or not within the
+     *         maximum age.
+     */
+    public synchronized boolean record(final long fingerprint,
+        final long timestamp, final long maxAge)
+    {
+        final long stored = fingerprint == EMPTY ? 1 : fingerprint;
+        // spread the bits, as fingerprints of similar errors may be close
+        int index = (int) (stored ^ stored >>> 32) * 0x9e3779b9 & mask;
+        int oldest = index;
+        long oldestSeen = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++)
+        {
+            final int position = HEADER_BYTES + index * SLOT_BYTES;
+            final long slot = map.getLong(position);
+            final long lastSeen = map.getLong(position + 8);
+            if (slot == stored || slot == EMPTY)
+            {
+                map.putLong(position, stored);
+                map.putLong(position + 8, Math.max(lastSeen, timestamp));
+                return slot == EMPTY ||
+                    maxAge > 0 && timestamp - lastSeen > maxAge;
+            }
+            if (lastSeen < oldestSeen)
+            {
+                oldest = index;
+                oldestSeen = lastSeen;
+            }
+            index = index + 1 & mask;
+        }
+        final int position = HEADER_BYTES + oldest * SLOT_BYTES;
+        map.putLong(position, stored);
+        map.putLong(position + 8, timestamp);
+        return true;
+    }
+
+    /**
+     * @return the number of fingerprints the store holds.
+     */
+    public int getSlots()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Releases the store, writing it out and closing the file once no
+     * appender in the JVM is using it.
+     */
+    public void release()
+    {
+        synchronized (stores)
+        {
+            if (--references > 0)
+            {
+                return;
+            }
+            stores.remove(path);
+        }
+        synchronized (this)
+        {
+            map.force();
+            try
+            {
+                file.close();
+            }
+            catch (IOException e)
+            {
+                LogLog.warn("Unable to close novelty store [" + path + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "NoveltyStore{" +
+            "path='" + path + '\'' +
+            ", slots=" + getSlots() +
+            ", references=" + references +
+            '}';
+    }
+}
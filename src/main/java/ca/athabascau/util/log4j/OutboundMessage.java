@@ -0,0 +1,230 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.FilterType;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An email waiting to be delivered.  It is a snapshot of everything needed to
+ * send it, taken while the appender still holds its lock, so it can be
+ * delivered later on another thread while logging carries on.  The body is
+ * kept as UTF-8 bytes, as it was copied out of the {@link RenderedBuffer},
+ * along with what decides its transfer encoding, so that it can be encoded
+ * straight into the SMTP connection without being scanned or copied.
+ */
+public final class OutboundMessage
+{
+    /**
+     * The longest line allowed in a 7bit body, by RFC 5322.
+     */
+    static final int MAX_7BIT_LINE = 998;
+
+    private final FilterType filter;
+    private final String to;
+    private final String subject;
+    private final byte[] body;
+    private final int nonAscii;
+    private final int longestLine;
+    private final String summary;
+    private final long timestamp;
+
+    /**
+     * @param filter  the filter which matched the body, which decides the
+     *                recipients and subject, or null for the appender's own.
+     * @param subject the subject, overriding both the filter and the
+     *                appender's, or null.
+     * @param body    the complete body of the email.
+     */
+    public OutboundMessage(final FilterType filter, final String subject,
+        final String body)
+    {
+        this(filter, subject, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private OutboundMessage(final FilterType filter, final String subject,
+        final byte[] body)
+    {
+        this(filter, subject, body, stats(body));
+    }
+
+    private OutboundMessage(final FilterType filter, final String subject,
+        final byte[] body, final BodyStats stats)
+    {
+        this(filter, subject, body, stats.getNonAscii(),
+            stats.getLongestLine());
+    }
+
+    /**
+     * @param filter      the filter which matched the body, which decides the
+     *                    recipients and subject, or null for the appender's
+     *                    own.
+     * @param subject     the subject, overriding both the filter and the
+     *                    appender's, or null.
+     * @param body        the complete body of the email, in UTF-8, which is
+     *                    not copied
+     * @param nonAscii    the bytes of the body which are not US-ASCII
+     * @param longestLine the bytes in the longest line of the body.
+     */
+    public OutboundMessage(final FilterType filter, final String subject,
+        final byte[] body, final int nonAscii, final int longestLine)
+    {
+        this(filter, subject, body, nonAscii, longestLine, null);
+    }
+
+    /**
+     * @param filter      the filter which matched the body, which decides the
+     *                    recipients and subject, or null for the appender's
+     *                    own.
+     * @param subject     the subject, overriding both the filter and the
+     *                    appender's, or null.
+     * @param body        the complete body of the email, in UTF-8, which is
+     *                    not copied
+     * @param nonAscii    the bytes of the body which are not US-ASCII
+     * @param longestLine the bytes in the longest line of the body
+     * @param summary     what to send inline if the body is sent as an
+     *                    attachment, or null.
+     */
+    public OutboundMessage(final FilterType filter, final String subject,
+        final byte[] body, final int nonAscii, final int longestLine,
+        final String summary)
+    {
+        this(filter, null, subject, body, nonAscii, longestLine, summary);
+    }
+
+    /**
+     * @param filter      the filter which matched the body, which decides the
+     *                    recipients and subject, or null for the appender's
+     *                    own.
+     * @param to          comma separated recipients, overriding both the
+     *                    filter's and the appender's, or null
+     * @param subject     the subject, overriding both the filter and the
+     *                    appender's, or null.
+     * @param body        the complete body of the email, in UTF-8, which is
+     *                    not copied
+     * @param nonAscii    the bytes of the body which are not US-ASCII
+     * @param longestLine the bytes in the longest line of the body
+     * @param summary     what to send inline if the body is sent as an
+     *                    attachment, or null.
+     */
+    public OutboundMessage(final FilterType filter, final String to,
+        final String subject, final byte[] body, final int nonAscii,
+        final int longestLine, final String summary)
+    {
+        this.filter = filter;
+        this.to = to;
+        this.subject = subject;
+        this.body = body;
+        this.nonAscii = nonAscii;
+        this.longestLine = longestLine;
+        this.summary = summary;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    private static BodyStats stats(final byte[] body)
+    {
+        final BodyStats stats = new BodyStats();
+        stats.add(body, body.length);
+        return stats;
+    }
+
+    /**
+     * @return the filter which matched the body, or null if none did.
+     */
+    public FilterType getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @return the priority of the filter, as the order emails are sent in,
+     *         {@link FilterType#RANK_NORMAL} if there is none.
+     */
+    public int getRank()
+    {
+        return filter == null ? FilterType.RANK_NORMAL : filter.getRank();
+    }
+
+    /**
+     * @return the recipients overriding the filter and appender recipients,
+     *         or null.
+     */
+    public String getTo()
+    {
+        return to;
+    }
+
+    /**
+     * @return the subject overriding the filter and appender subjects, or
+     *         null.
+     */
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    /**
+     * @return the body of the email, in UTF-8; it must not be modified.
+     */
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return true if the body is entirely US-ASCII.
+     */
+    public boolean isAscii()
+    {
+        return nonAscii == 0;
+    }
+
+    /**
+     * @return the bytes of the body which are not US-ASCII.
+     */
+    public int getNonAscii()
+    {
+        return nonAscii;
+    }
+
+    /**
+     * @return the bytes in the longest line of the body.
+     */
+    public int getLongestLine()
+    {
+        return longestLine;
+    }
+
+    /**
+     * @return what to send inline if the body is too large and is sent as an
+     *         attachment, or null.
+     */
+    public String getSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * Chooses the transfer encoding the way JavaMail's
+     * <code>MimeUtility.getEncoding()</code> would, without reading the body:
+     * 7bit if it can be sent as it is, quoted-printable if it is mostly ASCII,
+     * and base64 otherwise.
+     *
+     * @return the Content-Transfer-Encoding of the body.
+     */
+    public String getEncoding()
+    {
+        if (nonAscii == 0 && longestLine <= MAX_7BIT_LINE)
+        {
+            return "7bit";
+        }
+        return nonAscii < body.length / 3 ? "quoted-printable" : "base64";
+    }
+
+    /**
+     * @return when the message was created, in milliseconds since the epoch.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+}
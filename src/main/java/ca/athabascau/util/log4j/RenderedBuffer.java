@@ -0,0 +1,345 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.FilterType;
+
+/**
+ * The cyclic buffer of an {@link SMTPAppender}, holding each event as the
+ * UTF-8 bytes of its formatted text rather than as the {@link
+ * org.apache.log4j.spi.LoggingEvent} itself.  An event is formatted once, when
+ * it is accepted, after which only its bytes and the little that routing and
+ * fingerprinting need are kept; its MDC copy, throwable and location can be
+ * collected straight away, and building the email is a plain byte copy.
+ * <p/>
+ * The entries and their byte arrays are reused from one flush to the next, so
+ * a steady stream of events allocates nothing here.  An entry's array which
+ * grew beyond a few kilobytes, to hold a stack trace say, is let go when the
+ * buffer is cleared, so a full buffer of large events is not kept for the
+ * life of the appender; at most {@link #RETAINED_ENTRY_BYTES} are kept for
+ * each entry.
+ * <p/>
+ * Like the appender, this is not thread safe; it relies on the appender's
+ * lock.
+ */
+public class RenderedBuffer
+{
+    /**
+     * Entry arrays larger than this are released when the buffer is cleared.
+     */
+    static final int RETAINED_ENTRY_BYTES = 4 * 1024;
+
+    private Entry[] entries;
+    private int first;
+    private int count;
+    private long bytes;
+
+    /**
+     * @param maxSize the most events held; when full, adding an event
+     *                replaces the oldest.
+     */
+    public RenderedBuffer(final int maxSize)
+    {
+        entries = new Entry[Math.max(1, maxSize)];
+    }
+
+    /**
+     * Adds an event, replacing the oldest if the buffer is full.
+     *
+     * @param text        the formatted event
+     * @param timestamp   when the event happened
+     * @param fingerprint the {@link Fingerprint} of the event
+     * @param throwable   true if the event has a throwable
+     * @param filter      the filter the formatted event matched, or null.
+     */
+    public void add(final CharSequence text, final long timestamp,
+        final long fingerprint, final boolean throwable,
+        final FilterType filter)
+    {
+        if (count == entries.length)
+        {   // reuse the oldest
+            bytes -= entries[first].length;
+            first = (first + 1) % entries.length;
+            count--;
+        }
+        final int index = (first + count) % entries.length;
+        Entry entry = entries[index];
+        if (entry == null)
+        {
+            entry = new Entry();
+            entries[index] = entry;
+        }
+        entry.set(text, timestamp, fingerprint, throwable, filter);
+        bytes += entry.length;
+        count++;
+    }
+
+    /**
+     * Removes the oldest event, if there is one.
+     */
+    public void removeOldest()
+    {
+        if (count > 0)
+        {
+            final Entry entry = entries[first];
+            bytes -= entry.length;
+            entry.release();
+            first = (first + 1) % entries.length;
+            count--;
+        }
+    }
+
+    /**
+     * @param index the position of the entry, 0 being the oldest.
+     *
+     * @return the entry, which is only valid until the buffer is next added to
+     *         or cleared.
+     */
+    public Entry get(final int index)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException(
+                "index " + index + " of " + count);
+        }
+        return entries[(first + index) % entries.length];
+    }
+
+    /**
+     * @return the number of events held.
+     */
+    public int length()
+    {
+        return count;
+    }
+
+    /**
+     * @return the most events held.
+     */
+    public int getMaxSize()
+    {
+        return entries.length;
+    }
+
+    /**
+     * @return the number of bytes of formatted text held.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Removes every event, keeping the entries for reuse.
+     */
+    public void clear()
+    {
+        for (int index = 0; index < count; index++)
+        {
+            entries[(first + index) % entries.length].release();
+        }
+        first = 0;
+        count = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Changes the most events held, keeping the most recent.
+     *
+     * @param maxSize the new maximum.
+     */
+    public void resize(final int maxSize)
+    {
+        final Entry[] resized = new Entry[Math.max(1, maxSize)];
+        final int kept = Math.min(count, resized.length);
+        bytes = 0;
+        for (int index = 0; index < kept; index++)
+        {
+            resized[index] = get(count - kept + index);
+            bytes += resized[index].length;
+        }
+        entries = resized;
+        first = 0;
+        count = kept;
+    }
+
+    /**
+     * One formatted event.
+     */
+    public static final class Entry
+    {
+        private byte[] data = new byte[256];
+        private int length;
+        private int nonAscii;
+        private int firstLine;
+        private int longestLine;
+        private int lastLine;
+        private long timestamp;
+        private long fingerprint;
+        private boolean throwable;
+        private FilterType filter;
+
+        /**
+         * @return the array holding the UTF-8 text, from 0 to {@link
+         *         #getLength()}; it is reused, and must not be kept.
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        /**
+         * @return the number of bytes of UTF-8 text.
+         */
+        public int getLength()
+        {
+            return length;
+        }
+
+        /**
+         * @return true if the text is entirely US-ASCII.
+         */
+        public boolean isAscii()
+        {
+            return nonAscii == 0;
+        }
+
+        /**
+         * Adds the statistics of the text, worked out as it was encoded, to
+         * those of a body.
+         *
+         * @param stats the statistics of the body.
+         */
+        void addTo(final BodyStats stats)
+        {
+            stats.add(length, nonAscii, firstLine, longestLine, lastLine);
+        }
+
+        /**
+         * @return when the event happened.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * @return the fingerprint of the event.
+         */
+        public long getFingerprint()
+        {
+            return fingerprint;
+        }
+
+        /**
+         * @return true if the event has a throwable.
+         */
+        public boolean hasThrowable()
+        {
+            return throwable;
+        }
+
+        /**
+         * @return the filter the event matched when it was accepted, or null.
+         */
+        public FilterType getFilter()
+        {
+            return filter;
+        }
+
+        void set(final CharSequence text, final long timestamp,
+            final long fingerprint, final boolean throwable,
+            final FilterType filter)
+        {
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+            this.throwable = throwable;
+            this.filter = filter;
+            encode(text);
+        }
+
+        void release()
+        {
+            filter = null;
+            if (data.length > RETAINED_ENTRY_BYTES)
+            {
+                data = new byte[256];
+            }
+        }
+
+        /**
+         * Encodes the text as UTF-8, without the temporary arrays of {@link
+         * String#getBytes(java.nio.charset.Charset)}, noting the non-ASCII
+         * bytes and line lengths, which decide how the email is encoded.
+         */
+        private void encode(final CharSequence text)
+        {
+            final int chars = text.length();
+            if (data.length < chars)
+            {   // enough when it is ASCII, as it usually is
+                data = new byte[chars];
+            }
+            int position = 0;
+            int encodedNonAscii = 0;
+            int first = -1;
+            int longest = 0;
+            int lineStart = 0;
+            for (int index = 0; index < chars; index++)
+            {
+                if (position + 4 > data.length)
+                {
+                    final byte[] grown = new byte[Math.max(data.length * 2,
+                        position + 4 + (chars - index))];
+                    System.arraycopy(data, 0, grown, 0, position);
+                    data = grown;
+                }
+                final char c = text.charAt(index);
+                if (c < 0x80)
+                {
+                    if (c == '\n')
+                    {
+                        if (first < 0)
+                        {
+                            first = position;
+                        }
+                        longest = Math.max(longest, position - lineStart);
+                        lineStart = position + 1;
+                    }
+                    data[position++] = (byte) c;
+                    continue;
+                }
+                final int start = position;
+                if (c < 0x800)
+                {
+                    data[position++] = (byte) (0xc0 | c >> 6);
+                    data[position++] = (byte) (0x80 | c & 0x3f);
+                }
+                else if (Character.isHighSurrogate(c) && index + 1 < chars &&
+                    Character.isLowSurrogate(text.charAt(index + 1)))
+                {
+                    final int codePoint = Character.toCodePoint(c,
+                        text.charAt(++index));
+                    data[position++] = (byte) (0xf0 | codePoint >> 18);
+                    data[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    data[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    data[position++] = (byte) (0x80 | codePoint & 0x3f);
+                }
+                else if (Character.isSurrogate(c))
+                {   // unpaired, as String.getBytes() would, though still
+                    // counted as not ASCII
+                    data[position++] = '?';
+                }
+                else
+                {
+                    data[position++] = (byte) (0xe0 | c >> 12);
+                    data[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    data[position++] = (byte) (0x80 | c & 0x3f);
+                }
+                encodedNonAscii += position - start;
+            }
+            length = position;
+            nonAscii = encodedNonAscii;
+            firstLine = first < 0 ? position : first;
+            longestLine = Math.max(longest, position - lineStart);
+            lastLine = position - lineStart;
+        }
+    }
+}
@@ -30,14 +30,26 @@ import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.OptionHandler;
 import org.apache.log4j.spi.TriggeringEventEvaluator;
 
+import javax.activation.DataHandler;
 import javax.mail.*;
 import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Send an e-mail when a specific logging event occurs, typically on errors or
@@ -60,8 +72,9 @@ import java.util.Properties;
  * <p/>
  * Since 1.2.16, SMTP over SSL is supported by setting SMTPProtocol to "smpts".
  * <p/>
- * CRITICAL before adding to cyclic buffer, create a new event subclass which
- * accepts message, recipient, etc.
+ * Each event is formatted when it is added to the cyclic buffer, which keeps
+ * its text and the filter it matched rather than the event; see {@link
+ * RenderedBuffer}.
  *
  * @author Ceki G&uuml;lc&uuml;
  * @author Trenton D. Adams
@@ -78,6 +91,122 @@ public class SMTPAppender extends AppenderSkeleton
      * Five messages in 60 seconds
      */
     public static final int DEFAULT_FREQUENCY_MS = 60000;
+    /**
+     * The most keys with a flood budget of their own.
+     */
+    public static final int DEFAULT_FLOOD_PROTECTION_MAX_KEYS = 10000;
+    /**
+     * <b>BufferMode</b> keeping each event as it is, and formatting it when
+     * the buffer is sent.
+     */
+    public static final String BUFFER_MODE_EVENTS = "events";
+    /**
+     * <b>BufferMode</b> formatting each event when it is appended, and
+     * keeping only the formatted text.
+     */
+    public static final String BUFFER_MODE_RENDERED = "rendered";
+    /**
+     * <b>BufferOverflow</b> sending the buffer once it holds
+     * <b>BufferMaxBytes</b>.
+     */
+    public static final String BUFFER_OVERFLOW_FLUSH = "flush";
+    /**
+     * <b>BufferOverflow</b> dropping the oldest events once the buffer holds
+     * more than <b>BufferMaxBytes</b>.
+     */
+    public static final String BUFFER_OVERFLOW_EVICT = "evict";
+    /**
+     * <b>AsyncQueueOverflow</b> dropping an email offered to a full queue.
+     */
+    public static final String ASYNC_QUEUE_OVERFLOW_DROP_NEWEST =
+        "dropNewest";
+    /**
+     * <b>AsyncQueueOverflow</b> dropping the email waiting longest to make
+     * room.
+     */
+    public static final String ASYNC_QUEUE_OVERFLOW_DROP_OLDEST =
+        "dropOldest";
+    /**
+     * <b>AsyncQueueOverflow</b> making the logging thread wait, for at most
+     * <b>AsyncQueueBlockTimeout</b>, for room.
+     */
+    public static final String ASYNC_QUEUE_OVERFLOW_BLOCK = "block";
+    /**
+     * <b>AsyncQueueOverflow</b> merging an email into the last waiting for
+     * the same recipients and subject.
+     */
+    public static final String ASYNC_QUEUE_OVERFLOW_COALESCE = "coalesce";
+    /**
+     * <b>AsyncQueueOverflow</b> writing an email to the spool in
+     * <b>SpoolDirectory</b>.
+     */
+    public static final String ASYNC_QUEUE_OVERFLOW_SPILL = "spill";
+    /**
+     * The default milliseconds the logging thread waits for room in a full
+     * queue under {@link #ASYNC_QUEUE_OVERFLOW_BLOCK}.
+     */
+    public static final long DEFAULT_ASYNC_QUEUE_BLOCK_TIMEOUT = 1000;
+    /**
+     * How often a filter config which can not be watched is checked for
+     * modifications.
+     */
+    public static final long DEFAULT_FILTER_CONFIG_CHECK_INTERVAL = 10000;
+    /**
+     * The number of emails which may be waiting for the sender thread.
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 64;
+    /**
+     * How long closing the appender waits for queued emails to be sent.
+     */
+    public static final long ASYNC_CLOSE_TIMEOUT = 30000;
+    /**
+     * How long an SMTP connection may go unused before it is closed.
+     */
+    public static final long DEFAULT_SMTP_IDLE_TIMEOUT = 60000;
+    /**
+     * How long, in milliseconds, connecting to the SMTP server, or waiting
+     * for it to answer, may take, unless the mail session's connectiontimeout
+     * and timeout properties say otherwise.
+     */
+    public static final int DEFAULT_SMTP_TIMEOUT = 60000;
+    /**
+     * How long an error is remembered by the novelty store after it was last
+     * seen, 30 days.
+     */
+    public static final long DEFAULT_NOVELTY_MAX_AGE =
+        30L * 24 * 60 * 60 * 1000;
+    /**
+     * How often the summary of known errors is sent, hourly.
+     */
+    public static final long DEFAULT_NOVELTY_SUMMARY_INTERVAL = 3600000;
+    /**
+     * Added to the subject of the summary of known errors.
+     */
+    private static final String KNOWN_ERRORS_SUBJECT = " (known errors)";
+    /**
+     * The body buffer is let go after an email larger than this.
+     */
+    private static final int RETAINED_BODY_BYTES = 1024 * 1024;
+    /**
+     * The file name of a body sent as an attachment.
+     */
+    private static final String ATTACHMENT_NAME = "log.txt.gz";
+    /**
+     * The lines of each distinct event in the summary of an attached body.
+     */
+    private static final int SUMMARY_LINES = 5;
+    /**
+     * The most distinct events in the summary of an attached body.
+     */
+    private static final int SUMMARY_MAX_EVENTS = 50;
+    /**
+     * The lines of an attached body, with no summary, sent inline.
+     */
+    private static final int ATTACHMENT_PREVIEW_LINES = 50;
+    /**
+     * Separates the recipients from the subject in a digest key.
+     */
+    private static final char DIGEST_KEY_SEPARATOR = '\n';
 
     private String to;
     /**
@@ -101,16 +230,93 @@ public class SMTPAppender extends AppenderSkeleton
     private int smtpPort = -1;
     private boolean smtpDebug = false;
     private int bufferSize = 512;
+    private String bufferMode = BUFFER_MODE_EVENTS;
+    /**
+     * True if events are formatted when appended, as worked out from
+     * <b>BufferMode</b> when the options are activated.
+     */
+    private boolean rendering = false;
+    private long bufferMaxBytes = 0;
+    private String bufferOverflow = BUFFER_OVERFLOW_FLUSH;
+    private long bufferMaxLatency = 0;
+    /**
+     * The pending flush of a partly filled buffer, and which it is, so that a
+     * flush which has already been overtaken does nothing.
+     */
+    private ScheduledFuture<?> latencyFlush;
+    private long latencyFlushGeneration;
+    private boolean collapseRepeats = false;
+    private long attachmentThreshold = 0;
+    private String stackTraceFold;
+    private int stackTraceMaxFrames = 0;
+    private StackTraceCompactor compactor;
+    private int throwableCacheSize = ThrowableRenderCache.DEFAULT_SIZE;
+    private volatile ThrowableRenderCache throwableCache;
     private boolean locationInfo = false;
     private boolean sendOnClose = false;
 
+    /**
+     * The events formatted, with <b>BufferMode</b> rendered, or as they are
+     * sent.
+     */
+    private final RenderedBuffer rendered = new RenderedBuffer(bufferSize);
+    /**
+     * The events as they are, with <b>BufferMode</b> events, and any added by
+     * a subclass; they are formatted when the buffer is sent.
+     */
     protected CyclicBuffer cb = new CyclicBuffer(bufferSize);
+    /**
+     * Reused to format each event, under the appender's lock.
+     */
+    private final StringBuilder formatted = new StringBuilder();
+    /**
+     * Reused to put together the body of each email, under the appender's
+     * lock.
+     */
+    private ByteArrayOutputStream bodyBuffer = new ByteArrayOutputStream();
     protected Message msg;
+    private Session session;
+    private boolean async = false;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private String asyncQueueOverflow = ASYNC_QUEUE_OVERFLOW_DROP_NEWEST;
+    private long asyncQueueBlockTimeout = DEFAULT_ASYNC_QUEUE_BLOCK_TIMEOUT;
+    private int senderThreads = 1;
+    private int smtpRelayConcurrency = 0;
+    private volatile DeliveryQueue deliveryQueue;
+    private int smtpMaxConnections = 1;
+    private int smtpReservedConnections = 0;
+    private long smtpIdleTimeout = DEFAULT_SMTP_IDLE_TIMEOUT;
+    private volatile TransportPool transportPool;
+    private int circuitBreakerThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+    private long circuitBreakerOpenInterval =
+        CircuitBreaker.DEFAULT_OPEN_INTERVAL;
+    private volatile CircuitBreaker circuitBreaker;
+    private long digestWindow = 0;
+    private volatile DigestCollector digestCollector;
+    private String spoolDirectory;
+    private long spoolMaxBytes = MessageSpool.DEFAULT_MAX_BYTES;
+    private long spoolSyncInterval = MessageSpool.DEFAULT_SYNC_INTERVAL;
+    private volatile MessageSpool spool;
+    private String noveltyStore;
+    private int noveltyStoreSlots = NoveltyStore.DEFAULT_SLOTS;
+    private long noveltyMaxAge = DEFAULT_NOVELTY_MAX_AGE;
+    private long noveltySummaryInterval = DEFAULT_NOVELTY_SUMMARY_INTERVAL;
+    private NoveltyStore novelty;
+    /**
+     * The errors seen before, waiting for the next summary.
+     */
+    private RenderedBuffer known;
+    private ScheduledFuture<?> knownFlush;
 
     protected TriggeringEventEvaluator evaluator;
-    private ConfigType config;
+    private volatile FilterConfigWatcher filterConfigWatcher;
+    private long filterConfigCheckInterval =
+        DEFAULT_FILTER_CONFIG_CHECK_INTERVAL;
     private int floodFrequency;
     private long floodFrequencyMilliseconds;
+    private String floodProtectionKey = FloodLimiter.KEY_GLOBAL;
+    private int floodProtectionMaxKeys = DEFAULT_FLOOD_PROTECTION_MAX_KEYS;
+    private volatile FloodLimiter floodLimiter;
     private String floodEnabledMessage = "Mail logging flood protection " +
         "activated, no more errors will be sent until the frequency has " +
         "dropped below the configured threshold";
@@ -166,7 +372,7 @@ public class SMTPAppender extends AppenderSkeleton
      */
     private void initialize()
     {
-        // ensure that the SMTPAppender CyclicBuffer will be flushed on
+        // ensure that the SMTPAppender cyclic buffer will be flushed on
         // system exit.  Normally, the appender "close()" methods are only
         // called during a LogManager shutdown, not a JVM exit.
         final Runtime runtime = Runtime.getRuntime();
@@ -188,9 +394,131 @@ public class SMTPAppender extends AppenderSkeleton
     public void activateOptions()
     {
         super.activateOptions();
-        final Session session = createSession();
+        session = createSession();
         msg = new MimeMessage(session);
 
+        if (transportPool != null)
+        {
+            transportPool.close();
+            transportPool = null;
+        }
+        if (smtpIdleTimeout > 0)
+        {
+            transportPool = new TransportPool(session, smtpMaxConnections,
+                smtpReservedConnections, smtpIdleTimeout);
+        }
+        if (circuitBreaker != null)
+        {
+            circuitBreaker.close();
+        }
+        circuitBreaker = new CircuitBreaker(String.valueOf(name),
+            circuitBreakerThreshold, circuitBreakerOpenInterval);
+
+        if (digestCollector != null)
+        {
+            digestCollector.close();
+            digestCollector = null;
+        }
+        if (deliveryQueue != null)
+        {
+            deliveryQueue.close(ASYNC_CLOSE_TIMEOUT);
+            deliveryQueue = null;
+        }
+        if (spool != null)
+        {
+            spool.close(ASYNC_CLOSE_TIMEOUT);
+            spool = null;
+        }
+        if (spoolDirectory != null)
+        {
+            try
+            {
+                final MessageSpool opened = new MessageSpool(
+                    new File(spoolDirectory), String.valueOf(name),
+                    spoolMaxBytes, spoolSyncInterval, this::transmit);
+                opened.start();
+                spool = opened;
+            }
+            catch (IOException e)
+            {
+                LogLog.error("Unable to open SMTP spool [" + spoolDirectory +
+                    "], emails will not be spooled", e);
+            }
+        }
+        final DeliveryQueue.Overflow overflow = getOverflow();
+        if ((spool == null || overflow == DeliveryQueue.Overflow.SPILL) &&
+            (async || digestWindow > 0 || bufferMaxLatency > 0 ||
+                noveltyStore != null))
+        {   // digests, late buffers and summaries are sent from the
+            // scheduler, which must not wait on SMTP
+            final DeliveryQueue queue = new DeliveryQueue(String.valueOf(name),
+                asyncQueueSize, senderThreads, smtpReservedConnections,
+                (smtpHost == null ? "localhost" : smtpHost) + ':' + smtpPort,
+                smtpRelayConcurrency, this::deliver);
+            queue.setOverflow(overflow, asyncQueueBlockTimeout,
+                this::getDigestKey, getCoalesceMaxBytes(), this::spill);
+            queue.start();
+            deliveryQueue = queue;
+        }
+        if (digestWindow > 0)
+        {
+            digestCollector = new DigestCollector(digestWindow, this::dispatch);
+        }
+
+        compactor = stackTraceFold != null || stackTraceMaxFrames > 0 ?
+            new StackTraceCompactor(stackTraceFold, stackTraceMaxFrames) :
+            null;
+        throwableCache = throwableCacheSize > 0 ?
+            new ThrowableRenderCache(throwableCacheSize, compactor) : null;
+
+        rendering = BUFFER_MODE_RENDERED.equalsIgnoreCase(bufferMode);
+        if (!rendering && !BUFFER_MODE_EVENTS.equalsIgnoreCase(bufferMode))
+        {
+            LogLog.warn("Unknown BufferMode [" + bufferMode + "], using [" +
+                BUFFER_MODE_EVENTS + "]");
+        }
+        if (!rendering && bufferMaxBytes > 0)
+        {
+            LogLog.warn("BufferMaxBytes counts formatted events, using " +
+                "BufferMode [" + BUFFER_MODE_RENDERED + "]");
+            rendering = true;
+        }
+
+        closeNovelty();
+        if (noveltyStore != null)
+        {
+            try
+            {
+                novelty = NoveltyStore.open(noveltyStore, noveltyStoreSlots);
+                known = new RenderedBuffer(bufferSize);
+                knownFlush = AppenderScheduler.scheduleWithFixedDelay(
+                    this::flushKnown, noveltySummaryInterval);
+            }
+            catch (IOException e)
+            {
+                LogLog.error("Unable to open novelty store [" + noveltyStore +
+                    "], every error will be sent as it happens", e);
+            }
+        }
+
+        if (filterConfigWatcher != null)
+        {
+            filterConfigWatcher.stop();
+            filterConfigWatcher = null;
+        }
+        if (filterConfig != null)
+        {
+            filterConfigWatcher = new FilterConfigWatcher(filterConfig,
+                filterConfigCheckInterval);
+            filterConfigWatcher.start();
+        }
+
+        if (floodLimiter != null)
+        {
+            floodLimiter.close();
+        }
+        floodLimiter = new FloodLimiter(this);
+
         if (evaluator instanceof OptionHandler)
         {
             ((OptionHandler) evaluator).activateOptions();
@@ -237,13 +565,14 @@ public class SMTPAppender extends AppenderSkeleton
             msg.setRecipients(Message.RecipientType.BCC, parseAddress(bcc));
         }
 
-        if (filter != null)
+        final InternetAddress[] filterTo = filter == null ? null :
+            filter.getToAddresses();
+        if (filterTo != null)
         {
-            msg.setRecipients(Message.RecipientType.TO, parseAddress(
-                filter.getTo()));
+            msg.setRecipients(Message.RecipientType.TO, filterTo);
         }
         else if (to != null && to.length() > 0)
-        {
+        {   // a filter without recipients goes to the appender's
             msg.setRecipients(Message.RecipientType.TO, parseAddress(to));
         }
 
@@ -306,6 +635,17 @@ public class SMTPAppender extends AppenderSkeleton
         {
             props.put(prefix + ".port", String.valueOf(smtpPort));
         }
+        // JavaMail waits forever by default, which would leave a sender, or
+        // the thread closing idle connections, stuck on a dead server
+        for (final String timeout : new String[]{".connectiontimeout",
+            ".timeout"})
+        {
+            if (props.getProperty(prefix + timeout) == null)
+            {
+                props.put(prefix + timeout,
+                    String.valueOf(DEFAULT_SMTP_TIMEOUT));
+            }
+        }
 
         Authenticator auth = null;
         if (smtpPassword != null && smtpUsername != null)
@@ -336,6 +676,19 @@ public class SMTPAppender extends AppenderSkeleton
      * Perform SMTPAppender specific appending actions, mainly adding the event
      * to a cyclic buffer and checking if the event triggers an e-mail to be
      * sent.
+     * <p/>
+     * The evaluator decides first, so an event dropped by flood protection
+     * costs no more than that decision.  The event is then matched to its
+     * filter once, see {@link #findFilter(LoggingEvent)}; with the default
+     * {@link EmailEvaluator}, that match also decides whether the filter is
+     * logged and which flood budget the event counts against.  An event which
+     * is kept is then buffered as <b>BufferMode</b> says: as it is, or
+     * formatted straight away, on the logging thread, keeping only the
+     * formatted text.
+     * <p/>
+     * With a <b>NoveltyStore</b>, an error never seen before sends the buffer
+     * straight away, while one seen before is only kept for the next summary
+     * of known errors.
      */
     public void append(final LoggingEvent event)
     {
@@ -345,23 +698,95 @@ public class SMTPAppender extends AppenderSkeleton
             return;
         }
 
-        event.getThreadName();
-        event.getNDC();
-        event.getMDCCopy();
-        if (locationInfo)
+        // the default evaluator is given the filter and fingerprint worked
+        // out here, so that each is worked out once, and routing and the
+        // evaluator agree on the filter
+        final EmailEvaluator email = evaluator instanceof EmailEvaluator ?
+            (EmailEvaluator) evaluator : null;
+        if (email == null && !evaluator.isTriggeringEvent(event))
+        {
+            return;
+        }
+        // only needed before the flood check when floods are keyed by it
+        final boolean early = email != null && email.isKeyedByFingerprint();
+        long fingerprint = early ? Fingerprint.of(event) : 0;
+        if (email != null && !email.isBelowFlood(event, fingerprint))
+        {
+            return;
+        }
+
+        final FilterType filter = findFilter(event);
+        if (email != null ? !email.isTriggeringEvent(event, filter,
+            fingerprint) : filter != null && !filter.isLog().booleanValue())
+        {
+            return;
+        }
+        final NoveltyStore store = novelty;
+        if (!early && (store != null || rendering))
         {
-            event.getLocationInformation();
+            fingerprint = Fingerprint.of(event);
         }
-        event.getRenderedMessage();
-        event.getThrowableStrRep();
-        if (evaluator.isTriggeringEvent(event))
+        final boolean throwable = event.getThrowableInformation() != null;
+        if (store != null &&
+            !store.record(fingerprint, event.timeStamp, noveltyMaxAge))
+        {   // known, so it can wait for the summary
+            formatted.setLength(0);
+            formatEvent(event, formatted);
+            known.add(formatted, event.timeStamp, fingerprint, throwable,
+                filter);
+            if (known.length() >= known.getMaxSize())
+            {
+                sendKnown();
+            }
+            return;
+        }
+        if (rendering)
         {
+            formatted.setLength(0);
+            formatEvent(event, formatted);
+            rendered.add(formatted, event.timeStamp, fingerprint, throwable,
+                filter);
+        }
+        else
+        {   // kept until sent, so nothing may be left to this thread
+            event.getThreadName();
+            event.getNDC();
+            event.getMDCCopy();
+            if (locationInfo)
+            {
+                event.getLocationInformation();
+            }
+            event.getRenderedMessage();
+            event.getThrowableStrRep();
             cb.add(event);
         }
-        if (cb.length() >= cb.getMaxSize())
+        if (rendered.length() >= rendered.getMaxSize() ||
+            cb.length() >= cb.getMaxSize() || store != null)
         {
             sendBuffer();
         }
+        else if (bufferMaxBytes > 0 &&
+            rendered.getBytes() >= bufferMaxBytes)
+        {
+            if (BUFFER_OVERFLOW_EVICT.equalsIgnoreCase(bufferOverflow))
+            {   // always keep the newest, however large
+                while (rendered.getBytes() > bufferMaxBytes &&
+                    rendered.length() > 1)
+                {
+                    rendered.removeOldest();
+                }
+            }
+            else
+            {
+                sendBuffer();
+            }
+        }
+        if (bufferMaxLatency > 0 && latencyFlush == null && isBuffering())
+        {   // the first event of a new buffer
+            final long generation = ++latencyFlushGeneration;
+            latencyFlush = AppenderScheduler.schedule(
+                () -> flushLatent(generation), bufferMaxLatency);
+        }
     }
 
     /**
@@ -401,10 +826,44 @@ public class SMTPAppender extends AppenderSkeleton
     public synchronized void close()
     {
         this.closed = true;
-        if (sendOnClose && cb.length() > 0)
+        if (sendOnClose && isBuffering())
         {
             sendBuffer();
         }
+        if (latencyFlush != null)
+        {
+            latencyFlush.cancel(false);
+            latencyFlush = null;
+        }
+        closeNovelty();
+        if (digestCollector != null)
+        {
+            digestCollector.close();
+        }
+        if (deliveryQueue != null)
+        {
+            deliveryQueue.close(ASYNC_CLOSE_TIMEOUT);
+        }
+        if (spool != null)
+        {
+            spool.close(ASYNC_CLOSE_TIMEOUT);
+        }
+        if (transportPool != null)
+        {
+            transportPool.close();
+        }
+        if (circuitBreaker != null)
+        {
+            circuitBreaker.close();
+        }
+        if (filterConfigWatcher != null)
+        {
+            filterConfigWatcher.stop();
+        }
+        if (floodLimiter != null)
+        {
+            floodLimiter.close();
+        }
     }
 
     InternetAddress getAddress(final String addressStr)
@@ -453,38 +912,71 @@ public class SMTPAppender extends AppenderSkeleton
     }
 
     /**
-     * Layout body of email message.
+     * Lays out one event as it appears in the body of an email.  A stack
+     * trace the layout leaves out is appended, compacted if
+     * <b>StackTraceFold</b> or <b>StackTraceMaxFrames</b> is set, and
+     * rendered only once for repeats if <b>ThrowableCacheSize</b> is set.
+     *
+     * @param event the event
+     * @param sbuf  where to append the formatted event.
+     */
+    protected void formatEvent(final LoggingEvent event,
+        final StringBuilder sbuf)
+    {
+        sbuf.append(layout.format(event));
+        if (layout.ignoresThrowable() && throwableCache != null)
+        {
+            final String rendering = throwableCache.render(event);
+            if (rendering != null)
+            {
+                sbuf.append(rendering);
+            }
+        }
+        else if (layout.ignoresThrowable())
+        {
+            final String[] s = event.getThrowableStrRep();
+            if (s != null && compactor != null)
+            {
+                compactor.append(s, sbuf);
+            }
+            else if (s != null)
+            {
+                for (int j = 0; j < s.length; j++)
+                {
+                    sbuf.append(s[j]);
+                    sbuf.append(Layout.LINE_SEP);
+                }
+            }
+        }
+    }
+
+    /**
+     * Layout body of email message: the events in the buffer, formatted,
+     * between the layout's header and footer.  The events are left in the
+     * buffer, to be sent, but any in {@link #cb} are moved to the formatted
+     * events.
      *
      * @since 1.2.16
+     * @deprecated emails are no longer built from this, but one for each
+     *             route by {@link #createMessages()}.
      */
+    @Deprecated
     protected String formatBody()
     {
 
         // Note: this code already owns the monitor for this
-        // appender. This frees us from needing to synchronize on 'cb'.
+        // appender. This frees us from needing to synchronize on the buffer.
 
+        renderEvents();
         final StringBuilder sbuf = new StringBuilder();
         String t = layout.getHeader();
         if (t != null) sbuf.append(t);
-        final int len = cb.length();
+        final int len = rendered.length();
         for (int i = 0; i < len; i++)
         {
-            //sbuf.append(MimeUtility.encodeText(layout.format(cb.get())));
-            final LoggingEvent event = cb.get();
-
-            sbuf.append(layout.format(event));
-            if (layout.ignoresThrowable())
-            {
-                final String[] s = event.getThrowableStrRep();
-                if (s != null)
-                {
-                    for (int j = 0; j < s.length; j++)
-                    {
-                        sbuf.append(s[j]);
-                        sbuf.append(Layout.LINE_SEP);
-                    }
-                }
-            }
+            final RenderedBuffer.Entry entry = rendered.get(i);
+            sbuf.append(new String(entry.getData(), 0, entry.getLength(),
+                StandardCharsets.UTF_8));
         }
         t = layout.getFooter();
         if (t != null)
@@ -496,80 +988,34 @@ public class SMTPAppender extends AppenderSkeleton
     }
 
     /**
-     * Send the contents of the cyclic buffer as an e-mail message.
+     * Send the contents of the cyclic buffer as an e-mail message.  When
+     * <b>Async</b> is enabled the message is only queued, and is sent by the
+     * sender thread.  When <b>DigestWindow</b> is set the message is added to
+     * the digest for its recipients and subject instead, unless its filter's
+     * priority is {@link FilterType#PRIORITY_HIGH high}.
      */
     protected void sendBuffer()
     {
+        if (latencyFlush != null)
+        {
+            latencyFlush.cancel(false);
+            latencyFlush = null;
+        }
         try
         {
-            String body = formatBody();
-            FilterType filter = null;
-            config = ConfigType.load(filterConfig);
-
-            if (config != null)
-            {
-                filter = config.findMatch(body);
-                if (filter != null && filter.isLog().booleanValue())
-                {   // add message defined in config
-                    body = filter.getMessage() + "\n\n" + body;
-                }
-            }
-
-            boolean allAscii = true;
-            for (int i = 0; i < body.length() && allAscii; i++)
-            {
-                allAscii = body.charAt(i) <= 0x7F;
-            }
-            MimeBodyPart part;
-            if (allAscii)
-            {
-                part = new MimeBodyPart();
-                part.setContent(body, layout.getContentType());
-            }
-            else
+            final DigestCollector digest = digestCollector;
+            for (final OutboundMessage message : createMessages())
             {
-                try
+                if (digest != null &&
+                    message.getRank() != FilterType.RANK_HIGH)
                 {
-                    final ByteArrayOutputStream os =
-                        new ByteArrayOutputStream();
-                    final Writer writer = new OutputStreamWriter(
-                        MimeUtility.encode(os, "quoted-printable"), "UTF-8");
-                    writer.write(body);
-                    writer.close();
-                    final InternetHeaders headers = new InternetHeaders();
-                    headers.setHeader("Content-Type",
-                        layout.getContentType() + "; charset=UTF-8");
-                    headers.setHeader("Content-Transfer-Encoding",
-                        "quoted-printable");
-                    part = new MimeBodyPart(headers, os.toByteArray());
+                    digest.add(getDigestKey(message), message);
                 }
-                catch (Exception ignored)
+                else
                 {
-                    final StringBuilder sbuf = new StringBuilder(body);
-                    for (int i = 0; i < sbuf.length(); i++)
-                    {
-                        if (sbuf.charAt(i) >= 0x80)
-                        {
-                            sbuf.setCharAt(i, '?');
-                        }
-                    }
-                    part = new MimeBodyPart();
-                    part.setContent(sbuf.toString(), layout.getContentType());
+                    dispatch(message);
                 }
             }
-
-            final Multipart mp = new MimeMultipart();
-            mp.addBodyPart(part);
-            addressMessage(msg, filter);
-            msg.setContent(mp);
-
-            msg.setSentDate(new Date());
-            Transport.send(msg);
-        }
-        catch (MessagingException e)
-        {
-            LogLog.error("Error occurred while sending e-mail notification.",
-                e);
         }
         catch (RuntimeException e)
         {
@@ -578,50 +1024,749 @@ public class SMTPAppender extends AppenderSkeleton
         }
     }
 
-
     /**
-     * Returns value of the <b>EvaluatorClass</b> option.
+     * Sends the buffer because its oldest event has waited
+     * <b>BufferMaxLatency</b>, unless it has been sent since this flush was
+     * scheduled.  Called by the {@link AppenderScheduler}.
+     *
+     * @param generation identifies the buffer the flush was scheduled for.
      */
-    public String getEvaluatorClass()
+    private synchronized void flushLatent(final long generation)
     {
-        return evaluator == null ? null : evaluator.getClass().getName();
+        if (generation != latencyFlushGeneration || latencyFlush == null)
+        {   // overtaken by a full buffer
+            return;
+        }
+        latencyFlush = null;
+        if (!closed && isBuffering())
+        {
+            sendBuffer();
+        }
     }
 
     /**
-     * Returns value of the <b>From</b> option.
+     * Sends the summary of known errors, if there are any.  Called by the
+     * {@link AppenderScheduler}.
      */
-    public String getFrom()
+    private synchronized void flushKnown()
     {
-        return from;
+        if (!closed && known != null && known.length() > 0)
+        {
+            sendKnown();
+        }
     }
 
     /**
-     * Get the reply addresses.
-     *
-     * @return reply addresses as comma separated string, may be null.
-     *
-     * @since 1.2.16
+     * Sends the known errors as a summary, one message per route, with
+     * repeats always collapsed.  It is not added to a digest, being one
+     * already.
      */
-    public String getReplyTo()
+    private void sendKnown()
     {
-        return replyTo;
+        try
+        {
+            for (final OutboundMessage message : createMessages(known, true))
+            {
+                final FilterType filter = message.getFilter();
+                final String resolved = filter != null &&
+                    filter.getSubject() != null ? filter.getSubject() :
+                    subject;
+                dispatch(new OutboundMessage(filter,
+                    String.valueOf(resolved) + KNOWN_ERRORS_SUBJECT,
+                    message.getBody(), message.getNonAscii(),
+                    message.getLongestLine()));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            LogLog.error("Error occurred while sending known errors summary.",
+                e);
+        }
     }
 
     /**
-     * Returns value of the <b>Subject</b> option.
+     * Sends any summary of known errors, and lets go of the novelty store.
      */
-    public String getSubject()
+    private void closeNovelty()
     {
-        return subject;
+        if (knownFlush != null)
+        {
+            knownFlush.cancel(false);
+            knownFlush = null;
+        }
+        if (known != null && known.length() > 0)
+        {
+            sendKnown();
+        }
+        known = null;
+        if (novelty != null)
+        {
+            novelty.release();
+            novelty = null;
+        }
     }
 
     /**
-     * The <b>From</b> option takes a string value which should be a e-mail
-     * address of the sender.
+     * Takes everything out of the cyclic buffer, and turns it into one message
+     * per route.  Each event was matched against the filter config on its own
+     * when it was accepted, and goes to the recipients, with the subject and
+     * message, of the filter it matched, or of the appender if it matched
+     * none.  A buffer holding events for several groups of recipients is then
+     * delivered correctly, whatever the <b>BufferSize</b>.  The events are
+     * already formatted, so each body is a copy of their bytes.
+     * <p/>
+     * With <b>CollapseRepeats</b>, an exception logged more than once for the
+     * same route, as identified by its {@link Fingerprint}, appears once, in
+     * full, where it first occurred, followed by how many times it occurred
+     * and when it first and last did.
+     *
+     * @return the messages, in the order each route first appeared in the
+     *         buffer.
      */
-    public void setFrom(final String from)
+    protected List<OutboundMessage> createMessages()
     {
-        this.from = from;
+        renderEvents();
+        return createMessages(rendered, collapseRepeats);
+    }
+
+    /**
+     * Formats the events in {@link #cb}, in order, into the formatted events,
+     * matching each to its filter again, as the filter is not kept with the
+     * event.
+     */
+    private void renderEvents()
+    {
+        final int len = cb.length();
+        for (int i = 0; i < len; i++)
+        {
+            final LoggingEvent event = cb.get();
+            formatted.setLength(0);
+            formatEvent(event, formatted);
+            rendered.add(formatted, event.timeStamp, Fingerprint.of(event),
+                event.getThrowableInformation() != null, findFilter(event));
+        }
+    }
+
+    /**
+     * @return true if the buffer holds any events.
+     */
+    private boolean isBuffering()
+    {
+        return rendered.length() > 0 || cb.length() > 0;
+    }
+
+    /**
+     * Takes everything out of a buffer, and turns it into one message per
+     * route.
+     *
+     * @param buffer   the buffer
+     * @param collapse true to collapse the repeats of an exception.
+     *
+     * @return the messages, in the order each route first appeared in the
+     *         buffer.
+     *
+     * @see #createMessages()
+     */
+    private List<OutboundMessage> createMessages(final RenderedBuffer buffer,
+        final boolean collapse)
+    {
+        // Note: this code already owns the monitor for this
+        // appender. This frees us from needing to synchronize on the buffer.
+
+        final byte[] header = toBytes(layout.getHeader());
+        final byte[] footer = toBytes(layout.getFooter());
+        // keyed by identity, as filters do not override equals(), null for
+        // the appender's own recipients
+        final Map<FilterType, Route> routes =
+            new LinkedHashMap<FilterType, Route>();
+        final int len = buffer.length();
+        for (int i = 0; i < len; i++)
+        {
+            final RenderedBuffer.Entry entry = buffer.get(i);
+            final Route route = getRoute(routes, entry.getFilter());
+            route.add(i);
+            if (collapse && entry.hasThrowable())
+            {   // count the repeats first, so the first occurrence can say so
+                route.count(entry);
+            }
+        }
+
+        final List<OutboundMessage> messages =
+            new ArrayList<OutboundMessage>(routes.size());
+        DateFormat dateFormat = null;
+        int largest = 0;
+        for (final Route route : routes.values())
+        {   // one route at a time, in the one reused buffer
+            bodyBuffer.reset();
+            final BodyStats stats = new BodyStats();
+            if (route.filter != null)
+            {   // add message defined in config
+                write(toBytes(route.filter.getMessage() + "\n\n"), stats);
+            }
+            write(header, stats);
+            for (int index = 0; index < route.length; index++)
+            {
+                final RenderedBuffer.Entry entry =
+                    buffer.get(route.entries[index]);
+                final Repeat repeat = collapse && entry.hasThrowable() ?
+                    route.repeats.get(entry.getFingerprint()) : null;
+                if (repeat != null && repeat.written)
+                {
+                    continue;
+                }
+                bodyBuffer.write(entry.getData(), 0, entry.getLength());
+                entry.addTo(stats);
+                if (repeat != null && repeat.count > 1)
+                {
+                    if (dateFormat == null)
+                    {
+                        dateFormat = new SimpleDateFormat(
+                            "yyyy-MM-dd HH:mm:ss,SSS");
+                    }
+                    write(toBytes("[" + repeat.count +
+                        " occurrences, first at " +
+                        dateFormat.format(new Date(repeat.first)) +
+                        ", last at " +
+                        dateFormat.format(new Date(repeat.last)) + "]\n"),
+                        stats);
+                }
+                if (repeat != null)
+                {
+                    repeat.written = true;
+                }
+            }
+            write(footer, stats);
+            largest = Math.max(largest, bodyBuffer.size());
+            final String summary = attachmentThreshold > 0 &&
+                bodyBuffer.size() > attachmentThreshold ?
+                summarize(buffer, route, bodyBuffer.size()) : null;
+            messages.add(new OutboundMessage(route.filter, null,
+                bodyBuffer.toByteArray(), stats.getNonAscii(),
+                stats.getLongestLine(), summary));
+        }
+        buffer.clear();
+        if (largest > RETAINED_BODY_BYTES)
+        {   // let one huge email go
+            bodyBuffer = new ByteArrayOutputStream();
+        }
+        return messages;
+    }
+
+    /**
+     * Sums up the events of a route too large to be sent inline: the first
+     * lines of each distinct event, by {@link Fingerprint}, with how often it
+     * occurred.
+     */
+    private String summarize(final RenderedBuffer buffer, final Route route,
+        final int bytes)
+    {
+        // the position of the first occurrence, and the number
+        final Map<Long, int[]> distinct = new LinkedHashMap<Long, int[]>();
+        for (int index = 0; index < route.length; index++)
+        {
+            final Long fingerprint = Long.valueOf(
+                buffer.get(route.entries[index]).getFingerprint());
+            final int[] seen = distinct.get(fingerprint);
+            if (seen == null)
+            {
+                distinct.put(fingerprint,
+                    new int[]{route.entries[index], 1});
+            }
+            else
+            {
+                seen[1]++;
+            }
+        }
+
+        final StringBuilder summary = new StringBuilder();
+        if (route.filter != null)
+        {
+            summary.append(route.filter.getMessage()).append("\n\n");
+        }
+        summary.append(route.length).append(" events, ").append(bytes)
+            .append(" bytes, are in the attached ").append(ATTACHMENT_NAME)
+            .append("; the first lines of each of the ")
+            .append(distinct.size()).append(" distinct events follow.\n\n");
+        int shown = 0;
+        for (final int[] seen : distinct.values())
+        {
+            if (shown++ == SUMMARY_MAX_EVENTS)
+            {
+                summary.append("... and ")
+                    .append(distinct.size() - SUMMARY_MAX_EVENTS)
+                    .append(" more\n");
+                break;
+            }
+            if (seen[1] > 1)
+            {
+                summary.append('[').append(seen[1]).append(" occurrences]\n");
+            }
+            final RenderedBuffer.Entry entry = buffer.get(seen[0]);
+            summary.append(firstLines(entry.getData(), entry.getLength(),
+                SUMMARY_LINES)).append('\n');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return the first lines of UTF-8 text, each ending with a line feed.
+     */
+    private static String firstLines(final byte[] data, final int length,
+        final int lines)
+    {
+        int end = 0;
+        int line = 0;
+        while (end < length && line < lines)
+        {
+            if (data[end++] == '\n')
+            {
+                line++;
+            }
+        }
+        final String text = new String(data, 0, end, StandardCharsets.UTF_8);
+        return text.endsWith("\n") ? text : text + '\n';
+    }
+
+    private void write(final byte[] bytes, final BodyStats stats)
+    {
+        bodyBuffer.write(bytes, 0, bytes.length);
+        stats.add(bytes, bytes.length);
+    }
+
+    private static Route getRoute(final Map<FilterType, Route> routes,
+        final FilterType filter)
+    {
+        Route route = routes.get(filter);
+        if (route == null)
+        {
+            route = new Route(filter);
+            routes.put(filter, route);
+        }
+        return route;
+    }
+
+    private static byte[] toBytes(final String text)
+    {
+        return text == null ? new byte[0] :
+            text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The events of the buffer going to one filter's recipients, or to the
+     * appender's own.
+     */
+    private static final class Route
+    {
+        private final FilterType filter;
+        /**
+         * The positions of the events in the buffer, in order.
+         */
+        private int[] entries = new int[16];
+        private int length;
+        /**
+         * The exceptions in this route, by fingerprint, when collapsing
+         * repeats.
+         */
+        private final Map<Long, Repeat> repeats = new HashMap<Long, Repeat>();
+
+        Route(final FilterType filter)
+        {
+            this.filter = filter;
+        }
+
+        void add(final int entry)
+        {
+            if (length == entries.length)
+            {
+                entries = Arrays.copyOf(entries, length * 2);
+            }
+            entries[length++] = entry;
+        }
+
+        void count(final RenderedBuffer.Entry entry)
+        {
+            final Long fingerprint = Long.valueOf(entry.getFingerprint());
+            Repeat repeat = repeats.get(fingerprint);
+            if (repeat == null)
+            {
+                repeat = new Repeat(entry.getTimestamp());
+                repeats.put(fingerprint, repeat);
+            }
+            repeat.count++;
+            repeat.first = Math.min(repeat.first, entry.getTimestamp());
+            repeat.last = Math.max(repeat.last, entry.getTimestamp());
+        }
+    }
+
+    /**
+     * How often one exception occurred in a route, and whether its first
+     * occurrence has been written.
+     */
+    private static final class Repeat
+    {
+        private int count;
+        private long first;
+        private long last;
+        private boolean written;
+
+        Repeat(final long timestamp)
+        {
+            this.first = timestamp;
+            this.last = timestamp;
+        }
+    }
+
+    /**
+     * Identifies the recipients and subject the message will be sent with,
+     * the way {@link #addressMessage(Message, FilterType)} resolves them, so
+     * that only messages which would be addressed alike share a digest.
+     *
+     * @param message the message.
+     *
+     * @return the digest key.
+     */
+    String getDigestKey(final OutboundMessage message)
+    {
+        final FilterType filter = message.getFilter();
+        final InternetAddress[] addresses = filter == null ? null :
+            filter.getToAddresses();
+        final StringBuilder key = new StringBuilder();
+        if (addresses != null)
+        {
+            for (final InternetAddress address : addresses)
+            {
+                key.append(address.getAddress()).append(',');
+            }
+        }
+        else if (to != null)
+        {
+            key.append(to);
+        }
+        key.append(DIGEST_KEY_SEPARATOR);
+        if (message.getSubject() != null)
+        {
+            key.append(message.getSubject());
+        }
+        else if (filter != null && filter.getSubject() != null)
+        {
+            key.append(filter.getSubject());
+        }
+        else if (subject != null)
+        {
+            key.append(subject);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Delivers the message now, queues it for the sender thread if
+     * <b>Async</b> is enabled, or spools it for the replayer if a
+     * <b>SpoolDirectory</b> is set.  With both, the spool only takes the
+     * emails the queue has no room for, when <b>AsyncQueueOverflow</b> is
+     * {@link #ASYNC_QUEUE_OVERFLOW_SPILL}.
+     *
+     * @param message the message to send.
+     */
+    void dispatch(final OutboundMessage message)
+    {
+        final DeliveryQueue queue = deliveryQueue;
+        if (queue != null)
+        {
+            queue.offer(message);
+        }
+        else if (!spill(message))
+        {
+            deliver(message);
+        }
+    }
+
+    /**
+     * Spools the message for the replayer, if a <b>SpoolDirectory</b> is set.
+     * The spool keeps no filters, so it is addressed as it would be.
+     *
+     * @param message the message to send.
+     *
+     * @return false if there is no spool, or it could not take the message.
+     */
+    private boolean spill(final OutboundMessage message)
+    {
+        final MessageSpool messageSpool = spool;
+        if (messageSpool == null)
+        {
+            return false;
+        }
+        final FilterType filter = message.getFilter();
+        return messageSpool.append(filter == null ? message :
+            new OutboundMessage(null, filter.getTo(),
+                message.getSubject() != null ? message.getSubject() :
+                    filter.getSubject(), message.getBody(),
+                message.getNonAscii(), message.getLongestLine(),
+                message.getSummary()));
+    }
+
+    /**
+     * @return the most bytes an email coalesced in the queue may have: the
+     *         smaller of <b>BufferMaxBytes</b> and <b>AttachmentThreshold</b>
+     *         set, or {@link DeliveryQueue#DEFAULT_COALESCE_MAX_BYTES}.
+     */
+    private long getCoalesceMaxBytes()
+    {
+        long maxBytes = Long.MAX_VALUE;
+        if (bufferMaxBytes > 0)
+        {
+            maxBytes = bufferMaxBytes;
+        }
+        if (attachmentThreshold > 0)
+        {
+            maxBytes = Math.min(maxBytes, attachmentThreshold);
+        }
+        return maxBytes == Long.MAX_VALUE ?
+            DeliveryQueue.DEFAULT_COALESCE_MAX_BYTES : maxBytes;
+    }
+
+    /**
+     * @return the policy for <b>AsyncQueueOverflow</b>, dropping the newest
+     *         email if it is unknown or needs a spool there is not.
+     */
+    private DeliveryQueue.Overflow getOverflow()
+    {
+        DeliveryQueue.Overflow overflow = DeliveryQueue.Overflow.DROP_NEWEST;
+        if (ASYNC_QUEUE_OVERFLOW_DROP_OLDEST.equalsIgnoreCase(
+            asyncQueueOverflow))
+        {
+            overflow = DeliveryQueue.Overflow.DROP_OLDEST;
+        }
+        else if (ASYNC_QUEUE_OVERFLOW_BLOCK.equalsIgnoreCase(
+            asyncQueueOverflow))
+        {
+            overflow = DeliveryQueue.Overflow.BLOCK;
+        }
+        else if (ASYNC_QUEUE_OVERFLOW_COALESCE.equalsIgnoreCase(
+            asyncQueueOverflow))
+        {
+            overflow = DeliveryQueue.Overflow.COALESCE;
+        }
+        else if (ASYNC_QUEUE_OVERFLOW_SPILL.equalsIgnoreCase(
+            asyncQueueOverflow))
+        {
+            if (spool != null)
+            {
+                overflow = DeliveryQueue.Overflow.SPILL;
+            }
+            else
+            {
+                LogLog.warn("AsyncQueueOverflow [" + asyncQueueOverflow +
+                    "] needs a SpoolDirectory, emails will be dropped " +
+                    "instead for appender [" + name + "]");
+            }
+        }
+        else if (!ASYNC_QUEUE_OVERFLOW_DROP_NEWEST.equalsIgnoreCase(
+            asyncQueueOverflow))
+        {
+            LogLog.warn("Unknown AsyncQueueOverflow [" + asyncQueueOverflow +
+                "], emails will be dropped instead for appender [" + name +
+                "]");
+        }
+        return overflow;
+    }
+
+    /**
+     * Builds the email for the message, and sends it.  The body is encoded as
+     * it is written to the SMTP server, with the transfer encoding chosen by
+     * {@link OutboundMessage#getEncoding()}.  This may take as long as the
+     * SMTP server does to answer, so it is only called from the logging thread
+     * when <b>Async</b> is disabled.
+     *
+     * @param outbound the message to send.
+     */
+    protected void deliver(final OutboundMessage outbound)
+    {
+        try
+        {
+            transmit(outbound);
+        }
+        catch (MessagingException e)
+        {
+            reportFailure(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            LogLog.error("Unable to encode SMTP subject", e);
+        }
+        catch (RuntimeException e)
+        {
+            reportFailure(e);
+        }
+    }
+
+    /**
+     * Reports an email which was not sent, through the circuit breaker, so
+     * that an unreachable server does not print a stack trace per email.
+     */
+    private void reportFailure(final Exception e)
+    {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null)
+        {
+            breaker.report("Error occurred while sending e-mail notification.",
+                e);
+        }
+        else
+        {
+            LogLog.error("Error occurred while sending e-mail notification.",
+                e);
+        }
+    }
+
+    /**
+     * Builds the email for the message, and sends it, telling the caller if
+     * it was not sent.
+     *
+     * @param outbound the message to send.
+     *
+     * @throws MessagingException           if it was not sent
+     * @throws UnsupportedEncodingException if the subject can not be encoded.
+     */
+    void transmit(final OutboundMessage outbound)
+        throws MessagingException, UnsupportedEncodingException
+    {
+        final byte[] body = outbound.getBody();
+        final Multipart mp = new MimeMultipart();
+        if (attachmentThreshold > 0 && body.length > attachmentThreshold)
+        {   // a summary, and the whole body compressed as it is sent
+            final MimeBodyPart summary = new MimeBodyPart();
+            summary.setText(outbound.getSummary() != null ?
+                outbound.getSummary() : "The first lines of the " +
+                "attached " + ATTACHMENT_NAME + " follow.\n\n" +
+                firstLines(body, body.length, ATTACHMENT_PREVIEW_LINES),
+                "UTF-8");
+            mp.addBodyPart(summary);
+            final MimeBodyPart attachment = new MimeBodyPart();
+            attachment.setDataHandler(new GzipDataSource(body,
+                ATTACHMENT_NAME).createDataHandler());
+            attachment.setFileName(ATTACHMENT_NAME);
+            attachment.setDisposition(Part.ATTACHMENT);
+            attachment.setHeader("Content-Transfer-Encoding", "base64");
+            mp.addBodyPart(attachment);
+        }
+        else
+        {   // the body is encoded straight from its bytes into the SMTP
+            // connection, in the encoding chosen from its statistics, so
+            // it is neither scanned nor copied again
+            final MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new ByteArrayDataSource(
+                body, getContentType() + "; charset=" +
+                (outbound.isAscii() ? "us-ascii" : "UTF-8"))));
+            part.setHeader("Content-Transfer-Encoding",
+                outbound.getEncoding());
+            mp.addBodyPart(part);
+        }
+
+        final Message message = new MimeMessage(
+            session == null ? createSession() : session);
+        addressMessage(message, outbound.getFilter());
+        if (outbound.getTo() != null)
+        {
+            message.setRecipients(Message.RecipientType.TO,
+                InternetAddress.parse(outbound.getTo(), true));
+        }
+        if (outbound.getSubject() != null)
+        {
+            message.setSubject(MimeUtility.encodeText(
+                outbound.getSubject(), "UTF-8", null));
+        }
+        message.setContent(mp);
+
+        message.setSentDate(new Date());
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allow())
+        {
+            throw new MessagingException("SMTP server is failing, email " +
+                "not sent until it answers again");
+        }
+        try
+        {
+            final TransportPool pool = transportPool;
+            if (pool != null)
+            {
+                pool.send(message, outbound.getRank() == FilterType.RANK_HIGH);
+            }
+            else
+            {
+                Transport.send(message);
+            }
+        }
+        catch (SendFailedException e)
+        {   // refused for its addresses, the server is fine
+            if (breaker != null)
+            {
+                breaker.success();
+            }
+            throw e;
+        }
+        catch (MessagingException | RuntimeException e)
+        {
+            if (breaker != null)
+            {
+                breaker.failure();
+            }
+            throw e;
+        }
+        if (breaker != null)
+        {
+            breaker.success();
+        }
+    }
+
+
+    private String getContentType()
+    {
+        return layout == null ? "text/plain" : layout.getContentType();
+    }
+
+    /**
+     * Returns value of the <b>EvaluatorClass</b> option.
+     */
+    public String getEvaluatorClass()
+    {
+        return evaluator == null ? null : evaluator.getClass().getName();
+    }
+
+    /**
+     * Returns value of the <b>From</b> option.
+     */
+    public String getFrom()
+    {
+        return from;
+    }
+
+    /**
+     * Get the reply addresses.
+     *
+     * @return reply addresses as comma separated string, may be null.
+     *
+     * @since 1.2.16
+     */
+    public String getReplyTo()
+    {
+        return replyTo;
+    }
+
+    /**
+     * Returns value of the <b>Subject</b> option.
+     */
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    /**
+     * The <b>From</b> option takes a string value which should be a e-mail
+     * address of the sender.
+     */
+    public void setFrom(final String from)
+    {
+        this.from = from;
     }
 
     /**
@@ -629,35 +1774,477 @@ public class SMTPAppender extends AppenderSkeleton
      *
      * @param addresses reply addresses as comma separated string, may be null.
      *
-     * @since 1.2.16
+     * @since 1.2.16
+     */
+    public void setReplyTo(final String addresses)
+    {
+        this.replyTo = addresses;
+    }
+
+
+    /**
+     * The <b>Subject</b> option takes a string value which should be a the
+     * subject of the e-mail message.
+     */
+    public void setSubject(final String subject)
+    {
+        this.subject = subject;
+    }
+
+
+    /**
+     * The <b>BufferSize</b> option takes a positive integer representing the
+     * maximum number of logging events to collect in a cyclic buffer. When the
+     * <code>BufferSize</code> is reached, oldest events are deleted as new
+     * events are added to the buffer. By default the size of the cyclic buffer
+     * is 512 events.
+     */
+    public void setBufferSize(final int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+        rendered.resize(bufferSize);
+        cb.resize(bufferSize);
+    }
+
+    /**
+     * @return how the buffer keeps events.
+     *
+     * @see #setBufferMode(String)
+     */
+    public final String getBufferMode()
+    {
+        return bufferMode;
+    }
+
+    /**
+     * How the buffer keeps events until it is sent; "events" keeps each
+     * event as it is, with its MDC, stack trace and location information,
+     * and formats it when the buffer is sent; "rendered" formats each event
+     * when it is appended, and keeps only the formatted text, in UTF-8, so a
+     * buffer of deep stack traces takes a fraction of the memory, and sending
+     * it is a copy of bytes.  <b>BufferMaxBytes</b> counts formatted events,
+     * so setting it uses rendered.
+     * <p/>
+     * <strong>Default:</strong> {@link #BUFFER_MODE_EVENTS}
+     *
+     * @param bufferMode events or rendered.
+     */
+    public final void setBufferMode(final String bufferMode)
+    {
+        this.bufferMode = bufferMode;
+    }
+
+    /**
+     * @return the most bytes of formatted events buffered, 0 for no limit.
+     *
+     * @see #setBufferMaxBytes(long)
+     */
+    public final long getBufferMaxBytes()
+    {
+        return bufferMaxBytes;
+    }
+
+    /**
+     * The most bytes of formatted events, in UTF-8, the buffer may hold,
+     * alongside the <b>BufferSize</b> limit on the number of events.  As one
+     * event may be a few hundred bytes or a cascade of nested causes
+     * megabytes long, this is what actually bounds the memory an appender
+     * uses during a storm of stack traces.  What happens at the limit is set
+     * by <b>BufferOverflow</b>.
+     * <p/>
+     * <strong>Default:</strong> 0, no limit
+     *
+     * @param bufferMaxBytes the byte limit.
+     */
+    public final void setBufferMaxBytes(final long bufferMaxBytes)
+    {
+        this.bufferMaxBytes = bufferMaxBytes;
+    }
+
+    /**
+     * @return what happens when the buffer reaches <b>BufferMaxBytes</b>.
+     *
+     * @see #setBufferOverflow(String)
+     */
+    public final String getBufferOverflow()
+    {
+        return bufferOverflow;
+    }
+
+    /**
+     * What happens when the buffer reaches <b>BufferMaxBytes</b>; "flush"
+     * sends it as if it were full, and "evict" drops the oldest events until
+     * it is back under the limit, as a full buffer of events does when not
+     * sent.  The newest event is always kept, however large.
+     * <p/>
+     * <strong>Default:</strong> {@link #BUFFER_OVERFLOW_FLUSH}
+     *
+     * @param bufferOverflow flush or evict.
+     */
+    public final void setBufferOverflow(final String bufferOverflow)
+    {
+        this.bufferOverflow = bufferOverflow;
+    }
+
+    /**
+     * @return the longest an event waits in a partly filled buffer, in
+     *         milliseconds, 0 for no limit.
+     *
+     * @see #setBufferMaxLatency(long)
+     */
+    public final long getBufferMaxLatency()
+    {
+        return bufferMaxLatency;
+    }
+
+    /**
+     * The longest, in milliseconds, an event may wait in a buffer which has
+     * not filled up before the buffer is sent anyway.  A large
+     * <b>BufferSize</b> then no longer means an error on a quiet node sits in
+     * memory until the appender is closed, so large buffers can be used for
+     * throughput with a bounded delay.  The flush is run by the one {@link
+     * AppenderScheduler} thread shared by every appender, and the buffer is
+     * sent by the sender thread, as if <b>Async</b> were enabled.
+     * <p/>
+     * <strong>Default:</strong> 0, a buffer is only sent when full
+     *
+     * @param bufferMaxLatency the latency in milliseconds.
+     */
+    public final void setBufferMaxLatency(final long bufferMaxLatency)
+    {
+        this.bufferMaxLatency = bufferMaxLatency;
+    }
+
+    /**
+     * @return true if repeats of an exception are collapsed in the email.
+     *
+     * @see #setCollapseRepeats(boolean)
+     */
+    public final boolean isCollapseRepeats()
+    {
+        return collapseRepeats;
+    }
+
+    /**
+     * Collapses the repeats of an exception in an email into its first
+     * occurrence, followed by how many times it occurred and when it first
+     * and last did.  Exceptions are told apart by their {@link Fingerprint},
+     * their class and top stack frames, so a storm of one exception makes a
+     * short email rather than a buffer full of identical stack traces.  Other
+     * events are never collapsed.
+     * <p/>
+     * <strong>Default:</strong> false
+     *
+     * @param collapseRepeats true to collapse repeats.
+     */
+    public final void setCollapseRepeats(final boolean collapseRepeats)
+    {
+        this.collapseRepeats = collapseRepeats;
+    }
+
+    /**
+     * @return the size above which a body is sent as an attachment, in bytes,
+     *         0 for never.
+     *
+     * @see #setAttachmentThreshold(long)
+     */
+    public final long getAttachmentThreshold()
+    {
+        return attachmentThreshold;
+    }
+
+    /**
+     * The size, in bytes of UTF-8, above which the body of an email is sent
+     * as a gzip compressed attachment, which stack traces shrink to a tenth
+     * or less of, with a short summary inline: the first lines of each
+     * distinct event, and how often it occurred.  Large incident emails then
+     * take less time to send, less room in mailboxes, and are not rejected by
+     * a relay's size limit.  The body is compressed as it is sent.
+     * <p/>
+     * <strong>Default:</strong> 0, bodies are always sent inline
+     *
+     * @param attachmentThreshold the size in bytes.
+     */
+    public final void setAttachmentThreshold(final long attachmentThreshold)
+    {
+        this.attachmentThreshold = attachmentThreshold;
+    }
+
+    /**
+     * @return the packages whose frames are folded in a stack trace, or null.
+     *
+     * @see #setStackTraceFold(String)
+     */
+    public final String getStackTraceFold()
+    {
+        return stackTraceFold;
+    }
+
+    /**
+     * Comma separated packages, such as "org.apache.catalina.*,
+     * sun.reflect.*", whose frames are folded in a stack trace; each run of
+     * them becomes one line naming the packages.  Setting this, or
+     * <b>StackTraceMaxFrames</b>, also folds each run of frames already shown
+     * for an earlier cause.  A trace is compacted as the event is accepted,
+     * so less is buffered, matched against the filters and sent; filters are
+     * then matched against the compacted trace.
+     * <p/>
+     * <strong>Default:</strong> none, traces are kept as they are
+     *
+     * @param stackTraceFold the packages.
+     */
+    public final void setStackTraceFold(final String stackTraceFold)
+    {
+        this.stackTraceFold = stackTraceFold;
+    }
+
+    /**
+     * @return the most frames kept for each throwable of a stack trace.
+     *
+     * @see #setStackTraceMaxFrames(int)
+     */
+    public final int getStackTraceMaxFrames()
+    {
+        return stackTraceMaxFrames;
+    }
+
+    /**
+     * The most frames kept for each throwable, and each of its causes, in a
+     * stack trace; the rest are counted in one line.  Folded frames do not
+     * count towards it.
+     * <p/>
+     * <strong>Default:</strong> 0, no limit
+     *
+     * @param stackTraceMaxFrames the number of frames.
+     *
+     * @see #setStackTraceFold(String)
+     */
+    public final void setStackTraceMaxFrames(final int stackTraceMaxFrames)
+    {
+        this.stackTraceMaxFrames = stackTraceMaxFrames;
+    }
+
+    /**
+     * @return the number of stack trace renderings kept.
+     *
+     * @see #setThrowableCacheSize(int)
+     */
+    public final int getThrowableCacheSize()
+    {
+        return throwableCacheSize;
+    }
+
+    /**
+     * The number of stack trace renderings kept in a {@link
+     * ThrowableRenderCache}, so that a throwable logged again, or one with
+     * exactly the same trace, is not rendered, or compacted, again.
+     * <p/>
+     * <strong>Default:</strong> {@link ThrowableRenderCache#DEFAULT_SIZE}, 0
+     * to render every trace
+     *
+     * @param throwableCacheSize the number of renderings.
+     */
+    public final void setThrowableCacheSize(final int throwableCacheSize)
+    {
+        this.throwableCacheSize = throwableCacheSize;
+    }
+
+    /**
+     * @return the share of stack traces found already rendered, from 0 to 1.
+     *
+     * @see #setThrowableCacheSize(int)
+     */
+    public double getThrowableCacheHitRate()
+    {
+        final ThrowableRenderCache cache = throwableCache;
+        return cache == null ? 0 : cache.getHitRate();
+    }
+
+    /**
+     * @return the file remembering the errors already seen, or null.
+     *
+     * @see #setNoveltyStore(String)
+     */
+    public final String getNoveltyStore()
+    {
+        return noveltyStore;
+    }
+
+    /**
+     * The file remembering the {@link Fingerprint} of every error seen, across
+     * restarts, in a {@link NoveltyStore}.  An error never seen before is
+     * emailed straight away, with the rest of the buffer, while one seen
+     * before only goes into a summary of known errors, sent every
+     * <b>NoveltySummaryInterval</b>, or when a buffer of them fills up.
+     * Appenders naming the same file share what they have seen.
+     * <p/>
+     * <strong>Default:</strong> none, every error is treated alike
+     *
+     * @param noveltyStore the file, created if need be.
+     */
+    public final void setNoveltyStore(final String noveltyStore)
+    {
+        this.noveltyStore = noveltyStore;
+    }
+
+    /**
+     * @return the number of errors the novelty store remembers.
+     *
+     * @see #setNoveltyStoreSlots(int)
+     */
+    public final int getNoveltyStoreSlots()
+    {
+        return noveltyStoreSlots;
+    }
+
+    /**
+     * The number of errors the novelty store remembers, rounded down to a
+     * power of two, each taking 16 bytes; the error seen longest ago makes
+     * way for a new one.  Only used when the file is created.
+     * <p/>
+     * <strong>Default:</strong> {@link NoveltyStore#DEFAULT_SLOTS}
+     *
+     * @param noveltyStoreSlots the number of errors.
+     */
+    public final void setNoveltyStoreSlots(final int noveltyStoreSlots)
+    {
+        this.noveltyStoreSlots = noveltyStoreSlots;
+    }
+
+    /**
+     * @return how long an error is remembered after it was last seen, in
+     *         milliseconds.
+     *
+     * @see #setNoveltyMaxAge(long)
+     */
+    public final long getNoveltyMaxAge()
+    {
+        return noveltyMaxAge;
+    }
+
+    /**
+     * How long, in milliseconds, the novelty store remembers an error after
+     * it was last seen; an error which comes back after that is new again.
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_NOVELTY_MAX_AGE}, 0 for ever
+     *
+     * @param noveltyMaxAge the age in milliseconds.
+     */
+    public final void setNoveltyMaxAge(final long noveltyMaxAge)
+    {
+        this.noveltyMaxAge = noveltyMaxAge;
+    }
+
+    /**
+     * @return how often the summary of known errors is sent, in milliseconds.
+     *
+     * @see #setNoveltySummaryInterval(long)
+     */
+    public final long getNoveltySummaryInterval()
+    {
+        return noveltySummaryInterval;
+    }
+
+    /**
+     * How often, in milliseconds, the summary of errors already in the
+     * novelty store is sent.  Repeats of an error are always collapsed in the
+     * summary, and its subject is the usual one followed by "(known errors)".
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_NOVELTY_SUMMARY_INTERVAL}
+     *
+     * @param noveltySummaryInterval the interval in milliseconds.
+     */
+    public final void setNoveltySummaryInterval(
+        final long noveltySummaryInterval)
+    {
+        this.noveltySummaryInterval = noveltySummaryInterval;
+    }
+
+    /**
+     * @return the directory emails are spooled in, or null if they are not.
+     *
+     * @see #setSpoolDirectory(String)
+     */
+    public final String getSpoolDirectory()
+    {
+        return spoolDirectory;
+    }
+
+    /**
+     * The directory, used by this appender alone, in which every email is
+     * kept on disk until it has been delivered, so that emails are not lost
+     * while the SMTP server is down, nor when the JVM stops before it is back.
+     * The emails are delivered from the spool, in order, by a thread of its
+     * own, which keeps trying a failing server after a delay doubling from
+     * <b>SpoolSyncInterval</b> up to five minutes.  <b>Async</b> and
+     * <b>SenderThreads</b> are then ignored.
+     * <p/>
+     * <strong>Default:</strong> null, emails are not spooled
+     *
+     * @param spoolDirectory the directory, created if need be.
+     *
+     * @see MessageSpool
+     */
+    public final void setSpoolDirectory(final String spoolDirectory)
+    {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * @return the most bytes the spool keeps on disk.
+     *
+     * @see #setSpoolMaxBytes(long)
+     */
+    public final long getSpoolMaxBytes()
+    {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * The most bytes the spool keeps on disk.  When it would grow larger, the
+     * oldest emails not yet delivered are dropped, a segment of the spool at
+     * a time.
+     * <p/>
+     * <strong>Default:</strong> {@link MessageSpool#DEFAULT_MAX_BYTES}
+     *
+     * @param spoolMaxBytes the size in bytes.
      */
-    public void setReplyTo(final String addresses)
+    public final void setSpoolMaxBytes(final long spoolMaxBytes)
     {
-        this.replyTo = addresses;
+        this.spoolMaxBytes = spoolMaxBytes;
     }
 
-
     /**
-     * The <b>Subject</b> option takes a string value which should be a the
-     * subject of the e-mail message.
+     * @return the most milliseconds between forcing the spool to disk.
+     *
+     * @see #setSpoolSyncInterval(long)
      */
-    public void setSubject(final String subject)
+    public final long getSpoolSyncInterval()
     {
-        this.subject = subject;
+        return spoolSyncInterval;
     }
 
+    /**
+     * The most milliseconds between forcing the spool to disk.  Emails are
+     * written to the spool without waiting for the disk, so this is about how
+     * much a crash of the machine, rather than the JVM, may lose.
+     * <p/>
+     * <strong>Default:</strong> {@link MessageSpool#DEFAULT_SYNC_INTERVAL}
+     *
+     * @param spoolSyncInterval the interval in milliseconds.
+     */
+    public final void setSpoolSyncInterval(final long spoolSyncInterval)
+    {
+        this.spoolSyncInterval = spoolSyncInterval;
+    }
 
     /**
-     * The <b>BufferSize</b> option takes a positive integer representing the
-     * maximum number of logging events to collect in a cyclic buffer. When the
-     * <code>BufferSize</code> is reached, oldest events are deleted as new
-     * events are added to the buffer. By default the size of the cyclic buffer
-     * is 512 events.
+     * @return the bytes of formatted events currently buffered, with
+     *         <b>BufferMode</b> rendered.
      */
-    public void setBufferSize(final int bufferSize)
+    public synchronized long getBufferBytes()
     {
-        this.bufferSize = bufferSize;
-        cb.resize(bufferSize);
+        return rendered.getBytes();
     }
 
     /**
@@ -718,6 +2305,10 @@ public class SMTPAppender extends AppenderSkeleton
      * <p/>
      * <p>Location information extraction is comparatively very slow and should
      * be avoided unless performance is not a concern.
+     * <p/>
+     * Events are formatted on the logging thread, as they are buffered, so a
+     * layout asking for location information always finds it, whatever this
+     * option says.
      */
     public void setLocationInfo(final boolean locationInfo)
     {
@@ -963,6 +2554,366 @@ public class SMTPAppender extends AppenderSkeleton
         sendOnClose = val;
     }
 
+    /**
+     * @return true if emails are sent by a separate thread.
+     *
+     * @see #setAsync(boolean)
+     */
+    public final boolean getAsync()
+    {
+        return async;
+    }
+
+    /**
+     * When true, the logging thread only formats the buffered events into a
+     * message and queues it; a dedicated sender thread talks to the SMTP
+     * server.  A slow or unreachable server then no longer holds up every
+     * thread which logs an error.  Queued emails are sent before the appender
+     * finishes closing, waiting at most {@link #ASYNC_CLOSE_TIMEOUT}ms.
+     * <p/>
+     * <strong>Default:</strong> false
+     *
+     * @param async true to send emails asynchronously.
+     */
+    public final void setAsync(final boolean async)
+    {
+        this.async = async;
+    }
+
+    /**
+     * @return the maximum number of emails waiting to be sent.
+     *
+     * @see #setAsyncQueueSize(int)
+     */
+    public final int getAsyncQueueSize()
+    {
+        return asyncQueueSize;
+    }
+
+    /**
+     * The maximum number of emails waiting for the sender thread when
+     * <b>Async</b> is enabled.  What is done with emails beyond this is set by
+     * <b>AsyncQueueOverflow</b>.
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_ASYNC_QUEUE_SIZE}
+     *
+     * @param asyncQueueSize the queue capacity.
+     */
+    public final void setAsyncQueueSize(final int asyncQueueSize)
+    {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    /**
+     * @return what is done with an email when the queue is full.
+     *
+     * @see #setAsyncQueueOverflow(String)
+     */
+    public final String getAsyncQueueOverflow()
+    {
+        return asyncQueueOverflow;
+    }
+
+    /**
+     * What is done with an email when <b>AsyncQueueSize</b> emails are
+     * already waiting at its priority, one of:
+     * <ul>
+     * <li>{@link #ASYNC_QUEUE_OVERFLOW_DROP_NEWEST}, the email is
+     * dropped</li>
+     * <li>{@link #ASYNC_QUEUE_OVERFLOW_DROP_OLDEST}, the email waiting
+     * longest is dropped to make room, favouring the latest events</li>
+     * <li>{@link #ASYNC_QUEUE_OVERFLOW_BLOCK}, the logging thread waits for
+     * room, for at most <b>AsyncQueueBlockTimeout</b>, then drops the
+     * email; the appender stays locked meanwhile, so this stalls every thread
+     * logging to it.  Digests, late buffers and summaries, sent from the
+     * shared scheduler thread, are dropped instead of waiting</li>
+     * <li>{@link #ASYNC_QUEUE_OVERFLOW_COALESCE}, the email is added as a
+     * section to the last one waiting for the same recipients and subject,
+     * like a digest, or dropped if there is none, or the merged email would
+     * be larger than <b>BufferMaxBytes</b> or <b>AttachmentThreshold</b>,
+     * or {@link DeliveryQueue#DEFAULT_COALESCE_MAX_BYTES} if neither is
+     * set</li>
+     * <li>{@link #ASYNC_QUEUE_OVERFLOW_SPILL}, the email is written to the
+     * spool in <b>SpoolDirectory</b>, which is then only used for the
+     * emails the queue has no room for, or dropped if it can not be
+     * written</li>
+     * </ul>
+     * What each policy discarded is counted by the {@link
+     * #getDeliveryQueue() queue}.
+     * <p/>
+     * <strong>Default:</strong> {@link #ASYNC_QUEUE_OVERFLOW_DROP_NEWEST}
+     *
+     * @param asyncQueueOverflow the policy.
+     */
+    public final void setAsyncQueueOverflow(final String asyncQueueOverflow)
+    {
+        this.asyncQueueOverflow = asyncQueueOverflow;
+    }
+
+    /**
+     * @return the most milliseconds the logging thread waits for room in the
+     *         queue.
+     *
+     * @see #setAsyncQueueBlockTimeout(long)
+     */
+    public final long getAsyncQueueBlockTimeout()
+    {
+        return asyncQueueBlockTimeout;
+    }
+
+    /**
+     * The most milliseconds the logging thread waits for room in a full queue
+     * when <b>AsyncQueueOverflow</b> is {@link #ASYNC_QUEUE_OVERFLOW_BLOCK}.
+     * Every thread logging to the appender waits with it.
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_ASYNC_QUEUE_BLOCK_TIMEOUT}
+     *
+     * @param asyncQueueBlockTimeout the timeout in milliseconds.
+     */
+    public final void setAsyncQueueBlockTimeout(
+        final long asyncQueueBlockTimeout)
+    {
+        this.asyncQueueBlockTimeout = asyncQueueBlockTimeout;
+    }
+
+    /**
+     * @return the queue emails wait in for the sender threads, with the
+     *         counts of those its overflow policy discarded, or null if
+     *         emails are sent from the logging thread.
+     */
+    public final DeliveryQueue getDeliveryQueue()
+    {
+        return deliveryQueue;
+    }
+
+    /**
+     * @return the number of sender threads.
+     *
+     * @see #setSenderThreads(int)
+     */
+    public final int getSenderThreads()
+    {
+        return senderThreads;
+    }
+
+    /**
+     * The number of threads sending emails when <b>Async</b> or
+     * <b>DigestWindow</b> is enabled.  With more than one, the emails a buffer
+     * is split into for different recipients are delivered in parallel;
+     * <b>SMTPMaxConnections</b> should be raised to match.  On Java 21 and
+     * later they are virtual threads, so there may be many, bounded by
+     * <b>SMTPRelayConcurrency</b>; on Java 8 they are platform threads, and
+     * should be few.
+     * <p/>
+     * <strong>Default:</strong> 1
+     *
+     * @param senderThreads the number of sender threads.
+     */
+    public final void setSenderThreads(final int senderThreads)
+    {
+        this.senderThreads = senderThreads;
+    }
+
+    /**
+     * @return the most emails sent to the SMTP server at once, by every
+     *         appender in the JVM.
+     *
+     * @see #setSMTPRelayConcurrency(int)
+     */
+    public final int getSMTPRelayConcurrency()
+    {
+        return smtpRelayConcurrency;
+    }
+
+    /**
+     * The most emails sent to the SMTP server at once by the sender threads
+     * of every appender in the JVM sending to it, so that dozens of
+     * appenders, each with many sender threads, do not overwhelm it.  The
+     * first appender activated for a server sets the limit.
+     * <p/>
+     * <strong>Default:</strong> 0, no limit
+     *
+     * @param smtpRelayConcurrency the most emails at once.
+     */
+    public final void setSMTPRelayConcurrency(final int smtpRelayConcurrency)
+    {
+        this.smtpRelayConcurrency = smtpRelayConcurrency;
+    }
+
+    /**
+     * @return the most SMTP connections open at once.
+     *
+     * @see #setSMTPMaxConnections(int)
+     */
+    public final int getSMTPMaxConnections()
+    {
+        return smtpMaxConnections;
+    }
+
+    /**
+     * The most SMTP connections the appender keeps open at once.  Only more
+     * than one sender thread can make use of more than one connection.
+     * <p/>
+     * <strong>Default:</strong> 1
+     *
+     * @param smtpMaxConnections the connection limit.
+     */
+    public final void setSMTPMaxConnections(final int smtpMaxConnections)
+    {
+        this.smtpMaxConnections = smtpMaxConnections;
+    }
+
+    /**
+     * @return the SMTP connections and sender threads kept for urgent emails.
+     *
+     * @see #setSMTPReservedConnections(int)
+     */
+    public final int getSMTPReservedConnections()
+    {
+        return smtpReservedConnections;
+    }
+
+    /**
+     * The number of SMTP connections, in addition to
+     * <b>SMTPMaxConnections</b>, and of sender threads, in addition to
+     * <b>SenderThreads</b>, kept for the emails of filters whose priority is
+     * {@link FilterType#PRIORITY_HIGH high}.  However many other emails are
+     * waiting, or however slowly the server takes them, an urgent email then
+     * never waits for a connection or a thread.  Urgent emails are always
+     * sent before the others waiting, and are never held for a digest.
+     * <p/>
+     * <strong>Default:</strong> 0
+     *
+     * @param smtpReservedConnections the connections and threads reserved.
+     */
+    public final void setSMTPReservedConnections(
+        final int smtpReservedConnections)
+    {
+        this.smtpReservedConnections = smtpReservedConnections;
+    }
+
+    /**
+     * @return the SMTP idle timeout in milliseconds.
+     *
+     * @see #setSMTPIdleTimeout(long)
+     */
+    public final long getSMTPIdleTimeout()
+    {
+        return smtpIdleTimeout;
+    }
+
+    /**
+     * SMTP connections are kept open and reused for many emails, which saves
+     * the connection, EHLO, STARTTLS and AUTH round trips for every email
+     * after the first.  A connection unused for this many milliseconds is
+     * closed, and reopened the next time it is needed.
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_SMTP_IDLE_TIMEOUT}, 0 or less
+     * opens a new connection for every email.
+     *
+     * @param smtpIdleTimeout the idle timeout in milliseconds.
+     */
+    public final void setSMTPIdleTimeout(final long smtpIdleTimeout)
+    {
+        this.smtpIdleTimeout = smtpIdleTimeout;
+    }
+
+    /**
+     * @return the failures in a row which stop emails being tried.
+     *
+     * @see #setCircuitBreakerThreshold(int)
+     */
+    public final int getCircuitBreakerThreshold()
+    {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * The number of emails in a row the SMTP server must fail to take before
+     * emails stop being tried, and fail straight away rather than each
+     * waiting out the connect timeout.  They are spooled, if there is a
+     * <b>SpoolDirectory</b>, and dropped otherwise.  After
+     * <b>CircuitBreakerOpenInterval</b> milliseconds one email is tried again,
+     * and if it is sent, so are the rest.  However many emails fail, their
+     * failures are reported at most once a minute.
+     * <p/>
+     * <strong>Default:</strong> {@link CircuitBreaker#DEFAULT_THRESHOLD}, 0
+     * always tries every email
+     *
+     * @param circuitBreakerThreshold the number of failures.
+     *
+     * @see CircuitBreaker
+     */
+    public final void setCircuitBreakerThreshold(
+        final int circuitBreakerThreshold)
+    {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    /**
+     * @return how long emails fail straight away before one is tried again,
+     *         in milliseconds.
+     *
+     * @see #setCircuitBreakerOpenInterval(long)
+     */
+    public final long getCircuitBreakerOpenInterval()
+    {
+        return circuitBreakerOpenInterval;
+    }
+
+    /**
+     * How long, in milliseconds, emails fail straight away, once the SMTP
+     * server has failed <b>CircuitBreakerThreshold</b> times in a row, before
+     * one is tried again.
+     * <p/>
+     * <strong>Default:</strong> {@link CircuitBreaker#DEFAULT_OPEN_INTERVAL}
+     *
+     * @param circuitBreakerOpenInterval the interval in milliseconds.
+     */
+    public final void setCircuitBreakerOpenInterval(
+        final long circuitBreakerOpenInterval)
+    {
+        this.circuitBreakerOpenInterval = circuitBreakerOpenInterval;
+    }
+
+    /**
+     * @return the state of the circuit breaker around the SMTP server, or
+     *         null before the options are activated.
+     */
+    public CircuitBreaker.State getCircuitBreakerState()
+    {
+        final CircuitBreaker breaker = circuitBreaker;
+        return breaker == null ? null : breaker.getState();
+    }
+
+    /**
+     * @return the digest window in milliseconds.
+     *
+     * @see #setDigestWindow(long)
+     */
+    public final long getDigestWindow()
+    {
+        return digestWindow;
+    }
+
+    /**
+     * When set, the emails triggered within this many milliseconds of the
+     * first, for the same recipients and subject, are merged into one digest
+     * email with a section for each, which keeps its filter's message.  An
+     * incident then produces one email per recipient per window rather than
+     * one per buffer.  Digests are sent by the sender thread, as if
+     * <b>Async</b> were enabled, and any still waiting are sent when the
+     * appender is closed.
+     * <p/>
+     * <strong>Default:</strong> 0, sending each email as it is triggered
+     *
+     * @param digestWindow the digest window in milliseconds.
+     */
+    public final void setDigestWindow(final long digestWindow)
+    {
+        this.digestWindow = digestWindow;
+    }
+
     /**
      * The floodFrequency.  See {@link #setFloodFrequencyMilliseconds(long)} for
      * information on the floodFrequency period.
@@ -1020,10 +2971,115 @@ public class SMTPAppender extends AppenderSkeleton
             floodFrequencyMilliseconds;
     }
 
+    /**
+     * @return how flood budgets are keyed.
+     *
+     * @see #setFloodProtectionKey(String)
+     */
+    public final String getFloodProtectionKey()
+    {
+        return floodProtectionKey;
+    }
+
+    /**
+     * What each flood budget, as set by <b>FloodFrequency</b> and
+     * <b>FloodFrequencyMilliseconds</b>, applies to.  "global" gives the whole
+     * appender one budget, so one noisy error silences every other; "filter"
+     * gives each filter in the filter config its own, and "fingerprint" gives
+     * each distinct error its own, identified by its exception and top stack
+     * frames, or by its logger and message when it has no exception.  The
+     * flood protection notification then names the keys being throttled,
+     * and is sent at most once each flood frequency period.  See
+     * {@link FloodLimiter}.
+     * <p/>
+     * <strong>Default:</strong> global
+     *
+     * @param floodProtectionKey global, filter or fingerprint.
+     */
+    public final void setFloodProtectionKey(final String floodProtectionKey)
+    {
+        this.floodProtectionKey = floodProtectionKey;
+    }
+
+    /**
+     * @return the most keys with a flood budget of their own.
+     *
+     * @see #setFloodProtectionMaxKeys(int)
+     */
+    public final int getFloodProtectionMaxKeys()
+    {
+        return floodProtectionMaxKeys;
+    }
+
+    /**
+     * The most filters or fingerprints with a flood budget of their own, when
+     * <b>FloodProtectionKey</b> is not global.  Any more share one budget
+     * until idle keys have been evicted, which bounds the memory used however
+     * many distinct errors occur.
+     * <p/>
+     * <strong>Default:</strong> {@link #DEFAULT_FLOOD_PROTECTION_MAX_KEYS}
+     *
+     * @param floodProtectionMaxKeys the key limit.
+     */
+    public final void setFloodProtectionMaxKeys(
+        final int floodProtectionMaxKeys)
+    {
+        this.floodProtectionMaxKeys = floodProtectionMaxKeys;
+    }
+
+    /**
+     * @return the flood protection for this appender, or null if it has not
+     *         been activated.
+     */
+    FloodLimiter getFloodLimiter()
+    {
+        return floodLimiter;
+    }
+
+    /**
+     * @return the compiled filter configuration currently in effect, or null if
+     *         there is none.  This never performs any I/O.
+     */
     public ConfigType getConfig()
     {
-        config = ConfigType.load(filterConfig);
-        return config;
+        final FilterConfigWatcher watcher = filterConfigWatcher;
+        return watcher == null ? null : watcher.getConfig();
+    }
+
+    /**
+     * Matches an event to its filter, by its message followed by the lines of
+     * its stack trace, if any, so that filters can match the exception.  The
+     * event does not need to be formatted by the layout first, so an event
+     * whose filter is not logged is never formatted.
+     *
+     * @param event the event
+     *
+     * @return the filter the event matches, or null if it matches none or
+     *         there is no filter configuration.
+     */
+    FilterType findFilter(final LoggingEvent event)
+    {
+        final ConfigType config = getConfig();
+        if (config == null)
+        {
+            return null;
+        }
+        final String message = event.getRenderedMessage();
+        final String[] lines = event.getThrowableStrRep();
+        if (lines == null)
+        {
+            return config.findMatch(message == null ? "" : message);
+        }
+        final StringBuilder text = new StringBuilder();
+        if (message != null)
+        {
+            text.append(message);
+        }
+        for (int index = 0; index < lines.length; index++)
+        {
+            text.append(Layout.LINE_SEP).append(lines[index]);
+        }
+        return config.findMatch(text.toString());
     }
 
     /**
@@ -1054,5 +3110,32 @@ public class SMTPAppender extends AppenderSkeleton
     {
         this.filterConfig = filterConfig;
     }
+
+    /**
+     * @return the filter config check interval in milliseconds
+     *
+     * @see #setFilterConfigCheckInterval(long)
+     */
+    public long getFilterConfigCheckInterval()
+    {
+        return filterConfigCheckInterval;
+    }
+
+    /**
+     * The filter config is loaded once, when the appender is activated, and
+     * reloaded in the background whenever it changes.  A filter config in the
+     * file system is watched for changes; one that is not, such as a resource
+     * inside a jar, is checked for modifications every this many
+     * milliseconds.
+     * <p/>
+     * <strong>Default:</strong> 10000, 0 or less disables reloading.
+     *
+     * @param filterConfigCheckInterval the interval in milliseconds.
+     */
+    public void setFilterConfigCheckInterval(
+        final long filterConfigCheckInterval)
+    {
+        this.filterConfigCheckInterval = filterConfigCheckInterval;
+    }
 }
 
@@ -0,0 +1,38 @@
+package ca.athabascau.util.log4j;
+
+/**
+ * Starts the threads holding the SMTP conversations of a {@link
+ * DeliveryQueue}.  This is the Java 8 version, starting platform threads, so
+ * <b>SenderThreads</b> should be kept small.  The jar is a multi-release jar:
+ * on Java 21 and later this class is replaced by the one in
+ * <code>src/main/java21</code>, starting a virtual thread for each, so that
+ * many slow conversations may be held at once without tying up an operating
+ * system thread each.
+ */
+final class SenderThreads
+{
+    /**
+     * Whether the threads started are virtual threads.
+     */
+    static final boolean VIRTUAL = false;
+
+    private SenderThreads()
+    {
+    }
+
+    /**
+     * Starts a sender thread, which does not keep the JVM alive.
+     *
+     * @param name the name of the thread
+     * @param task what it runs.
+     *
+     * @return the thread.
+     */
+    static Thread start(final String name, final Runnable task)
+    {
+        final Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
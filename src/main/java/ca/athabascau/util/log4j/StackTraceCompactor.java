@@ -0,0 +1,255 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.Layout;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shortens the text of a stack trace as it is formatted for an email,
+ * keeping the frames that matter.  Within each throwable, cause and
+ * suppressed throwable of the trace:
+ * <ul>
+ * <li>runs of frames in the packages to fold, typically the servlet container
+ * and reflection, become one line naming the packages</li>
+ * <li>runs of frames already shown for an earlier throwable of the trace
+ * become one line saying so</li>
+ * <li>frames beyond the maximum depth become one line counting them</li>
+ * </ul>
+ * Every other line, messages, "Caused by:" and the "... n more" of the JDK, is
+ * kept as it is.  A run of one frame is kept as it is, as folding it would
+ * save nothing.
+ */
+public class StackTraceCompactor
+{
+    private static final int KEPT = 0;
+    private static final int FOLDED = 1;
+    private static final int SEEN = 2;
+
+    /**
+     * The packages to fold, as given.
+     */
+    private final String[] patterns;
+    /**
+     * The class name prefixes of the packages to fold.
+     */
+    private final String[] prefixes;
+    private final int maxFrames;
+
+    /**
+     * @param foldPackages comma separated packages or classes whose frames are
+     *                     folded, such as "org.apache.catalina.*,
+     *                     sun.reflect.*", or null for none
+     * @param maxFrames    the most frames kept for each throwable, 0 for no
+     *                     limit.
+     */
+    public StackTraceCompactor(final String foldPackages, final int maxFrames)
+    {
+        final List<String> found = new ArrayList<String>();
+        if (foldPackages != null)
+        {
+            for (final String pattern : foldPackages.split(","))
+            {
+                if (pattern.trim().length() > 0)
+                {
+                    found.add(pattern.trim());
+                }
+            }
+        }
+        patterns = found.toArray(new String[found.size()]);
+        prefixes = new String[patterns.length];
+        for (int index = 0; index < patterns.length; index++)
+        {
+            String prefix = patterns[index];
+            if (prefix.endsWith("*"))
+            {
+                prefix = prefix.substring(0, prefix.length() - 1);
+            }
+            prefixes[index] = prefix.endsWith(".") ? prefix : prefix + '.';
+        }
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * Appends the compacted trace, a line at a time.
+     *
+     * @param lines the lines of the trace, as given by {@link
+     *              org.apache.log4j.spi.LoggingEvent#getThrowableStrRep()}
+     * @param sbuf  where to append them.
+     */
+    public void append(final String[] lines, final StringBuilder sbuf)
+    {
+        final Run run = new Run();
+        // the frames of the throwables before this one, and of this one
+        final Set<String> earlier = new HashSet<String>();
+        final List<String> current = new ArrayList<String>();
+        int kept = 0;
+        int omitted = 0;
+        String indent = "\t";
+        for (final String line : lines)
+        {
+            final int at = frameStart(line);
+            if (at < 0)
+            {   // the start or end of a throwable
+                run.flush(sbuf);
+                if (omitted > 0)
+                {
+                    sbuf.append(indent).append("... ").append(omitted)
+                        .append(" frames not shown").append(Layout.LINE_SEP);
+                    omitted = 0;
+                }
+                earlier.addAll(current);
+                current.clear();
+                kept = 0;
+                sbuf.append(line).append(Layout.LINE_SEP);
+                continue;
+            }
+
+            indent = line.substring(0, at);
+            final String frame = line.substring(at);
+            current.add(frame);
+            if (maxFrames > 0 && kept >= maxFrames)
+            {
+                run.flush(sbuf);
+                omitted++;
+                continue;
+            }
+            final int folded;
+            final int kind;
+            if (earlier.contains(frame))
+            {
+                folded = -1;
+                kind = SEEN;
+            }
+            else
+            {
+                folded = foldedBy(line, at);
+                kind = folded < 0 ? KEPT : FOLDED;
+            }
+            if (kind != run.kind)
+            {
+                run.flush(sbuf);
+            }
+            if (kind == KEPT)
+            {
+                sbuf.append(line).append(Layout.LINE_SEP);
+                kept++;
+            }
+            else
+            {
+                run.add(kind, line, indent, folded);
+            }
+        }
+        run.flush(sbuf);
+        if (omitted > 0)
+        {
+            sbuf.append(indent).append("... ").append(omitted)
+                .append(" frames not shown").append(Layout.LINE_SEP);
+        }
+    }
+
+    /**
+     * @return the position of "at " in a frame line, or -1 if it is not one.
+     */
+    private static int frameStart(final String line)
+    {
+        int index = 0;
+        while (index < line.length() &&
+            (line.charAt(index) == '\t' || line.charAt(index) == ' '))
+        {
+            index++;
+        }
+        return index > 0 && line.startsWith("at ", index) ? index : -1;
+    }
+
+    /**
+     * @return the index of the pattern folding the frame, or -1 if none does.
+     */
+    private int foldedBy(final String line, final int at)
+    {
+        if (prefixes.length == 0)
+        {
+            return -1;
+        }
+        // skip any module, as in "java.base/jdk.internal.reflect..."
+        final int paren = line.indexOf('(', at);
+        final int slash = line.lastIndexOf('/', paren < 0 ?
+            line.length() : paren);
+        final int start = slash > at ? slash + 1 : at + 3;
+        for (int index = 0; index < prefixes.length; index++)
+        {
+            if (line.startsWith(prefixes[index], start))
+            {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A run of frames to be replaced by one line.
+     */
+    private final class Run
+    {
+        private final boolean[] folded = new boolean[patterns.length];
+        private int kind = KEPT;
+        private int count;
+        private String first;
+        private String indent;
+
+        void add(final int kind, final String line, final String indent,
+            final int pattern)
+        {
+            if (count == 0)
+            {
+                this.first = line;
+                this.indent = indent;
+            }
+            this.kind = kind;
+            count++;
+            if (pattern >= 0)
+            {
+                folded[pattern] = true;
+            }
+        }
+
+        void flush(final StringBuilder sbuf)
+        {
+            if (count == 1)
+            {
+                sbuf.append(first).append(Layout.LINE_SEP);
+            }
+            else if (count > 1)
+            {
+                sbuf.append(indent).append("... ").append(count);
+                if (kind == SEEN)
+                {
+                    sbuf.append(" frames shown above");
+                }
+                else
+                {
+                    sbuf.append(" frames in ");
+                    String separator = "";
+                    for (int index = 0; index < folded.length; index++)
+                    {
+                        if (folded[index])
+                        {
+                            sbuf.append(separator).append(patterns[index]);
+                            separator = ", ";
+                        }
+                    }
+                }
+                sbuf.append(Layout.LINE_SEP);
+            }
+            for (int index = 0; index < folded.length; index++)
+            {
+                folded[index] = false;
+            }
+            kind = KEPT;
+            count = 0;
+            first = null;
+        }
+    }
+}
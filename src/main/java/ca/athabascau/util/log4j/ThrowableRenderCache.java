@@ -0,0 +1,169 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers how the stack traces of recent throwables were rendered for an
+ * {@link SMTPAppender}, so that a throwable logged again, or another with
+ * exactly the same trace, as thrown again and again from one failure site, is
+ * not rendered again.  The rendering is the finished text, compacted by the
+ * appender's {@link StackTraceCompactor} if it has one, and is shared by
+ * every event it is found for.
+ * <p/>
+ * A throwable is looked up first by identity, weakly, so a cached throwable
+ * can still be collected, and then by its {@link Fingerprint#exact(Throwable)
+ * exact fingerprint}, in a map holding the most recently used renderings.
+ * The identity map is emptied whenever it reaches the maximum size too, for
+ * throwables kept alive elsewhere.  A throwable changed after it was first
+ * logged, by {@link Throwable#addSuppressed(Throwable)} say, keeps its first
+ * rendering.
+ * <p/>
+ * Like the appender, this is not thread safe; it relies on the appender's
+ * lock, other than for the counts.
+ */
+public class ThrowableRenderCache
+{
+    /**
+     * The default number of renderings kept.
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    private final int maxSize;
+    private final StackTraceCompactor compactor;
+    private final Map<Throwable, String> byIdentity =
+        new WeakHashMap<Throwable, String>();
+    private final Map<Long, String> byTrace;
+    private volatile long hits;
+    private volatile long misses;
+
+    /**
+     * @param maxSize   the most renderings kept
+     * @param compactor compacts the rendering, or null to keep it as it is.
+     */
+    public ThrowableRenderCache(final int maxSize,
+        final StackTraceCompactor compactor)
+    {
+        this.maxSize = maxSize;
+        this.compactor = compactor;
+        byTrace = new LinkedHashMap<Long, String>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<Long, String> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param event the event
+     *
+     * @return the rendering of the event's stack trace, a line at a time,
+     *         each ending with {@link Layout#LINE_SEP}, or null if it has
+     *         none.
+     */
+    public String render(final LoggingEvent event)
+    {
+        final ThrowableInformation information =
+            event.getThrowableInformation();
+        if (information == null)
+        {
+            return null;
+        }
+        final Throwable throwable = information.getThrowable();
+        if (throwable == null)
+        {   // deserialized, only the text is left, and nothing to key it by
+            return render(information.getThrowableStrRep());
+        }
+
+        String rendering = byIdentity.get(throwable);
+        if (rendering != null)
+        {
+            hits++;
+            return rendering;
+        }
+        final Long trace = Long.valueOf(Fingerprint.exact(throwable));
+        rendering = byTrace.get(trace);
+        if (rendering != null)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+            rendering = render(information.getThrowableStrRep());
+            byTrace.put(trace, rendering);
+        }
+        if (byIdentity.size() >= maxSize)
+        {   // throwables kept alive elsewhere must not pile up
+            byIdentity.clear();
+        }
+        byIdentity.put(throwable, rendering);
+        return rendering;
+    }
+
+    /**
+     * @return the number of renderings found in the cache.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of renderings not found in the cache.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the share of renderings found in the cache, from 0 to 1.
+     */
+    public double getHitRate()
+    {
+        final long found = hits;
+        final long total = found + misses;
+        return total == 0 ? 0 : (double) found / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ThrowableRenderCache{" +
+            "hits=" + hits +
+            ", misses=" + misses +
+            ", size=" + byTrace.size() +
+            '}';
+    }
+
+    private String render(final String[] lines)
+    {
+        if (lines == null)
+        {
+            return null;
+        }
+        final StringBuilder sbuf = new StringBuilder();
+        if (compactor != null)
+        {
+            compactor.append(lines, sbuf);
+        }
+        else
+        {
+            for (int index = 0; index < lines.length; index++)
+            {
+                sbuf.append(lines[index]);
+                sbuf.append(Layout.LINE_SEP);
+            }
+        }
+        return sbuf.toString();
+    }
+}
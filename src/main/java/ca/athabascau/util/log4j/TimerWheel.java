@@ -0,0 +1,117 @@
+package ca.athabascau.util.log4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel, which finds the items whose deadline has passed
+ * without keeping them sorted, and without looking at any other item.  An
+ * item goes in the bucket for the tick its deadline falls in, and each tick
+ * only the bucket for that tick is looked at; items due in a later turn of
+ * the wheel are left where they are.
+ * <p/>
+ * Items may be scheduled from any thread, while {@link #advance(long,
+ * Consumer)} must only be called from one thread at a time.
+ *
+ * @param <T> the type of item
+ */
+public class TimerWheel<T>
+{
+    private final long tickMilliseconds;
+    private final List<Queue<Timeout<T>>> buckets;
+    private final int mask;
+    /**
+     * The last tick looked at by {@link #advance(long, Consumer)}.
+     */
+    private long tick;
+
+    /**
+     * @param bucketCount      the number of buckets, rounded up to a power of
+     *                         two
+     * @param tickMilliseconds how long each bucket covers
+     * @param now              the current time in milliseconds.
+     */
+    public TimerWheel(final int bucketCount, final long tickMilliseconds,
+        final long now)
+    {
+        final int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) <<
+            (bucketCount > 1 ? 1 : 0);
+        this.buckets = new ArrayList<Queue<Timeout<T>>>(size);
+        for (int index = 0; index < size; index++)
+        {
+            buckets.add(new ConcurrentLinkedQueue<Timeout<T>>());
+        }
+        this.mask = size - 1;
+        this.tickMilliseconds = tickMilliseconds;
+        this.tick = now / tickMilliseconds;
+    }
+
+    /**
+     * Schedules an item to be handed back by {@link #advance(long, Consumer)}
+     * once its deadline has passed.
+     *
+     * @param item     the item
+     * @param deadline when it is due, in milliseconds since the epoch.
+     */
+    public void schedule(final T item, final long deadline)
+    {
+        buckets.get((int) (deadline / tickMilliseconds) & mask).add(
+            new Timeout<T>(item, deadline));
+    }
+
+    /**
+     * Hands every item due by now to the consumer, which may schedule it
+     * again.
+     *
+     * @param now     the current time in milliseconds
+     * @param expired receives each item whose deadline has passed.
+     */
+    public void advance(final long now, final Consumer<T> expired)
+    {
+        final long last = now / tickMilliseconds;
+        // after a long pause, one turn of the wheel covers every bucket
+        final long first = Math.max(tick + 1, last - mask);
+        final List<Timeout<T>> pending = new ArrayList<Timeout<T>>();
+        for (long current = first; current <= last; current++)
+        {
+            final Queue<Timeout<T>> bucket =
+                buckets.get((int) current & mask);
+            Timeout<T> timeout;
+            while ((timeout = bucket.poll()) != null)
+            {
+                pending.add(timeout);
+            }
+            for (final Timeout<T> item : pending)
+            {
+                if (item.deadline <= now)
+                {
+                    expired.accept(item.item);
+                }
+                else
+                {   // due in a later turn of the wheel
+                    bucket.add(item);
+                }
+            }
+            pending.clear();
+        }
+        tick = Math.max(tick, last);
+    }
+
+    /**
+     * An item and its deadline.
+     */
+    private static final class Timeout<T>
+    {
+        private final T item;
+        private final long deadline;
+
+        Timeout(final T item, final long deadline)
+        {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package ca.athabascau.util.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A small pool of connected SMTP {@link Transport}s for one appender's mail
+ * {@link Session}, so that a burst of emails pays for the TCP connection,
+ * EHLO, STARTTLS and AUTH once rather than once per email.
+ * <p/>
+ * A connection is checked with {@link Transport#isConnected()}, which for SMTP
+ * sends a NOOP, before it is reused.  If sending over a reused connection
+ * fails, the connection is thrown away and the email is sent once more over a
+ * new one, as the server may simply have dropped it.  Connections left idle
+ * for longer than the idle timeout are found by the {@link
+ * AppenderScheduler}, and closed on a thread of their own, as saying QUIT to
+ * a server which has stopped answering could hold up the scheduler.
+ * <p/>
+ * Some connections may be reserved for urgent emails, so that a flood of
+ * others, or a slow server working through them, never leaves an urgent
+ * email waiting for a connection.
+ */
+public class TransportPool
+{
+    private final Session session;
+    private final String protocol;
+    private final int maxConnections;
+    private final int reservedConnections;
+    private final long idleTimeoutMilliseconds;
+    /**
+     * The connections not in use, the most recently used first.
+     */
+    private final Deque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+    private int open;
+    private boolean closed;
+    private ScheduledFuture<?> reaper;
+
+    /**
+     * @param session                 the mail session to connect with
+     * @param maxConnections          the most connections open at once
+     * @param idleTimeoutMilliseconds how long a connection may go unused
+     *                                before it is closed.
+     */
+    public TransportPool(final Session session, final int maxConnections,
+        final long idleTimeoutMilliseconds)
+    {
+        this(session, maxConnections, 0, idleTimeoutMilliseconds);
+    }
+
+    /**
+     * @param session                 the mail session to connect with
+     * @param maxConnections          the most connections open at once for
+     *                                emails which are not urgent
+     * @param reservedConnections     the connections open at once, in addition,
+     *                                for urgent emails only
+     * @param idleTimeoutMilliseconds how long a connection may go unused
+     *                                before it is closed.
+     */
+    public TransportPool(final Session session, final int maxConnections,
+        final int reservedConnections, final long idleTimeoutMilliseconds)
+    {
+        this.session = session;
+        this.reservedConnections = Math.max(0, reservedConnections);
+        final String configured = session.getProperty(
+            "mail.transport.protocol");
+        this.protocol = configured == null ? "smtp" : configured;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        reaper = AppenderScheduler.scheduleWithFixedDelay(this::closeIdle,
+            Math.max(1000, idleTimeoutMilliseconds / 2));
+    }
+
+    /**
+     * Sends the message over a pooled connection, waiting for one to become
+     * free if they are all in use.
+     *
+     * @param message the message to send, with its recipients set.
+     *
+     * @throws MessagingException if the message could not be sent.
+     */
+    public void send(final Message message) throws MessagingException
+    {
+        send(message, false);
+    }
+
+    /**
+     * Sends the message over a pooled connection, waiting for one to become
+     * free if they are all in use.  An urgent message may use the reserved
+     * connections too.
+     *
+     * @param message the message to send, with its recipients set
+     * @param urgent  whether the message may use the reserved connections.
+     *
+     * @throws MessagingException if the message could not be sent.
+     */
+    public void send(final Message message, final boolean urgent)
+        throws MessagingException
+    {
+        message.saveChanges();
+        PooledTransport transport = borrow(urgent);
+        final boolean reused = transport.uses > 0;
+        try
+        {
+            transport.send(message);
+        }
+        catch (final SendFailedException e)
+        {   // the recipients were refused, the connection is fine
+            release(transport);
+            throw e;
+        }
+        catch (final MessagingException e)
+        {
+            discard(transport);
+            if (!reused)
+            {
+                throw e;
+            }
+            LogLog.debug("Reused SMTP connection failed, reconnecting", e);
+            transport = borrow(urgent);
+            sendOnce(transport, message);
+            return;
+        }
+        catch (final RuntimeException e)
+        {
+            discard(transport);
+            throw e;
+        }
+        release(transport);
+    }
+
+    private void sendOnce(final PooledTransport transport,
+        final Message message) throws MessagingException
+    {
+        boolean sent = false;
+        try
+        {
+            transport.send(message);
+            sent = true;
+        }
+        finally
+        {
+            if (sent)
+            {
+                release(transport);
+            }
+            else
+            {
+                discard(transport);
+            }
+        }
+    }
+
+    /**
+     * Closes every connection; connections in use are closed when they are
+     * returned.
+     */
+    public void close()
+    {
+        final ScheduledFuture<?> future;
+        synchronized (this)
+        {
+            closed = true;
+            future = reaper;
+            reaper = null;
+            notifyAll();
+        }
+        if (future != null)
+        {
+            future.cancel(false);
+        }
+        PooledTransport transport;
+        while ((transport = pollIdle()) != null)
+        {
+            transport.close();
+        }
+    }
+
+    /**
+     * Closes the connections which have been idle for longer than the idle
+     * timeout, on a thread of their own.
+     */
+    void closeIdle()
+    {
+        final long now = System.currentTimeMillis();
+        final Deque<PooledTransport> expired = new ArrayDeque<PooledTransport>();
+        synchronized (this)
+        {
+            for (final Iterator<PooledTransport> iterator =
+                idle.descendingIterator(); iterator.hasNext(); )
+            {
+                final PooledTransport transport = iterator.next();
+                if (now - transport.lastUsed < idleTimeoutMilliseconds)
+                {   // the rest were used more recently
+                    break;
+                }
+                iterator.remove();
+                open--;
+                expired.add(transport);
+            }
+            notifyAll();
+        }
+        if (!expired.isEmpty())
+        {
+            SenderThreads.start("au-log4j SMTP close", () ->
+            {
+                for (final PooledTransport transport : expired)
+                {
+                    transport.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of open connections, in use or not.
+     */
+    public synchronized int getOpenConnections()
+    {
+        return open;
+    }
+
+    private synchronized PooledTransport pollIdle()
+    {
+        final PooledTransport transport = idle.pollFirst();
+        if (transport != null)
+        {
+            open--;
+        }
+        return transport;
+    }
+
+    private PooledTransport borrow(final boolean urgent)
+        throws MessagingException
+    {
+        final int limit = urgent ? maxConnections + reservedConnections :
+            maxConnections;
+        PooledTransport transport = null;
+        boolean create = false;
+        synchronized (this)
+        {
+            while (transport == null && !create)
+            {
+                if (closed)
+                {
+                    throw new MessagingException("SMTP connection pool closed");
+                }
+                if (open - idle.size() < limit)
+                {   // fewer in use than allowed, so one is idle or may open
+                    transport = idle.pollFirst();
+                    if (transport == null)
+                    {
+                        open++;
+                        create = true;
+                    }
+                }
+                else
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException(
+                            "Interrupted waiting for an SMTP connection", e);
+                    }
+                }
+            }
+        }
+
+        if (create)
+        {
+            try
+            {
+                return new PooledTransport(session.getTransport(protocol));
+            }
+            catch (final MessagingException | RuntimeException e)
+            {
+                synchronized (this)
+                {
+                    open--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+        if (transport.uses > 0 && (System.currentTimeMillis() -
+            transport.lastUsed >= idleTimeoutMilliseconds ||
+            !transport.transport.isConnected()))
+        {   // stale, or the server has dropped it
+            transport.close();
+            transport = new PooledTransport(transport.transport);
+        }
+        return transport;
+    }
+
+    private void release(final PooledTransport transport)
+    {
+        transport.lastUsed = System.currentTimeMillis();
+        synchronized (this)
+        {
+            if (!closed)
+            {
+                idle.addFirst(transport);
+                notifyAll();
+                return;
+            }
+            open--;
+        }
+        transport.close();
+    }
+
+    private void discard(final PooledTransport transport)
+    {
+        transport.close();
+        synchronized (this)
+        {
+            open--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A transport, with how often and how recently it has been used.
+     */
+    private static class PooledTransport
+    {
+        private final Transport transport;
+        private int uses;
+        private long lastUsed;
+
+        PooledTransport(final Transport transport)
+        {
+            this.transport = transport;
+        }
+
+        void send(final Message message) throws MessagingException
+        {
+            if (uses == 0)
+            {
+                transport.connect();
+            }
+            uses++;
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+
+        void close()
+        {
+            try
+            {
+                transport.close();
+            }
+            catch (final MessagingException e)
+            {
+                LogLog.debug("Error closing SMTP connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package ca.athabascau.util.log4j.match;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * An Aho-Corasick automaton, which finds every occurrence of a set of literals
+ * in a single pass over the text, no matter how many literals there are.
+ * <p/>
+ * The text is case folded with {@link RegexLiterals#fold(char)} as it is
+ * scanned, so the literals must already be folded.  Once built the automaton
+ * is immutable, and may be shared between threads.
+ * <p/>
+ * Transitions are stored as sorted parallel arrays per state, and searched
+ * with a binary search, which keeps the memory use proportional to the total
+ * length of the literals.  The root state, which is visited most, uses a
+ * direct lookup table for ASCII.
+ */
+public final class AhoCorasick
+{
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    private final int literalCount;
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] rootAscii = new int[128];
+    private final int[] fail;
+    /**
+     * The literal ending at each state, or {@link #NONE}.
+     */
+    private final int[] output;
+    /**
+     * The nearest state reachable through failure links with an output, or
+     * {@link #NONE}.
+     */
+    private final int[] outputLink;
+
+    /**
+     * @param literals the folded literals to search for; a literal's id is its
+     *                 index in this list.
+     */
+    public AhoCorasick(final List<String> literals)
+    {
+        literalCount = literals.size();
+
+        // build the trie
+        final List<TreeMap<Character, Integer>> trie =
+            new ArrayList<TreeMap<Character, Integer>>();
+        final List<Integer> trieOutput = new ArrayList<Integer>();
+        trie.add(new TreeMap<Character, Integer>());
+        trieOutput.add(NONE);
+        for (int id = 0; id < literals.size(); id++)
+        {
+            int state = ROOT;
+            final String literal = literals.get(id);
+            for (int i = 0; i < literal.length(); i++)
+            {
+                final Character c = literal.charAt(i);
+                Integer next = trie.get(state).get(c);
+                if (next == null)
+                {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    trieOutput.add(NONE);
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            if (trieOutput.get(state) == NONE)
+            {
+                trieOutput.set(state, id);
+            }
+        }
+
+        // compact it
+        final int states = trie.size();
+        keys = new char[states][];
+        targets = new int[states][];
+        output = new int[states];
+        for (int state = 0; state < states; state++)
+        {
+            final TreeMap<Character, Integer> edges = trie.get(state);
+            keys[state] = new char[edges.size()];
+            targets[state] = new int[edges.size()];
+            int edge = 0;
+            for (final Map.Entry<Character, Integer> entry :
+                edges.entrySet())
+            {
+                keys[state][edge] = entry.getKey();
+                targets[state][edge] = entry.getValue();
+                edge++;
+            }
+            output[state] = trieOutput.get(state);
+        }
+        Arrays.fill(rootAscii, NONE);
+        for (int edge = 0; edge < keys[ROOT].length; edge++)
+        {
+            if (keys[ROOT][edge] < rootAscii.length)
+            {
+                rootAscii[keys[ROOT][edge]] = targets[ROOT][edge];
+            }
+        }
+
+        // breadth first, so that the failure link of every shorter prefix is
+        // known before it is needed
+        fail = new int[states];
+        outputLink = new int[states];
+        outputLink[ROOT] = NONE;
+        final Queue<Integer> queue = new ArrayDeque<Integer>();
+        for (final int child : targets[ROOT])
+        {
+            fail[child] = ROOT;
+            outputLink[child] = NONE;
+            queue.add(child);
+        }
+        while (!queue.isEmpty())
+        {
+            final int state = queue.remove();
+            for (int edge = 0; edge < keys[state].length; edge++)
+            {
+                final char c = keys[state][edge];
+                final int child = targets[state][edge];
+                int failure = fail[state];
+                while (failure != ROOT && transition(failure, c) == NONE)
+                {
+                    failure = fail[failure];
+                }
+                final int next = transition(failure, c);
+                fail[child] = next == NONE || next == child ? ROOT : next;
+                outputLink[child] = output[fail[child]] != NONE ?
+                    fail[child] : outputLink[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return the number of literals searched for.
+     */
+    public int getLiteralCount()
+    {
+        return literalCount;
+    }
+
+    /**
+     * Scans the text, marking every literal which occurs in it.
+     *
+     * @param text  the text to search, which need not be folded.
+     * @param found set to true at the id of each literal found.  Its length
+     *              must be at least {@link #getLiteralCount()}
+     *
+     * @return the number of distinct literals found.
+     */
+    public int scan(final CharSequence text, final boolean[] found)
+    {
+        int count = 0;
+        int state = ROOT;
+        final int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = RegexLiterals.fold(text.charAt(i));
+            int next = transition(state, c);
+            while (next == NONE && state != ROOT)
+            {
+                state = fail[state];
+                next = transition(state, c);
+            }
+            state = next == NONE ? ROOT : next;
+
+            for (int match = output[state] != NONE ? state : outputLink[state];
+                 match != NONE; match = outputLink[match])
+            {
+                if (!found[output[match]])
+                {
+                    found[output[match]] = true;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int transition(final int state, final char c)
+    {
+        if (state == ROOT && c < rootAscii.length)
+        {
+            return rootAscii[c];
+        }
+        final int edge = Arrays.binarySearch(keys[state], c);
+        return edge < 0 ? NONE : targets[state][edge];
+    }
+}
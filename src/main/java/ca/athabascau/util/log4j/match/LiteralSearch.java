@@ -0,0 +1,286 @@
+package ca.athabascau.util.log4j.match;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A replacement for the most common shape of filter regex, a "contains" test
+ * such as <code>(?s)(?i).*literal.*</code>, or an ordered series of them such
+ * as <code>(?s)(?i).*a.*b.*c.*</code>.  Each literal is found with a case
+ * folded Boyer-Moore-Horspool search, starting after the end of the previous
+ * one, which gives exactly the same answer as the regex without its
+ * backtracking over large stack traces.
+ * <p/>
+ * {@link #compile(String, boolean)} only accepts regexes it can prove are
+ * equivalent; for anything else it returns null and the regex should be used.
+ * <p/>
+ * Instances are immutable, and may be shared between threads.
+ */
+public final class LiteralSearch
+{
+    private static final int TABLE_SIZE = 256;
+
+    private final char[][] needles;
+    private final int[][] shifts;
+    private final boolean caseInsensitive;
+    private final boolean unicodeCase;
+
+    private LiteralSearch(final List<String> literals,
+        final boolean caseInsensitive, final boolean unicodeCase)
+    {
+        this.caseInsensitive = caseInsensitive;
+        this.unicodeCase = unicodeCase;
+        needles = new char[literals.size()][];
+        shifts = new int[literals.size()][];
+        for (int index = 0; index < literals.size(); index++)
+        {
+            final char[] needle = literals.get(index).toCharArray();
+            for (int i = 0; i < needle.length; i++)
+            {
+                needle[i] = fold(needle[i]);
+            }
+            needles[index] = needle;
+
+            // characters sharing a table slot get the smallest shift, which is
+            // always safe
+            final int[] shift = new int[TABLE_SIZE];
+            Arrays.fill(shift, needle.length);
+            for (int i = 0; i < needle.length - 1; i++)
+            {
+                shift[needle[i] & (TABLE_SIZE - 1)] = needle.length - 1 - i;
+            }
+            shifts[index] = shift;
+        }
+    }
+
+    /**
+     * @param regex a valid java regular expression
+     * @param find  true if the regex may match anywhere in the text, false if
+     *              it must match the whole text.
+     *
+     * @return the equivalent literal search, or null if the regex is not a
+     *         supported shape.
+     */
+    public static LiteralSearch compile(final String regex, final boolean find)
+    {
+        boolean dotAll = false;
+        boolean caseInsensitive = false;
+        boolean unicodeCase = false;
+        int index = 0;
+
+        // leading inline flags, such as (?s)(?i) or (?si)
+        while (regex.startsWith("(?", index))
+        {
+            final int end = regex.indexOf(')', index);
+            if (end == -1)
+            {
+                return null;
+            }
+            for (int flag = index + 2; flag < end; flag++)
+            {
+                switch (regex.charAt(flag))
+                {
+                    case 's':
+                        dotAll = true;
+                        break;
+                    case 'i':
+                        caseInsensitive = true;
+                        break;
+                    case 'u':
+                    case 'U':
+                        unicodeCase = true;
+                        break;
+                    case 'm':
+                    case 'd':
+                        // only affect ^, $ and . without s
+                        break;
+                    default:
+                        // turning flags off, comments, groups, etc.
+                        return null;
+                }
+            }
+            index = end + 1;
+        }
+
+        // literals separated by .*, null standing for the .*
+        final List<String> tokens = new ArrayList<String>();
+        final StringBuilder literal = new StringBuilder();
+        while (index < regex.length())
+        {
+            final char c = regex.charAt(index++);
+            if (c == '.')
+            {
+                if (!regex.startsWith("*", index) ||
+                    regex.startsWith("*?", index) ||
+                    regex.startsWith("*+", index))
+                {   // only greedy .* is supported
+                    return null;
+                }
+                index++;
+                endLiteral(tokens, literal);
+                if (tokens.isEmpty() || tokens.get(tokens.size() - 1) != null)
+                {
+                    tokens.add(null);
+                }
+            }
+            else if (c == '\\')
+            {
+                if (index >= regex.length())
+                {
+                    return null;
+                }
+                final char escaped = regex.charAt(index++);
+                if (escaped == 'Q')
+                {
+                    final int end = regex.indexOf("\\E", index);
+                    final int stop = end == -1 ? regex.length() : end;
+                    literal.append(regex, index, stop);
+                    index = end == -1 ? stop : end + 2;
+                }
+                else if (Character.isLetterOrDigit(escaped))
+                {   // a class, boundary, back reference, etc.
+                    return null;
+                }
+                else
+                {
+                    literal.append(escaped);
+                }
+            }
+            else if ("[](){}|?*+^$".indexOf(c) != -1)
+            {
+                return null;
+            }
+            else
+            {
+                literal.append(c);
+            }
+        }
+        endLiteral(tokens, literal);
+
+        final List<String> literals = new ArrayList<String>();
+        boolean innerWildcard = false;
+        for (int token = 0; token < tokens.size(); token++)
+        {
+            if (tokens.get(token) != null)
+            {
+                literals.add(tokens.get(token));
+            }
+            else if (token > 0 && token < tokens.size() - 1)
+            {
+                innerWildcard = true;
+            }
+        }
+        final boolean anchored = tokens.isEmpty() ||
+            tokens.get(0) != null || tokens.get(tokens.size() - 1) != null;
+
+        if (!find && anchored)
+        {   // must match at the start or end of the text
+            return null;
+        }
+        if (!dotAll && (innerWildcard || !find))
+        {   // . would not cross line breaks
+            return null;
+        }
+        if (caseInsensitive)
+        {
+            for (final String value : literals)
+            {
+                for (int i = 0; i < value.length(); i++)
+                {
+                    if (Character.isSurrogate(value.charAt(i)))
+                    {   // folded by code point, not by char
+                        return null;
+                    }
+                }
+            }
+        }
+        return new LiteralSearch(literals, caseInsensitive, unicodeCase);
+    }
+
+    private static void endLiteral(final List<String> tokens,
+        final StringBuilder literal)
+    {
+        if (literal.length() > 0)
+        {
+            tokens.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * @param text the text to search
+     *
+     * @return true if every literal occurs in the text, in order, without
+     *         overlapping.
+     */
+    public boolean matches(final CharSequence text)
+    {
+        int from = 0;
+        for (int index = 0; index < needles.length; index++)
+        {
+            final int found = indexOf(text, from, needles[index],
+                shifts[index]);
+            if (found == -1)
+            {
+                return false;
+            }
+            from = found + needles[index].length;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of literals searched for.
+     */
+    public int getLiteralCount()
+    {
+        return needles.length;
+    }
+
+    private int indexOf(final CharSequence text, final int from,
+        final char[] needle, final int[] shift)
+    {
+        final int last = needle.length - 1;
+        if (last < 0)
+        {
+            return from;
+        }
+        int position = from;
+        final int end = text.length() - needle.length;
+        while (position <= end)
+        {
+            final char tail = fold(text.charAt(position + last));
+            if (tail == needle[last])
+            {
+                int i = last - 1;
+                while (i >= 0 && fold(text.charAt(position + i)) == needle[i])
+                {
+                    i--;
+                }
+                if (i < 0)
+                {
+                    return position;
+                }
+            }
+            position += shift[tail & (TABLE_SIZE - 1)];
+        }
+        return -1;
+    }
+
+    /**
+     * Folds a character the way the regex engine would compare it.
+     */
+    private char fold(final char c)
+    {
+        if (!caseInsensitive)
+        {
+            return c;
+        }
+        if (unicodeCase)
+        {
+            return RegexLiterals.fold(c);
+        }
+        return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+    }
+}
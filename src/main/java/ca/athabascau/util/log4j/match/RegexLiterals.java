@@ -0,0 +1,338 @@
+package ca.athabascau.util.log4j.match;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pulls the literal substrings out of a regular expression that every match of
+ * it must contain.  The literals are case folded with {@link #fold(char)}, so
+ * that they can be searched for in folded text regardless of the case
+ * sensitivity flags of the regex.
+ * <p/>
+ * The parsing is deliberately conservative.  Anything which is not understood,
+ * such as a top level alternation, a group, or a comments mode flag, simply
+ * ends the current literal, or results in no literals at all.  An empty result
+ * means the regex has no known requirements, and must always be run; it never
+ * means the regex can not match.
+ */
+public final class RegexLiterals
+{
+    /**
+     * Literals shorter than this do not filter anything out in practice, so
+     * they are not worth searching for.
+     */
+    public static final int MIN_LENGTH = 3;
+
+    private static final char[] ASCII_FOLD = new char[128];
+
+    static
+    {
+        for (char c = 0; c < ASCII_FOLD.length; c++)
+        {
+            ASCII_FOLD[c] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        }
+    }
+
+    private final String regex;
+    private final List<String> literals = new ArrayList<String>();
+    private final StringBuilder run = new StringBuilder();
+    private int index;
+    /**
+     * Whether the last thing parsed was a literal character, which a following
+     * quantifier would apply to.
+     */
+    private boolean lastWasLiteral;
+
+    private RegexLiterals(final String regex)
+    {
+        this.regex = regex;
+    }
+
+    /**
+     * Folds a character the same way the regex engine does for case
+     * insensitive unicode matching.  ASCII is looked up in a table, as it is
+     * by far the most common.
+     *
+     * @param c the character to fold
+     *
+     * @return the folded character.
+     */
+    public static char fold(final char c)
+    {
+        return c < ASCII_FOLD.length ? ASCII_FOLD[c] :
+            Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * @param text the text to fold
+     *
+     * @return the text with every character passed through {@link
+     *         #fold(char)}
+     */
+    public static String fold(final CharSequence text)
+    {
+        final StringBuilder folded = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            folded.append(fold(text.charAt(i)));
+        }
+        return folded.toString();
+    }
+
+    /**
+     * @param regex a valid java regular expression
+     *
+     * @return the folded literals of at least {@link #MIN_LENGTH} characters
+     *         which any text matching the regex must contain, possibly empty.
+     */
+    public static List<String> extract(final String regex)
+    {
+        final RegexLiterals parser = new RegexLiterals(regex);
+        if (!parser.parse())
+        {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(parser.literals);
+    }
+
+    /**
+     * @return false if the regex has a construct that makes the literals
+     *         unreliable.
+     */
+    private boolean parse()
+    {
+        while (index < regex.length())
+        {
+            final char c = regex.charAt(index++);
+            switch (c)
+            {
+                case '\\':
+                    if (!parseEscape())
+                    {
+                        return false;
+                    }
+                    break;
+                case '[':
+                    skipClass();
+                    endRun();
+                    lastWasLiteral = false;
+                    break;
+                case '(':
+                    if (!skipGroup())
+                    {
+                        return false;
+                    }
+                    endRun();
+                    lastWasLiteral = false;
+                    break;
+                case '|':
+                    // either side may match, so nothing is required
+                    return false;
+                case '*':
+                case '?':
+                case '{':
+                    // the previous character is optional
+                    if (lastWasLiteral)
+                    {
+                        run.setLength(run.length() - 1);
+                    }
+                    endQuantifier(c);
+                    break;
+                case '+':
+                    // the previous character is required, but may repeat
+                    endQuantifier(c);
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    endRun();
+                    lastWasLiteral = false;
+                    break;
+                default:
+                    appendLiteral(c);
+            }
+        }
+        endRun();
+        return true;
+    }
+
+    /**
+     * @return false if the escape can not be understood.
+     */
+    private boolean parseEscape()
+    {
+        if (index >= regex.length())
+        {
+            return false;
+        }
+        final char c = regex.charAt(index++);
+        switch (c)
+        {
+            case 'Q':
+                final int end = regex.indexOf("\\E", index);
+                final int stop = end == -1 ? regex.length() : end;
+                for (; index < stop; index++)
+                {
+                    appendLiteral(regex.charAt(index));
+                }
+                index = end == -1 ? stop : end + 2;
+                return true;
+            case 't':
+                appendLiteral('\t');
+                return true;
+            case 'n':
+                appendLiteral('\n');
+                return true;
+            case 'r':
+                appendLiteral('\r');
+                return true;
+            case 'f':
+                appendLiteral('\f');
+                return true;
+            case 'a':
+                appendLiteral('\u0007');
+                return true;
+            case 'e':
+                appendLiteral('\u001B');
+                return true;
+            default:
+                if (Character.isDigit(c))
+                {   // octal escapes and back references, which may be
+                    // followed by more digits
+                    return false;
+                }
+                if (Character.isLetter(c))
+                {   // a character class, boundary, etc.
+                    if (c == 'p' || c == 'P' || c == 'k' || c == 'x' ||
+                        c == 'u' || c == 'c' || c == 'N' || index <
+                        regex.length() && regex.charAt(index) == '{')
+                    {   // these have arguments we can't skip reliably
+                        return false;
+                    }
+                    endRun();
+                    lastWasLiteral = false;
+                    return true;
+                }
+                appendLiteral(c);
+                return true;
+        }
+    }
+
+    private void appendLiteral(final char c)
+    {
+        run.append(fold(c));
+        lastWasLiteral = true;
+    }
+
+    private void endQuantifier(final char quantifier)
+    {
+        if (quantifier == '{')
+        {
+            final int end = regex.indexOf('}', index);
+            index = end == -1 ? regex.length() : end + 1;
+        }
+        if (index < regex.length() &&
+            (regex.charAt(index) == '?' || regex.charAt(index) == '+'))
+        {   // lazy or possessive
+            index++;
+        }
+        endRun();
+        lastWasLiteral = false;
+    }
+
+    private void endRun()
+    {
+        if (run.length() >= MIN_LENGTH)
+        {
+            literals.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Skips a character class, which may contain nested classes.
+     */
+    private void skipClass()
+    {
+        int depth = 1;
+        if (index < regex.length() && regex.charAt(index) == '^')
+        {
+            index++;
+        }
+        if (index < regex.length() && regex.charAt(index) == ']')
+        {   // a leading ] is literal
+            index++;
+        }
+        while (index < regex.length() && depth > 0)
+        {
+            final char c = regex.charAt(index++);
+            if (c == '\\')
+            {
+                index++;
+            }
+            else if (c == '[')
+            {
+                depth++;
+            }
+            else if (c == ']')
+            {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Skips a group.
+     *
+     * @return false if the group turns on comments mode, which changes the
+     *         meaning of everything after it.
+     */
+    private boolean skipGroup()
+    {
+        final int start = index;
+        int depth = 1;
+        while (index < regex.length() && depth > 0)
+        {
+            final char c = regex.charAt(index++);
+            if (c == '\\')
+            {
+                if (index < regex.length() && regex.charAt(index) == 'Q')
+                {
+                    final int end = regex.indexOf("\\E", index);
+                    index = end == -1 ? regex.length() : end + 1;
+                }
+                index++;
+            }
+            else if (c == '[')
+            {
+                skipClass();
+            }
+            else if (c == '(')
+            {
+                depth++;
+            }
+            else if (c == ')')
+            {
+                depth--;
+            }
+        }
+
+        if (start < regex.length() && regex.charAt(start) == '?')
+        {   // inline flags, (?x) makes whitespace and # insignificant
+            for (int flag = start + 1; flag < index; flag++)
+            {
+                final char c = regex.charAt(flag);
+                if (c == 'x')
+                {
+                    return false;
+                }
+                if (!Character.isLetter(c) && c != '-')
+                {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+}
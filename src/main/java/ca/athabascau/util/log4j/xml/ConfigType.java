@@ -17,6 +17,7 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.*;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -54,11 +55,21 @@ public class ConfigType
 
     @XmlTransient
     private StrSubstitutor sub;
+    @XmlTransient
+    private FilterIndex index;
 
     /**
-     * @param filterConfig
+     * Loads and compiles the filter configuration.  Variables are resolved and
+     * addresses parsed once, here, so the returned instance is an immutable
+     * snapshot that may be shared between threads without locking.
+     *
+     * @param filterConfig the classpath resource, or file system path, of the
+     *                     filter configuration.
+     *
+     * @return the ConfigType instance with all appropriate options set, or
+     *         null if the configuration does not exist.
      *
-     * @return the ConfigType instance with all appropriate options set.
+     * @throws IllegalArgumentException if the configuration is not valid.
      */
     public static ConfigType load(final String filterConfig)
     {
@@ -72,10 +83,12 @@ public class ConfigType
             }
 
             // config file exists
-            final JAXBContext jaxbContext = JAXBContext.newInstance(
-                ConfigType.class);
-            final Unmarshaller marshaller = jaxbContext.createUnmarshaller();
-            return (ConfigType) marshaller.unmarshal(configStream);
+            final Unmarshaller marshaller =
+                JaxbContextHolder.CONTEXT.createUnmarshaller();
+            final ConfigType config = (ConfigType) marshaller.unmarshal(
+                configStream);
+            config.compile();
+            return config;
         }
         catch (final JAXBException e)
         {
@@ -88,10 +101,47 @@ public class ConfigType
                 "ca.athabascau.util.log4j.SMTPAppender, then this " +
                 "config file should be present");
         }
+        finally
+        {
+            if (configStream != null)
+            {
+                try
+                {
+                    configStream.close();
+                }
+                catch (final IOException ignored)
+                {
+                }
+            }
+        }
 
         return null;
     }
 
+    /**
+     * Resolves the variables of every filter, and freezes the filter list.
+     * Called once by {@link #load(String)}; after this the instance is not
+     * modified again.
+     */
+    private void compile()
+    {
+        if (filters == null)
+        {
+            filters = new ArrayList<FilterType>();
+        }
+
+        final StrSubstitutor substitutor = getSubstitutor();
+        for (final FilterType filterType : filters)
+        {
+            filterType.setParent(this);
+            filterType.compile(substitutor);
+        }
+
+        filters = Collections.unmodifiableList(
+            new ArrayList<FilterType>(filters));
+        index = new FilterIndex(filters);
+    }
+
     /**
      * Gets the value of the filters property.
      * <p/>
@@ -129,6 +179,9 @@ public class ConfigType
 
     /**
      * Returns a matching filters.  The result may be null if nothing matched.
+     * When there is more than one match, the first in the configuration wins.
+     * A loaded configuration only runs the regex of the filters whose required
+     * literals occur in the log entry.
      *
      * @param logEntry the log entry to match.
      *
@@ -136,6 +189,11 @@ public class ConfigType
      */
     public FilterType findMatch(final String logEntry)
     {
+        if (index != null)
+        {
+            return index.findMatch(logEntry);
+        }
+
         getFilters();   // ensure filters is initialized
         final Optional<FilterType> result = filters
             .stream()
@@ -157,11 +215,32 @@ public class ConfigType
     {
         if (this.sub == null)
         {
-            final Map<String, String> substitutions = vars
+            final Map<String, String> substitutions = getVars()
                 .stream()
                 .collect(Collectors.toMap(VarType::getName, VarType::getValue));
             this.sub = new StrSubstitutor(substitutions);
         }
         return this.sub;
     }
+
+    /**
+     * Building a JAXBContext is expensive, and it is thread safe, so there is
+     * only ever one of them.
+     */
+    private static class JaxbContextHolder
+    {
+        private static final JAXBContext CONTEXT;
+
+        static
+        {
+            try
+            {
+                CONTEXT = JAXBContext.newInstance(ConfigType.class);
+            }
+            catch (final JAXBException e)
+            {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
 }
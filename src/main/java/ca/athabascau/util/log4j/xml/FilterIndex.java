@@ -0,0 +1,126 @@
+package ca.athabascau.util.log4j.xml;
+
+import ca.athabascau.util.log4j.match.AhoCorasick;
+import ca.athabascau.util.log4j.match.RegexLiterals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the first filter matching a log entry without running every filter's
+ * regex.
+ * <p/>
+ * The literals that each regex requires are extracted with {@link
+ * RegexLiterals}, and all of them are searched for at once with a single
+ * {@link AhoCorasick} automaton.  Only the filters whose literals all occur in
+ * the log entry, and those with no known literals, have their regex run, in
+ * the order they were configured, so the first match still wins.
+ */
+class FilterIndex
+{
+    private static final int[] NO_LITERALS = new int[0];
+
+    private final List<FilterType> filters;
+    private final AhoCorasick automaton;
+    /**
+     * The literal ids each filter requires, by filter position.
+     */
+    private final int[][] required;
+    /**
+     * The positions of the filters which must always be run.
+     */
+    private final int[] unconditional;
+    private final ThreadLocal<boolean[]> found;
+
+    /**
+     * @param filters the compiled filters, in configuration order.
+     */
+    FilterIndex(final List<FilterType> filters)
+    {
+        this.filters = filters;
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+        final List<String> literals = new ArrayList<String>();
+        final List<Integer> always = new ArrayList<Integer>();
+        required = new int[filters.size()][];
+        for (int position = 0; position < filters.size(); position++)
+        {
+            final List<String> filterLiterals = RegexLiterals.extract(
+                filters.get(position).getRegex());
+            if (filterLiterals.isEmpty())
+            {
+                required[position] = NO_LITERALS;
+                always.add(position);
+                continue;
+            }
+
+            required[position] = new int[filterLiterals.size()];
+            for (int i = 0; i < filterLiterals.size(); i++)
+            {
+                Integer id = ids.get(filterLiterals.get(i));
+                if (id == null)
+                {
+                    id = literals.size();
+                    ids.put(filterLiterals.get(i), id);
+                    literals.add(filterLiterals.get(i));
+                }
+                required[position][i] = id;
+            }
+        }
+
+        unconditional = new int[always.size()];
+        for (int i = 0; i < unconditional.length; i++)
+        {
+            unconditional[i] = always.get(i);
+        }
+        automaton = new AhoCorasick(literals);
+        final int literalCount = literals.size();
+        found = ThreadLocal.withInitial(() -> new boolean[literalCount]);
+    }
+
+    /**
+     * @param logEntry the log entry to match.
+     *
+     * @return the first matching filter, or null if nothing matched.
+     */
+    FilterType findMatch(final String logEntry)
+    {
+        final boolean[] present = found.get();
+        Arrays.fill(present, false);
+        if (automaton.scan(logEntry, present) == 0)
+        {   // only the filters without literals can match
+            for (final int position : unconditional)
+            {
+                if (filters.get(position).match(logEntry))
+                {
+                    return filters.get(position);
+                }
+            }
+            return null;
+        }
+
+        for (int position = 0; position < required.length; position++)
+        {
+            if (allPresent(required[position], present) &&
+                filters.get(position).match(logEntry))
+            {
+                return filters.get(position);
+            }
+        }
+        return null;
+    }
+
+    private static boolean allPresent(final int[] ids, final boolean[] present)
+    {
+        for (final int id : ids)
+        {
+            if (!present[id])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -8,9 +8,16 @@
 
 package ca.athabascau.util.log4j.xml;
 
+import ca.athabascau.util.log4j.match.LiteralSearch;
+import org.apache.commons.lang3.text.StrSubstitutor;
 import org.w3c.dom.Node;
 
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
 import javax.xml.bind.annotation.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * <p>Java class for filterType complex type.
@@ -29,6 +36,10 @@ import javax.xml.bind.annotation.*;
  *       &lt;/sequence>
  *       &lt;attribute name="log" type="{http://www.w3.org/2001/XMLSchema}boolean"
  * />
+ *       &lt;attribute name="mode" type="{http://www.w3.org/2001/XMLSchema}string"
+ * />
+ *       &lt;attribute name="priority" type="{http://www.w3.org/2001/XMLSchema}string"
+ * />
  *     &lt;/restriction>
  *   &lt;/complexContent>
  * &lt;/complexType>
@@ -38,8 +49,49 @@ import javax.xml.bind.annotation.*;
 /*@XmlType(name = "filter", propOrder = {"to", "message", "regex"})*/
 public class FilterType
 {
+    /**
+     * The whole log entry must match the regex.
+     */
+    public static final String MODE_MATCHES = "matches";
+    /**
+     * The regex may match anywhere within the log entry.
+     */
+    public static final String MODE_FIND = "find";
+    /**
+     * Sent before everything else, never held for a digest.
+     */
+    public static final String PRIORITY_HIGH = "high";
+    /**
+     * The default priority.
+     */
+    public static final String PRIORITY_NORMAL = "normal";
+    /**
+     * Sent after everything else.
+     */
+    public static final String PRIORITY_LOW = "low";
+    /**
+     * The rank of {@link #PRIORITY_HIGH}, the first sent.
+     */
+    public static final int RANK_HIGH = 0;
+    /**
+     * The rank of {@link #PRIORITY_NORMAL}, and of emails matching no filter.
+     */
+    public static final int RANK_NORMAL = 1;
+    /**
+     * The rank of {@link #PRIORITY_LOW}.
+     */
+    public static final int RANK_LOW = 2;
+    /**
+     * The number of ranks.
+     */
+    public static final int RANKS = 3;
+
     @XmlAttribute
     protected Boolean log;
+    @XmlAttribute
+    protected String mode;
+    @XmlAttribute
+    protected String priority;
     @XmlElement(required = true)
     protected String to;
     @XmlElement(required = true)
@@ -48,8 +100,43 @@ public class FilterType
     protected String regex;
     @XmlElement(required = false)
     protected String subject;
+    @XmlTransient
     private ConfigType configType;
 
+    /**
+     * The values below are resolved by {@link #compile(StrSubstitutor)} when
+     * the configuration is loaded, so that nothing is parsed or substituted
+     * while logging.
+     */
+    @XmlTransient
+    private boolean compiled;
+    @XmlTransient
+    private String resolvedTo;
+    @XmlTransient
+    private InternetAddress[] toAddresses;
+    @XmlTransient
+    private String resolvedMessage;
+    @XmlTransient
+    private String resolvedSubject;
+    @XmlTransient
+    private boolean find;
+    @XmlTransient
+    private int rank = RANK_NORMAL;
+    @XmlTransient
+    private Pattern pattern;
+    /**
+     * Matchers are not thread safe, but they are reusable, so each logging
+     * thread keeps one per filter.
+     */
+    @XmlTransient
+    private ThreadLocal<Matcher> matchers;
+    /**
+     * Used instead of the regex when the regex is only a series of literals,
+     * such as the common <code>(?s)(?i).*literal.*</code>.
+     */
+    @XmlTransient
+    private LiteralSearch literalSearch;
+
     public FilterType()
     {
     }
@@ -63,7 +150,18 @@ public class FilterType
      */
     public String getTo()
     {
-        return configType.getSubstitutor().replace(to);
+        return compiled ? resolvedTo : configType.getSubstitutor().replace(to);
+    }
+
+    /**
+     * The parsed form of {@link #getTo()}.
+     *
+     * @return the addresses to send matching errors to, or null if the filter
+     *         has not been compiled, or has no recipients.
+     */
+    public InternetAddress[] getToAddresses()
+    {
+        return toAddresses == null ? null : toAddresses.clone();
     }
 
     /**
@@ -85,7 +183,8 @@ public class FilterType
      */
     public String getMessage()
     {
-        return configType.getSubstitutor().replace(message);
+        return compiled ? resolvedMessage :
+            configType.getSubstitutor().replace(message);
     }
 
     /**
@@ -122,6 +221,71 @@ public class FilterType
         this.regex = value;
     }
 
+    /**
+     * How the regex is applied to the log entry, either {@link #MODE_MATCHES},
+     * the default, or {@link #MODE_FIND}.
+     *
+     * @return possible object is {@link String }
+     */
+    public String getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Sets the value of the mode property.
+     *
+     * @param value allowed object is {@link String }
+     *
+     * @see #getMode()
+     */
+    public void setMode(final String value)
+    {
+        this.mode = value;
+    }
+
+    /**
+     * How urgent the emails of this filter are, {@link #PRIORITY_HIGH},
+     * {@link #PRIORITY_NORMAL}, the default, or {@link #PRIORITY_LOW}.
+     *
+     * @return possible object is {@link String }
+     */
+    public String getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Sets the value of the priority property.
+     *
+     * @param value allowed object is {@link String }
+     *
+     * @see #getPriority()
+     */
+    public void setPriority(final String value)
+    {
+        this.priority = value;
+    }
+
+    /**
+     * The priority as the order emails are sent in.
+     *
+     * @return {@link #RANK_HIGH}, {@link #RANK_NORMAL} or {@link #RANK_LOW}.
+     */
+    public int getRank()
+    {
+        return compiled ? rank : rank(priority);
+    }
+
+    private static int rank(final String priority)
+    {
+        if (PRIORITY_HIGH.equals(priority))
+        {
+            return RANK_HIGH;
+        }
+        return PRIORITY_LOW.equals(priority) ? RANK_LOW : RANK_NORMAL;
+    }
+
     /**
      * Is this something that should be logged by email?
      *
@@ -168,7 +332,43 @@ public class FilterType
      */
     public boolean match(final String logEntry)
     {
-        return logEntry.matches(regex);
+        if (!compiled)
+        {
+            final Matcher matcher = Pattern.compile(regex).matcher(logEntry);
+            return MODE_FIND.equals(mode) ? matcher.find() : matcher.matches();
+        }
+
+        if (literalSearch != null)
+        {
+            return literalSearch.matches(logEntry);
+        }
+
+        final Matcher matcher = matchers.get().reset(logEntry);
+        try
+        {
+            return find ? matcher.find() : matcher.matches();
+        }
+        finally
+        {   // don't hold on to the log entry
+            matcher.reset("");
+        }
+    }
+
+    /**
+     * @return true if this filter is matched with a literal search rather than
+     *         its regex.
+     */
+    boolean isLiteralSearch()
+    {
+        return literalSearch != null;
+    }
+
+    /**
+     * @return the compiled regex, or null if the filter has not been compiled.
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
     }
 
     /**
@@ -179,7 +379,8 @@ public class FilterType
      */
     public String getSubject()
     {
-        return configType.getSubstitutor().replace(subject);
+        return compiled ? resolvedSubject :
+            configType.getSubstitutor().replace(subject);
     }
 
     public void setSubject(final String subject)
@@ -195,4 +396,68 @@ public class FilterType
             this.configType = configType;
         }
     }
+
+    /**
+     * Compiles the regex, resolves the variables in the to, message and subject
+     * elements, and parses the recipient addresses.
+     *
+     * @param substitutor the variables of the owning configuration.
+     *
+     * @throws IllegalArgumentException if the regex, mode or priority are
+     *                                  invalid, or the recipient addresses can
+     *                                  not be parsed.
+     */
+    void compile(final StrSubstitutor substitutor)
+    {
+        if (regex == null)
+        {
+            throw new IllegalArgumentException("filter has no regex");
+        }
+        if (mode != null && !MODE_MATCHES.equals(mode) &&
+            !MODE_FIND.equals(mode))
+        {
+            throw new IllegalArgumentException("Invalid filter mode [" + mode +
+                "] for regex [" + regex + "], expected " + MODE_MATCHES +
+                " or " + MODE_FIND);
+        }
+        if (priority != null && !PRIORITY_HIGH.equals(priority) &&
+            !PRIORITY_NORMAL.equals(priority) && !PRIORITY_LOW.equals(priority))
+        {
+            throw new IllegalArgumentException("Invalid filter priority [" +
+                priority + "] for regex [" + regex + "], expected " +
+                PRIORITY_HIGH + ", " + PRIORITY_NORMAL + " or " +
+                PRIORITY_LOW);
+        }
+        rank = rank(priority);
+        try
+        {
+            pattern = Pattern.compile(regex);
+        }
+        catch (final PatternSyntaxException e)
+        {
+            throw new IllegalArgumentException("Invalid filter regex: " +
+                e.getMessage(), e);
+        }
+        find = MODE_FIND.equals(mode);
+        literalSearch = LiteralSearch.compile(regex, find);
+        final Pattern compiledPattern = pattern;
+        matchers = ThreadLocal.withInitial(() -> compiledPattern.matcher(""));
+
+        resolvedTo = substitutor.replace(to);
+        resolvedMessage = substitutor.replace(message);
+        resolvedSubject = substitutor.replace(subject);
+        if (resolvedTo != null && resolvedTo.length() > 0)
+        {
+            try
+            {
+                toAddresses = InternetAddress.parse(resolvedTo, true);
+            }
+            catch (final AddressException e)
+            {
+                throw new IllegalArgumentException("Could not parse filter " +
+                    "address [" + resolvedTo + "]", e);
+            }
+        }
+        compiled = true;
+    }
 }
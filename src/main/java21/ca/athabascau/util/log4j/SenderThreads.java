@@ -0,0 +1,35 @@
+package ca.athabascau.util.log4j;
+
+/**
+ * Starts the threads holding the SMTP conversations of a {@link
+ * DeliveryQueue}.  This is the Java 21 version, in the multi-release jar,
+ * starting a virtual thread for each, so that <b>SenderThreads</b> may be
+ * large: a conversation waiting on a slow SMTP server does not tie up an
+ * operating system thread.  How many are held with one server at once is
+ * still bounded by <b>SMTPRelayConcurrency</b>.
+ */
+final class SenderThreads
+{
+    /**
+     * Whether the threads started are virtual threads.
+     */
+    static final boolean VIRTUAL = true;
+
+    private SenderThreads()
+    {
+    }
+
+    /**
+     * Starts a sender thread, which, being virtual, does not keep the JVM
+     * alive.
+     *
+     * @param name the name of the thread
+     * @param task what it runs.
+     *
+     * @return the thread.
+     */
+    static Thread start(final String name, final Runnable task)
+    {
+        return Thread.ofVirtual().name(name).start(task);
+    }
+}
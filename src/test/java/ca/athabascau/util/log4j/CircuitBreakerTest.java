@@ -0,0 +1,61 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the circuit breaker stops emails being tried while the server
+ * keeps failing, and lets them through again once a probe is sent.
+ */
+public class CircuitBreakerTest extends TestCase
+{
+    /**
+     * Tests that the breaker opens at the threshold, lets one probe through
+     * after the interval, opens again if it fails, and closes if it is sent.
+     *
+     * @throws InterruptedException
+     */
+    public void testStates() throws InterruptedException
+    {
+        final CircuitBreaker breaker = new CircuitBreaker("states", 2, 100);
+        assertTrue(breaker.allow());
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("open breaker should fail fast", breaker.allow());
+
+        Thread.sleep(150);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("one probe should be let through", breaker.allow());
+        assertFalse("only one probe at a time", breaker.allow());
+        breaker.failure();
+        assertEquals("failed probe should open it again",
+            CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        assertTrue(breaker.allow());
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+        breaker.failure();
+        assertEquals("failures in a row should start again",
+            CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.close();
+    }
+
+    /**
+     * Tests that a threshold of 0 never opens the breaker.
+     */
+    public void testDisabled()
+    {
+        final CircuitBreaker breaker = new CircuitBreaker("disabled", 0, 100);
+        for (int index = 0; index < 100; index++)
+        {
+            assertTrue(breaker.allow());
+            breaker.failure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.close();
+    }
+}
@@ -0,0 +1,296 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.FilterType;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that urgent messages are sent first, and by their own threads, that
+ * the sender threads of every queue sending to one SMTP server stay within
+ * its limit, and what each overflow policy does with a full queue.
+ */
+public class DeliveryQueueTest extends TestCase
+{
+    /**
+     * Tests that two queues with four sender threads each send at most two
+     * messages to the same server at once, and still send them all.
+     */
+    public void testRelayConcurrency()
+    {
+        final AtomicInteger sending = new AtomicInteger();
+        final AtomicInteger mostSending = new AtomicInteger();
+        final AtomicInteger sent = new AtomicInteger();
+        final DeliveryQueue[] queues = new DeliveryQueue[2];
+        for (int index = 0; index < queues.length; index++)
+        {
+            queues[index] = new DeliveryQueue("relay-" + index, 16, 4, 0,
+                "relay.example.com:25", 2, message ->
+            {
+                final int now = sending.incrementAndGet();
+                mostSending.accumulateAndGet(now, Math::max);
+                try
+                {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                sending.decrementAndGet();
+                sent.incrementAndGet();
+            });
+            queues[index].start();
+        }
+        for (int index = 0; index < 16; index++)
+        {
+            assertTrue(queues[index % 2].offer(new OutboundMessage(null, null,
+                "message " + index)));
+        }
+        for (final DeliveryQueue queue : queues)
+        {
+            queue.close(5000);
+        }
+        assertEquals(16, sent.get());
+        assertEquals("the server's limit should be shared", 2,
+            mostSending.get());
+    }
+
+    /**
+     * Tests that the messages waiting are sent most urgent first, in the
+     * order they were queued within a priority.
+     *
+     * @throws InterruptedException
+     */
+    public void testPriority() throws InterruptedException
+    {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sent =
+            Collections.synchronizedList(new ArrayList<String>());
+        final DeliveryQueue queue = new DeliveryQueue("priority", 16, 1,
+            message ->
+        {
+            busy.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(new String(message.getBody()));
+        });
+        queue.start();
+        queue.offer(message(null, "first"));
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+        queue.offer(message(FilterType.PRIORITY_LOW, "low"));
+        queue.offer(message(null, "normal"));
+        queue.offer(message(FilterType.PRIORITY_HIGH, "high 1"));
+        queue.offer(message(FilterType.PRIORITY_NORMAL, "normal again"));
+        queue.offer(message(FilterType.PRIORITY_HIGH, "high 2"));
+        release.countDown();
+        queue.close(5000);
+        assertEquals("[first, high 1, high 2, normal, normal again, low]",
+            sent.toString());
+    }
+
+    /**
+     * Tests that an urgent message is sent by a reserved thread while every
+     * other sender thread is held up.
+     *
+     * @throws InterruptedException
+     */
+    public void testReserved() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch urgentSent = new CountDownLatch(1);
+        final DeliveryQueue queue = new DeliveryQueue("reserved", 16, 1, 1,
+            null, 0, message ->
+        {
+            if (message.getRank() == FilterType.RANK_HIGH)
+            {
+                urgentSent.countDown();
+                return;
+            }
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        queue.start();
+        try
+        {
+            queue.offer(message(null, "slow"));
+            queue.offer(message(null, "waiting"));
+            Thread.sleep(100);
+            queue.offer(message(FilterType.PRIORITY_HIGH, "urgent"));
+            assertTrue("urgent message should not wait for the others",
+                urgentSent.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            release.countDown();
+            queue.close(5000);
+        }
+    }
+
+    /**
+     * Tests that a full queue drops the oldest message, or merges a message
+     * into one for the same route up to the most bytes, and counts them.
+     *
+     * @throws InterruptedException
+     */
+    public void testEvictAndCoalesce() throws InterruptedException
+    {
+        final List<String> sent = new ArrayList<String>();
+        DeliveryQueue queue = overflowing(DeliveryQueue.Overflow.DROP_OLDEST,
+            sent);
+        assertTrue(queue.offer(message(null, "a")));
+        assertTrue(queue.offer(message(null, "b")));
+        assertTrue(queue.offer(message(null, "c")));
+        assertEquals(1, queue.getEvicted());
+        assertEquals(0, queue.getDropped());
+        release(queue, sent);
+        assertEquals("[held, b, c]", sent.toString());
+
+        sent.clear();
+        queue = overflowing(DeliveryQueue.Overflow.COALESCE, sent);
+        assertTrue(queue.offer(message(null, "a")));
+        assertTrue(queue.offer(message(null, "b")));
+        assertTrue(queue.offer(message(null, "c")));
+        assertFalse("no message waiting for the route",
+            queue.offer(new OutboundMessage(null, "other", "d")));
+        assertFalse("merged message would be too large",
+            queue.offer(message(null, "e")));
+        assertEquals(1, queue.getCoalesced());
+        assertEquals(2, queue.getDropped());
+        release(queue, sent);
+        assertEquals("[held, a, b" +
+            DigestCollector.SECTION_SEPARATOR + "c]", sent.toString());
+    }
+
+    /**
+     * Tests that a full queue makes the offer wait for room, dropping the
+     * message once the timeout is up, but never makes the scheduler wait, or
+     * hands the message to the spill.
+     *
+     * @throws Exception
+     */
+    public void testBlockAndSpill() throws Exception
+    {
+        final List<String> sent = new ArrayList<String>();
+        final DeliveryQueue queue = overflowing(DeliveryQueue.Overflow.BLOCK,
+            sent);
+        assertTrue(queue.offer(message(null, "a")));
+        assertTrue(queue.offer(message(null, "b")));
+        final long start = System.currentTimeMillis();
+        assertFalse(queue.offer(message(null, "c")));
+        assertTrue("offer should wait out the timeout",
+            System.currentTimeMillis() - start >= 90);
+        assertEquals(1, queue.getBlocked());
+        assertEquals(1, queue.getDropped());
+        final long scheduled = System.currentTimeMillis();
+        assertFalse(AppenderScheduler.get().submit(() ->
+            queue.offer(message(null, "scheduled"))).get());
+        assertTrue("the scheduler thread should not wait",
+            System.currentTimeMillis() - scheduled < 90);
+        assertEquals(1, queue.getBlocked());
+        assertEquals(2, queue.getDropped());
+        AppenderScheduler.schedule(() ->
+        {
+            synchronized (sent)
+            {
+                sent.notifyAll();
+            }
+        }, 50);
+        assertTrue("offer should wait for room",
+            queue.offer(message(null, "d")));
+        assertEquals(2, queue.getBlocked());
+        release(queue, sent);
+        assertEquals("[held, a, b, d]", sent.toString());
+
+        final List<String> spilled = new ArrayList<String>();
+        final DeliveryQueue spilling = new DeliveryQueue("spill", 1, 1,
+            message -> { });
+        spilling.setOverflow(DeliveryQueue.Overflow.SPILL, 0, null, 0,
+            message -> spilled.add(new String(message.getBody())));
+        assertTrue(spilling.offer(message(null, "a")));
+        assertTrue(spilling.offer(message(null, "b")));
+        assertEquals(1, spilling.getSpilled());
+        assertEquals("[b]", spilled.toString());
+        spilling.start();
+        spilling.close(5000);
+    }
+
+    /**
+     * @return a started queue for two messages, with its one sender thread
+     *         held up sending a first message until the list is notified;
+     *         the bodies sent are added to the list.
+     */
+    private static DeliveryQueue overflowing(
+        final DeliveryQueue.Overflow overflow, final List<String> sent)
+        throws InterruptedException
+    {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final DeliveryQueue queue = new DeliveryQueue(overflow.name(), 2, 1,
+            message ->
+        {
+            synchronized (sent)
+            {
+                if (sent.isEmpty())
+                {
+                    busy.countDown();
+                    try
+                    {
+                        sent.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                sent.add(new String(message.getBody()));
+            }
+        });
+        queue.setOverflow(overflow, 100,
+            message -> String.valueOf(message.getSubject()),
+            1 + DigestCollector.SECTION_SEPARATOR.length() * 2, null);
+        queue.start();
+        queue.offer(message(null, "held"));
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+        return queue;
+    }
+
+    private static void release(final DeliveryQueue queue,
+        final List<String> sent)
+    {
+        synchronized (sent)
+        {
+            sent.notifyAll();
+        }
+        queue.close(5000);
+    }
+
+    private static OutboundMessage message(final String priority,
+        final String body)
+    {
+        FilterType filter = null;
+        if (priority != null)
+        {
+            filter = new FilterType();
+            filter.setPriority(priority);
+        }
+        return new OutboundMessage(filter, null, body);
+    }
+}
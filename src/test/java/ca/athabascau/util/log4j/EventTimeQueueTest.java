@@ -3,6 +3,8 @@ package ca.athabascau.util.log4j;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import java.util.concurrent.CountDownLatch;
+
 /**
  * Test the EventTimeQueue, to ensure that it is returning false when the
  * frequency has been exceeded.  Also test to ensure the performance is
@@ -48,26 +50,71 @@ public class EventTimeQueueTest extends TestCase
 
     /**
      * Verifies that the performance of the event queue is within acceptable
-     * parameters; namely 100ms.  Note, when running from within an IDE, this
-     * test may fail.
+     * parameters when many threads log at once, from 1 to 64 threads; namely
+     * an average of no more than 100 microseconds per event, as it once was
+     * for 1000 events in 100ms on one thread.  Note, when running from within
+     * an IDE, this test may fail.
+     *
+     * @throws InterruptedException
      */
-    public void testPerf()
+    public void testPerf() throws InterruptedException
     {
+        final int addsPerThread = 20000;
+        // warm up, so the first thread count is not timing the interpreter
+        timeAdds(4, addsPerThread);
+        for (int threads = 1; threads <= 64; threads *= 2)
+        {
+            final long elapsed = timeAdds(threads, addsPerThread);
+            final long nanosPerAdd = elapsed / ((long) threads * addsPerThread);
+            System.out.println("event add with " + threads + " threads took " +
+                nanosPerAdd + "ns per add, " + (elapsed / 1000000) + "ms " +
+                "for " + threads * addsPerThread);
+            assertTrue("performance fails with " + threads + " threads, " +
+                "expected <100000ns per add: " + nanosPerAdd,
+                nanosPerAdd < 100000);
+        }
+    }
 
+    /**
+     * @return how long, in nanoseconds, it took for the given number of threads
+     *         to each add events to one queue.
+     */
+    private long timeAdds(final int threads, final int addsPerThread)
+        throws InterruptedException
+    {
         final EventTimeQueue eventTimeQueue = new EventTimeQueue(5, 1000,
             "Flood protection enabled");
-        final long before;
-        final long after;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int index = 0; index < threads; index++)
+        {
+            workers[index] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int add = 0; add < addsPerThread; add++)
+                    {
+                        eventTimeQueue.add();
+                    }
+                }
+            };
+            workers[index].start();
+        }
 
-        before = System.currentTimeMillis();
-        for (int index = 0; index < 1000; index++)
+        final long before = System.nanoTime();
+        start.countDown();
+        for (int index = 0; index < threads; index++)
         {
-            eventTimeQueue.add();
+            workers[index].join();
         }
-        after = System.currentTimeMillis();
-        System.out.println(
-            "event add loop of 1000 took: " + (after - before) + "ms");
-        assertTrue("performance fails expected <100ms: " + (after - before),
-            after - before < 100);
+        return System.nanoTime() - before;
     }
 }
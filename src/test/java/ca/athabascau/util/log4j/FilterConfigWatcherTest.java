@@ -0,0 +1,99 @@
+package ca.athabascau.util.log4j;
+
+import ca.athabascau.util.log4j.xml.ConfigType;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that the filter config is compiled once, and swapped for a new snapshot
+ * when the file changes.
+ */
+public class FilterConfigWatcherTest extends TestCase
+{
+    private File configFile;
+    private FilterConfigWatcher watcher;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        configFile = File.createTempFile("filter-config", ".xml");
+        writeConfig("first@example.com");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        if (watcher != null)
+        {
+            watcher.stop();
+        }
+        configFile.delete();
+    }
+
+    /**
+     * The snapshot should be the same instance until the file changes, and
+     * the variables should already be resolved.
+     */
+    public void testSnapshot()
+    {
+        watcher = new FilterConfigWatcher(configFile.getAbsolutePath(), 100);
+        watcher.start();
+        final ConfigType config = watcher.getConfig();
+        assertNotNull("config should have loaded", config);
+        assertSame("snapshot should not change", config, watcher.getConfig());
+        assertEquals("first@example.com",
+            config.findMatch("a watched error").getTo());
+        assertEquals("first@example.com",
+            config.findMatch("a watched error").getToAddresses()[0]
+                .getAddress());
+    }
+
+    /**
+     * Modifying the file should publish a new snapshot, and an invalid file
+     * should leave the previous one in effect.
+     */
+    public void testReload() throws IOException, InterruptedException
+    {
+        watcher = new FilterConfigWatcher(configFile.getAbsolutePath(), 100);
+        watcher.start();
+        final ConfigType first = watcher.getConfig();
+
+        writeConfig("second@example.com");
+        final ConfigType second = waitForChange(first);
+        assertNotSame("config should have been reloaded", first, second);
+        assertEquals("second@example.com",
+            second.findMatch("a watched error").getTo());
+
+        FileUtils.writeStringToFile(configFile, "<config><filter>");
+        Thread.sleep(1000);
+        assertSame("invalid config should have been ignored", second,
+            watcher.getConfig());
+    }
+
+    private ConfigType waitForChange(final ConfigType previous)
+        throws InterruptedException
+    {
+        for (int index = 0; index < 100 && watcher.getConfig() == previous;
+             index++)
+        {
+            Thread.sleep(50);
+        }
+        return watcher.getConfig();
+    }
+
+    private void writeConfig(final String to) throws IOException
+    {
+        FileUtils.writeStringToFile(configFile,
+            "<config>\n" +
+            "  <var name=\"to\" value=\"" + to + "\"/>\n" +
+            "  <filter log=\"true\">\n" +
+            "    <to>${to}</to>\n" +
+            "    <message>watched</message>\n" +
+            "    <regex>(?s)(?i).*a watched error.*</regex>\n" +
+            "  </filter>\n" +
+            "</config>\n");
+    }
+}
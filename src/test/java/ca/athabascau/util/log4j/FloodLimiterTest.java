@@ -0,0 +1,193 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that flood budgets are kept separately for each key, and that idle
+ * keys are evicted.
+ */
+public class FloodLimiterTest extends TestCase
+{
+    private static final Logger logger = Logger.getLogger(
+        FloodLimiterTest.class);
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        SMTPAppender.setFloodProtectionDisabled(false);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        SMTPAppender.setFloodProtectionDisabled(true);
+    }
+
+    /**
+     * Tests that a noisy error exhausting its own budget does not stop a
+     * different error from being emailed.
+     */
+    public void testFingerprint()
+    {
+        final FloodLimiter limiter = createLimiter(
+            FloodLimiter.KEY_FINGERPRINT, 100);
+        try
+        {
+            for (int index = 0; index < 3; index++)
+            {
+                assertTrue("within budget", limiter.add(
+                    createEvent("noisy " + index, new IllegalStateException()),
+                    null));
+            }
+            assertFalse("noisy error should be throttled", limiter.add(
+                createEvent("noisy 3", new IllegalStateException()), null));
+            assertTrue("a different error should not be throttled",
+                limiter.add(createEvent("other", new IllegalArgumentException()),
+                    null));
+            assertEquals(2, limiter.getKeyCount());
+        }
+        finally
+        {
+            limiter.close();
+        }
+    }
+
+    /**
+     * Tests that the global key keeps the original behaviour, one budget for
+     * every error.
+     */
+    public void testGlobal()
+    {
+        final FloodLimiter limiter = createLimiter(FloodLimiter.KEY_GLOBAL,
+            100);
+        try
+        {
+            for (int index = 0; index < 3; index++)
+            {
+                assertTrue("within budget", limiter.add(
+                    createEvent("noisy", new IllegalStateException()), null));
+            }
+            assertFalse("every error shares the budget", limiter.add(
+                createEvent("other", new IllegalArgumentException()), null));
+            assertEquals(0, limiter.getKeyCount());
+        }
+        finally
+        {
+            limiter.close();
+        }
+    }
+
+    /**
+     * Tests that the number of keys is bounded, and that idle keys are
+     * evicted to make room.
+     *
+     * @throws InterruptedException
+     */
+    public void testEviction() throws InterruptedException
+    {
+        final FloodLimiter limiter = createLimiter(
+            FloodLimiter.KEY_FINGERPRINT, 10);
+        try
+        {
+            for (int index = 0; index < 1000; index++)
+            {
+                limiter.add(createEvent("distinct " + (char) ('a' + index % 26) +
+                    (char) ('a' + index / 26), null), null);
+            }
+            assertEquals("keys should be bounded", 10, limiter.getKeyCount());
+
+            Thread.sleep(1300);
+            limiter.evictIdle();
+            assertEquals("idle keys should be evicted", 0,
+                limiter.getKeyCount());
+        }
+        finally
+        {
+            limiter.close();
+        }
+    }
+
+    /**
+     * Tests that the flood notification names the key being throttled, and
+     * that keys which start flooding soon after are named in the next one
+     * rather than each sending their own.
+     */
+    public void testNotification()
+    {
+        final List<String> notified = new ArrayList<String>();
+        final FloodLimiter limiter = new FloodLimiter(createAppender(
+            FloodLimiter.KEY_FINGERPRINT, 100))
+        {
+            void notifyFlood(final String throttled)
+            {
+                notified.add(throttled);
+            }
+        };
+        try
+        {
+            for (int index = 0; index < 4; index++)
+            {
+                limiter.add(createEvent("noisy", null), null);
+                limiter.add(createEvent("other", null), null);
+            }
+            assertEquals("one notification", 1, notified.size());
+            assertTrue(notified.get(0), notified.get(0).contains("[noisy]"));
+            assertFalse(notified.get(0), notified.get(0).contains("other"));
+        }
+        finally
+        {
+            limiter.close();
+        }
+    }
+
+    /**
+     * Tests that a stack trace which has lost its throwable has the same
+     * fingerprint as the throwable, and that messages do not change it.
+     */
+    public void testFingerprintOfText()
+    {
+        final Exception first = new IllegalStateException("first",
+            new NullPointerException());
+        final Exception second = new IllegalStateException("second",
+            new NullPointerException());
+        final long fingerprint = Fingerprint.of(first);
+        assertEquals("messages should not matter", fingerprint,
+            Fingerprint.of(second));
+        assertEquals("text should match the throwable", fingerprint,
+            Fingerprint.of(new ThrowableInformation(first).getThrowableStrRep()));
+        assertEquals("digits should not matter",
+            Fingerprint.of(createEvent("user 12 failed", null)),
+            Fingerprint.of(createEvent("user 345 failed", null)));
+    }
+
+    private static FloodLimiter createLimiter(final String key,
+        final int maxKeys)
+    {
+        return new FloodLimiter(createAppender(key, maxKeys));
+    }
+
+    private static SMTPAppender createAppender(final String key,
+        final int maxKeys)
+    {
+        final SMTPAppender appender = new SMTPAppender();
+        appender.setFloodFrequency(3);
+        appender.setFloodFrequencyMilliseconds(1000);
+        appender.setFloodProtectionKey(key);
+        appender.setFloodProtectionMaxKeys(maxKeys);
+        return appender;
+    }
+
+    private static LoggingEvent createEvent(final String message,
+        final Throwable throwable)
+    {
+        return new LoggingEvent(FloodLimiterTest.class.getName(), logger,
+            Level.ERROR, message, throwable);
+    }
+}
@@ -0,0 +1,186 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+
+import javax.mail.MessagingException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that spooled messages are delivered in order once the server is back,
+ * survive a restart, and that the spool stays within its size.
+ */
+public class MessageSpoolTest extends TestCase
+{
+    private File directory;
+    private final List<String> sent =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Tests that messages spooled while the server fails are delivered, in
+     * order and as they were addressed, once it is back, and that delivered
+     * segments are deleted.
+     *
+     * @throws Exception
+     */
+    public void testReplay() throws Exception
+    {
+        final int[] failures = {2};
+        final MessageSpool spool = new MessageSpool(directory, "replay",
+            MessageSpool.DEFAULT_MAX_BYTES, 20, message ->
+        {
+            synchronized (failures)
+            {
+                if (failures[0]-- > 0)
+                {
+                    throw new MessagingException("relay down");
+                }
+            }
+            sent.add(message.getTo() + " " + message.getSubject() + " " +
+                new String(message.getBody(), StandardCharsets.UTF_8));
+        });
+        spool.start();
+        try
+        {
+            for (int index = 0; index < 3; index++)
+            {
+                assertTrue(spool.append(message(index)));
+            }
+            waitForSent(3);
+            assertEquals("[to@example.com subject 0 body 0, " +
+                "to@example.com subject 1 body 1, " +
+                "to@example.com subject 2 body 2]", sent.toString());
+            assertEquals(0, spool.getPending());
+        }
+        finally
+        {
+            spool.close(1000);
+        }
+        assertEquals("only the acknowledgements and the open segment " +
+            "should be left", 2, directory.listFiles().length);
+    }
+
+    /**
+     * Tests that messages not delivered when the spool is closed are
+     * delivered by the next spool opened on the directory, ignoring a record
+     * cut short by a crash.
+     *
+     * @throws Exception
+     */
+    public void testRestart() throws Exception
+    {
+        final MessageSpool failing = new MessageSpool(directory, "restart",
+            MessageSpool.DEFAULT_MAX_BYTES, 20, message ->
+        {
+            throw new MessagingException("relay down");
+        });
+        failing.start();
+        for (int index = 0; index < 3; index++)
+        {
+            assertTrue(failing.append(message(index)));
+        }
+        failing.close(1000);
+        assertEquals(3, failing.getPending());
+        final File[] files = directory.listFiles();
+        for (final File file : files)
+        {
+            if (file.getName().endsWith(".spool"))
+            {
+                final FileOutputStream torn = new FileOutputStream(file,
+                    true);
+                torn.write(new byte[]{0, 0, 1, 0, 42});
+                torn.close();
+            }
+        }
+
+        final MessageSpool spool = new MessageSpool(directory, "restart",
+            MessageSpool.DEFAULT_MAX_BYTES, 20, message -> sent.add(
+            message.getSubject()));
+        assertEquals(3, spool.getPending());
+        spool.start();
+        try
+        {
+            waitForSent(3);
+            assertEquals("[subject 0, subject 1, subject 2]", sent.toString());
+        }
+        finally
+        {
+            spool.close(1000);
+        }
+    }
+
+    /**
+     * Tests that the oldest messages are dropped, rather than the spool
+     * growing beyond its size.
+     *
+     * @throws IOException
+     */
+    public void testBounded() throws IOException
+    {
+        final MessageSpool spool = new MessageSpool(directory, "bounded",
+            4096, 20, message ->
+        {
+            throw new MessagingException("relay down");
+        });
+        try
+        {
+            for (int index = 0; index < 100; index++)
+            {
+                spool.append(message(index));
+            }
+            long size = 0;
+            for (final File file : directory.listFiles())
+            {
+                size += file.getName().endsWith(".spool") ? file.length() : 0;
+            }
+            assertTrue("spool is " + size + " bytes", size <= 4096);
+            assertTrue(spool.getDropped() > 0);
+            assertEquals(100, spool.getPending() + spool.getDropped());
+        }
+        finally
+        {
+            spool.close(0);
+        }
+    }
+
+    private static OutboundMessage message(final int index)
+    {
+        return new OutboundMessage(null, "to@example.com", "subject " + index,
+            ("body " + index).getBytes(StandardCharsets.UTF_8), 0, 6, null);
+    }
+
+    private void waitForSent(final int count) throws InterruptedException
+    {
+        for (int index = 0; index < 100 && sent.size() < count; index++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(count, sent.size());
+    }
+}
@@ -0,0 +1,117 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that the novelty store remembers errors across restarts, forgets them
+ * with age, and stays the same size however many errors it sees.
+ */
+public class NoveltyStoreTest extends TestCase
+{
+    private File file;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        file = File.createTempFile("novelty", ".store");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        file.delete();
+    }
+
+    /**
+     * Tests that an error is only new the first time, even after the store
+     * has been closed and opened again, and that a store is shared.
+     *
+     * @throws IOException
+     */
+    public void testNovelty() throws IOException
+    {
+        final NoveltyStore store = NoveltyStore.open(file.getPath(), 1024);
+        try
+        {
+            assertSame("store should be shared", store,
+                NoveltyStore.open(file.getPath(), 1024));
+            store.release();
+            assertTrue("first sight is new", store.record(42, 1000, 0));
+            assertFalse("second sight is known", store.record(42, 2000, 0));
+            assertTrue("another error is new", store.record(43, 2000, 0));
+        }
+        finally
+        {
+            store.release();
+        }
+
+        final NoveltyStore reopened = NoveltyStore.open(file.getPath(), 1024);
+        try
+        {
+            assertNotSame(store, reopened);
+            assertFalse("should be remembered across restarts",
+                reopened.record(42, 3000, 0));
+        }
+        finally
+        {
+            reopened.release();
+        }
+    }
+
+    /**
+     * Tests that an error not seen for the maximum age is new again.
+     *
+     * @throws IOException
+     */
+    public void testAging() throws IOException
+    {
+        final NoveltyStore store = NoveltyStore.open(file.getPath(), 1024);
+        try
+        {
+            assertTrue(store.record(42, 1000, 5000));
+            assertFalse("within the maximum age", store.record(42, 4000, 5000));
+            assertFalse("age counts from when last seen",
+                store.record(42, 8000, 5000));
+            assertTrue("older than the maximum age",
+                store.record(42, 20000, 5000));
+        }
+        finally
+        {
+            store.release();
+        }
+    }
+
+    /**
+     * Tests that the file stays the same size however many errors are seen,
+     * the oldest making way for the new.
+     *
+     * @throws IOException
+     */
+    public void testBounded() throws IOException
+    {
+        final NoveltyStore store = NoveltyStore.open(file.getPath(), 100);
+        try
+        {
+            assertEquals("rounded down to a power of two", 64,
+                store.getSlots());
+            final long length = file.length();
+            for (int index = 0; index < 10000; index++)
+            {
+                store.record(index * 0x9e3779b97f4a7c15L, index, 0);
+            }
+            assertEquals(length, file.length());
+            assertTrue("the oldest should have made way",
+                store.record(0, 10000, 0));
+            assertFalse("the newest should be kept",
+                store.record(9999 * 0x9e3779b97f4a7c15L, 10001, 0));
+        }
+        finally
+        {
+            store.release();
+        }
+    }
+}
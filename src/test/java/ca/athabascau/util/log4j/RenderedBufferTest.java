@@ -0,0 +1,138 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that the rendered buffer holds the right bytes for the most recent
+ * events.
+ */
+public class RenderedBufferTest extends TestCase
+{
+    /**
+     * Tests that events are encoded exactly as {@link String#getBytes} would
+     * encode them, whatever characters they hold.
+     */
+    public void testEncoding()
+    {
+        final RenderedBuffer buffer = new RenderedBuffer(1);
+        final Random random = new Random(42);
+        // ASCII, two and three byte characters, and a surrogate pair whose
+        // halves also turn up unpaired
+        final char[] alphabet = ("abc \n\t\u00e9\u00fc\u4e2d\u6587" +
+            "\ud83d\ude00\u20ac").toCharArray();
+        for (int test = 0; test < 1000; test++)
+        {
+            final StringBuilder text = new StringBuilder();
+            final int length = random.nextInt(test < 900 ? 50 : 5000);
+            for (int index = 0; index < length; index++)
+            {
+                text.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            final String expected = text.toString();
+            buffer.add(text, 0, 0, false, null);
+
+            final RenderedBuffer.Entry entry = buffer.get(0);
+            final byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected, bytes.length, entry.getLength());
+            assertTrue(expected, Arrays.equals(bytes,
+                Arrays.copyOf(entry.getData(), entry.getLength())));
+            assertEquals(expected, expected.matches("\\p{ASCII}*"),
+                entry.isAscii());
+        }
+    }
+
+    /**
+     * Tests that the statistics worked out as an event is encoded match those
+     * of its bytes, whatever the pieces of a body are, and that they choose
+     * the right transfer encoding.
+     */
+    public void testStatistics()
+    {
+        final RenderedBuffer buffer = new RenderedBuffer(3);
+        final Random random = new Random(42);
+        final char[] alphabet = "ab\n\u00e9\u4e2d".toCharArray();
+        for (int test = 0; test < 1000; test++)
+        {
+            final BodyStats fromEntries = new BodyStats();
+            final BodyStats fromBytes = new BodyStats();
+            for (int index = 0; index < 3; index++)
+            {
+                final StringBuilder text = new StringBuilder();
+                final int length = random.nextInt(20);
+                for (int character = 0; character < length; character++)
+                {
+                    text.append(alphabet[random.nextInt(alphabet.length)]);
+                }
+                buffer.add(text, 0, 0, false, null);
+                buffer.get(buffer.length() - 1).addTo(fromEntries);
+                final byte[] bytes = text.toString().getBytes(
+                    StandardCharsets.UTF_8);
+                fromBytes.add(bytes, bytes.length);
+            }
+            assertEquals(fromBytes.getNonAscii(), fromEntries.getNonAscii());
+            assertEquals(fromBytes.getLongestLine(),
+                fromEntries.getLongestLine());
+        }
+
+        final char[] line = new char[OutboundMessage.MAX_7BIT_LINE + 1];
+        Arrays.fill(line, 'x');
+        assertEquals("7bit", new OutboundMessage(null, null,
+            "short\nlines\n").getEncoding());
+        assertEquals("quoted-printable", new OutboundMessage(null, null,
+            new String(line)).getEncoding());
+        assertEquals("quoted-printable", new OutboundMessage(null, null,
+            "mostly ascii \u00e9").getEncoding());
+        assertEquals("base64", new OutboundMessage(null, null,
+            "\u4e2d\u6587").getEncoding());
+    }
+
+    /**
+     * Tests that a full buffer replaces its oldest event, and keeps count of
+     * the bytes it holds.
+     */
+    public void testCycle()
+    {
+        final RenderedBuffer buffer = new RenderedBuffer(3);
+        for (int index = 0; index < 5; index++)
+        {
+            buffer.add("event " + index, index, index, false, null);
+        }
+        assertEquals(3, buffer.length());
+        assertEquals(21, buffer.getBytes());
+        for (int index = 0; index < 3; index++)
+        {
+            assertEquals("oldest first", index + 2,
+                buffer.get(index).getTimestamp());
+        }
+
+        buffer.resize(2);
+        assertEquals("resize keeps the most recent", 3,
+            buffer.get(0).getTimestamp());
+        assertEquals(14, buffer.getBytes());
+
+        buffer.clear();
+        assertEquals(0, buffer.length());
+        assertEquals(0, buffer.getBytes());
+    }
+
+    /**
+     * Tests that the array grown for a huge event is let go once the buffer is
+     * cleared.
+     */
+    public void testRelease()
+    {
+        final RenderedBuffer buffer = new RenderedBuffer(1);
+        final char[] huge = new char[RenderedBuffer.RETAINED_ENTRY_BYTES * 2];
+        Arrays.fill(huge, 'x');
+        buffer.add(new String(huge), 0, 0, false, null);
+        buffer.clear();
+        buffer.add("small", 0, 0, false, null);
+        assertTrue("huge array should have been released",
+            buffer.get(0).getData().length <=
+                RenderedBuffer.RETAINED_ENTRY_BYTES);
+    }
+}
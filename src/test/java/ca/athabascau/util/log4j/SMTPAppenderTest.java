@@ -1,15 +1,23 @@
 package ca.athabascau.util.log4j;
 
+import ca.athabascau.util.log4j.xml.FilterType;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
 import org.jvnet.mock_javamail.Mailbox;
 
 import javax.mail.*;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by IntelliJ IDEA.
@@ -24,6 +32,12 @@ public class SMTPAppenderTest extends TestCase
     private static final Logger logger = Logger.getLogger(
         SMTPAppender.class.getName());
     private Session session;
+    /**
+     * The appenders attached by the current test, and the temporary files it
+     * created, which are closed and deleted when it ends.
+     */
+    private final List<SMTPAppender> attached = new ArrayList<SMTPAppender>();
+    private final List<File> temporary = new ArrayList<File>();
 
     protected void setUp() throws Exception
     {
@@ -282,6 +296,523 @@ public class SMTPAppenderTest extends TestCase
         return false;
     }
 
+    /**
+     * Tests that an asynchronous appender delivers from its sender thread, and
+     * sends what is queued when it is closed.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testAsync()
+        throws IOException, MessagingException, InterruptedException
+    {
+        final SMTPAppender appender = createAppender("async");
+        appender.setAsync(true);
+        final Logger asyncLogger = attach(appender);
+        asyncLogger.error("Sent by the sender thread");
+        for (int index = 0; index < 50 &&
+            Mailbox.get("async@example.com").isEmpty(); index++)
+        {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue("async message not found when it should have " +
+            "been", checkMail("(?s)(?i).*Sent by the sender thread.*",
+            "async"));
+    }
+
+    /**
+     * Tests that the buffers triggered within the digest window are sent as
+     * one email, with a section for each.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testDigest()
+        throws IOException, MessagingException, InterruptedException
+    {
+        final SMTPAppender appender = createAppender("digest");
+        appender.setDigestWindow(300);
+        final Logger digestLogger = attach(appender);
+        digestLogger.error("First digest section");
+        digestLogger.error("Second digest section");
+        digestLogger.error("Third digest section");
+        Assert.assertTrue("digest sent before its window closed",
+            Mailbox.get("digest@example.com").isEmpty());
+        for (int index = 0; index < 50 &&
+            Mailbox.get("digest@example.com").isEmpty(); index++)
+        {
+            Thread.sleep(100);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals("sections should be in one email", 1,
+            Mailbox.get("digest@example.com").size());
+        Assert.assertTrue("digest should contain every section in order",
+            checkMail("(?s).*First digest section.*-{80}.*" +
+                "Second digest section.*-{80}.*Third digest section.*",
+                "digest"));
+    }
+
+    /**
+     * Tests that a buffer holding events for different filters is split, so
+     * that each event is sent only to the recipients of its own filter.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testRouting() throws IOException, MessagingException
+    {
+        final SMTPAppender appender = createAppender("routing");
+        appender.setBufferSize(3);
+        appender.setFilterConfig("/filter-config.xml");
+        final Logger routingLogger = attach(appender);
+        routingLogger.error("This error will go to you@example.com");
+        routingLogger.error("Routing default event");
+        routingLogger.error("Test multiple recipients when routing");
+
+        Assert.assertEquals("default route should get one email", 1,
+            Mailbox.get("routing@example.com").size());
+        Assert.assertTrue("default route should only get its own event",
+            checkMail("(?s)(?!.*you@example.com)(?!.*multiple)" +
+                ".*Routing default event.*", "routing"));
+        Assert.assertEquals("each filter should get its own email", 2,
+            Mailbox.get("you@example.com").size());
+        Assert.assertTrue("filter message should prefix its event",
+            checkMail("(?s)(?!.*Routing default)" +
+                ".*you and them.*Test multiple recipients.*", "them"));
+        Assert.assertTrue("filter message should prefix its event",
+            checkMail("(?s)(?!.*Routing default)" +
+                ".*simulate lots of config items.*" +
+                "This error will go to you@example.com.*", "you"));
+    }
+
+    /**
+     * Measures what an event dropped by flood protection costs, which should
+     * be no more than the flood check, as nothing about the event is captured
+     * or formatted; namely less than 20 microseconds, even with location
+     * info.  Note, when running from within an IDE, this test may fail.
+     *
+     * @throws MessagingException
+     */
+    public void testSuppressedPerf() throws MessagingException
+    {
+        final SMTPAppender appender = createAppender("suppressed");
+        appender.setLocationInfo(true);
+        appender.setFloodFrequency(1);
+        appender.setFloodFrequencyMilliseconds(3600000);
+        final Logger suppressedLogger = attach(appender);
+        SMTPAppender.setFloodProtectionDisabled(false);
+        final Exception exception = new IllegalStateException("flooding");
+        // the first is sent, and starts the flood
+        suppressedLogger.error("Suppressed", exception);
+        final int events = 100000;
+        for (int index = 0; index < events; index++)
+        {   // warm up
+            suppressedLogger.error("Suppressed", exception);
+        }
+        final long before = System.nanoTime();
+        for (int index = 0; index < events; index++)
+        {
+            suppressedLogger.error("Suppressed", exception);
+        }
+        final long nanosPerEvent = (System.nanoTime() - before) / events;
+        System.out.println("suppressed event took " + nanosPerEvent +
+            "ns");
+        assertTrue("performance fails expected <20000ns per suppressed " +
+            "event: " + nanosPerEvent, nanosPerEvent < 20000);
+        assertEquals("only the first event and the flood notification " +
+            "should have been sent", 2,
+            Mailbox.get("suppressed@example.com").size());
+    }
+
+    /**
+     * Tests that reaching the byte limit sends the buffer, or drops its oldest
+     * events, depending on the overflow policy.
+     *
+     * @throws MessagingException
+     */
+    public void testBufferMaxBytes() throws MessagingException
+    {
+        for (final String overflow : new String[]{
+            SMTPAppender.BUFFER_OVERFLOW_FLUSH,
+            SMTPAppender.BUFFER_OVERFLOW_EVICT})
+        {
+            final SMTPAppender appender = createAppender(overflow);
+            appender.setBufferSize(100);
+            appender.setBufferMaxBytes(200);
+            appender.setBufferOverflow(overflow);
+            final Logger bytesLogger = attach(appender);
+            for (int index = 0; index < 5; index++)
+            {   // 60 bytes once formatted
+                bytesLogger.error("Sixty bytes once it is formatted by " +
+                    "the test layout");
+            }
+            if (SMTPAppender.BUFFER_OVERFLOW_FLUSH.equals(overflow))
+            {
+                assertEquals("the first 4 events should have been sent", 1,
+                    Mailbox.get(overflow + "@example.com").size());
+                assertEquals(60, appender.getBufferBytes());
+            }
+            else
+            {
+                assertTrue("nothing should have been sent",
+                    Mailbox.get(overflow + "@example.com").isEmpty());
+                assertEquals("only the newest 3 events should be kept",
+                    180, appender.getBufferBytes());
+            }
+        }
+    }
+
+    /**
+     * Tests that a buffer which does not fill up is still sent once its
+     * oldest event has waited the maximum latency.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testBufferMaxLatency()
+        throws IOException, MessagingException, InterruptedException
+    {
+        final SMTPAppender appender = createAppender("latency");
+        appender.setBufferSize(100);
+        appender.setBufferMaxLatency(300);
+        final Logger latencyLogger = attach(appender);
+        latencyLogger.error("Waiting for the latency flush");
+        latencyLogger.error("Also waiting for the latency flush");
+        assertTrue("buffer sent before the latency expired",
+            Mailbox.get("latency@example.com").isEmpty());
+        for (int index = 0; index < 50 &&
+            Mailbox.get("latency@example.com").isEmpty(); index++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals("both events should be in one email", 1,
+            Mailbox.get("latency@example.com").size());
+        assertTrue("latency flush message not found when it should have " +
+            "been", checkMail("(?s).*Waiting for the latency flush.*" +
+            "Also waiting for the latency flush.*", "latency"));
+        assertEquals(0, appender.getBufferBytes());
+    }
+
+    /**
+     * Tests that an exception repeated in a buffer appears once, with how
+     * many times it occurred, and that a different exception is kept.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testCollapseRepeats() throws IOException, MessagingException
+    {
+        final SMTPAppender appender = createAppender("collapse");
+        appender.setBufferSize(6);
+        appender.setCollapseRepeats(true);
+        final Logger collapseLogger = attach(appender);
+        for (int index = 0; index < 5; index++)
+        {
+            collapseLogger.error("Storm " + index,
+                new IllegalStateException("storm " + index));
+        }
+        collapseLogger.error("Different", new IllegalArgumentException());
+
+        assertEquals(1, Mailbox.get("collapse@example.com").size());
+        assertTrue("repeats should be collapsed into the first",
+            checkMail("(?s)(?!.*Storm 1).*Storm 0.*IllegalStateException" +
+                ".*\\[5 occurrences, first at .*, last at .*\\].*" +
+                "Different.*IllegalArgumentException.*", "collapse"));
+    }
+
+    /**
+     * Tests that a new error is sent straight away, while one seen before
+     * waits for the summary of known errors.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testNovelty()
+        throws IOException, MessagingException, InterruptedException
+    {
+        final File store = createTempFile("novelty", ".store");
+        final SMTPAppender appender = createAppender("novelty");
+        appender.setBufferSize(100);
+        appender.setNoveltyStore(store.getPath());
+        appender.setNoveltySummaryInterval(300);
+        final Logger noveltyLogger = attach(appender);
+        for (int index = 0; index < 3; index++)
+        {
+            noveltyLogger.error("Novel " + index,
+                new IllegalStateException());
+        }
+        // delivered by the sender thread
+        for (int index = 0; index < 50 &&
+            Mailbox.get("novelty@example.com").isEmpty(); index++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals("new error should be sent straight away", 1,
+            Mailbox.get("novelty@example.com").size());
+        assertEquals("novelty test",
+            Mailbox.get("novelty@example.com").get(0).getSubject());
+
+        for (int index = 0; index < 50 &&
+            Mailbox.get("novelty@example.com").size() < 2; index++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals("known errors should be summarized", 2,
+            Mailbox.get("novelty@example.com").size());
+        assertEquals("novelty test (known errors)",
+            Mailbox.get("novelty@example.com").get(1).getSubject());
+        assertTrue("known errors should be collapsed", checkMail(
+            "(?s)(?!.*Novel 0)(?!.*Novel 2).*Novel 1.*" +
+                "\\[2 occurrences.*", "novelty"));
+    }
+
+    /**
+     * Tests that a body which is mostly not ASCII is sent as base64, and
+     * arrives intact.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testEncoding() throws IOException, MessagingException
+    {
+        final SMTPAppender appender = createAppender("encoding");
+        final Logger encodingLogger = attach(appender);
+        final String text = "\u65e5\u672c\u8a9e\u306e\u30a8\u30e9" +
+            "\u30fc\u30e1\u30c3\u30bb\u30fc\u30b8";
+        encodingLogger.error(text);
+
+        final Message message = Mailbox.get("encoding@example.com").get(0);
+        final BodyPart part =
+            ((Multipart) message.getContent()).getBodyPart(0);
+        assertEquals("base64",
+            part.getHeader("Content-Transfer-Encoding")[0]);
+        assertTrue(part.getContentType().contains("UTF-8"));
+        assertEquals("ERROR | " + text + "\n", part.getContent());
+    }
+
+    /**
+     * Tests that a body over the threshold is attached, compressed, with a
+     * summary of its distinct events inline.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testAttachment() throws IOException, MessagingException
+    {
+        final SMTPAppender appender = createAppender("attachment");
+        appender.setBufferSize(20);
+        appender.setAttachmentThreshold(10000);
+        final Logger attachmentLogger = attach(appender);
+        for (int index = 0; index < 19; index++)
+        {
+            attachmentLogger.error("Repeated " + index,
+                new IllegalStateException("repeated"));
+        }
+        attachmentLogger.error("Different");
+
+        final Message message =
+            Mailbox.get("attachment@example.com").get(0);
+        final Multipart multipart = (Multipart) message.getContent();
+        assertEquals(2, multipart.getCount());
+        final String summary = (String) multipart.getBodyPart(0)
+            .getContent();
+        assertTrue(summary, summary.matches("(?s)20 events, .*" +
+            "2 distinct events.*\\[19 occurrences\\]\nERROR \\| " +
+            "Repeated 0\n.*Different\n.*"));
+        assertFalse("only the first lines", summary.contains("Repeated 1"));
+
+        final BodyPart attachment = multipart.getBodyPart(1);
+        assertEquals("log.txt.gz", attachment.getFileName());
+        final String log = IOUtils.toString(new GZIPInputStream(
+            attachment.getInputStream()), "UTF-8");
+        assertTrue(log.length() > 10000);
+        assertTrue("all events should be attached", log.matches(
+            "(?s)ERROR \\| Repeated 0\n.*Repeated 18\n.*Different\n"));
+    }
+
+    /**
+     * Tests that spooled emails are delivered by the spool, addressed as their
+     * filters would address them.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testSpool()
+        throws IOException, MessagingException, InterruptedException
+    {
+        final File directory = createTempFile("spool", "");
+        final SMTPAppender appender = createAppender("spool");
+        appender.setFilterConfig("/filter-config.xml");
+        appender.setSpoolDirectory(directory.getPath());
+        appender.setSpoolSyncInterval(50);
+        final Logger spoolLogger = attach(appender);
+        spoolLogger.error("Spooled default event");
+        spoolLogger.error("This error will go to you@example.com");
+        for (int index = 0; index < 50 &&
+            Mailbox.get("you@example.com").isEmpty(); index++)
+        {
+            Thread.sleep(100);
+        }
+        assertTrue("spooled email should be delivered", checkMail(
+            "(?s).*Spooled default event.*", "spool"));
+        assertEquals("spool test",
+            Mailbox.get("spool@example.com").get(0).getSubject());
+        assertTrue("filter should address spooled email", checkMail(
+            "(?s)(?!.*Spooled default).*simulate lots of config items.*",
+            "you"));
+    }
+
+    /**
+     * Tests that an event whose filter is not logged is dropped before it is
+     * formatted, while one which is logged is formatted once, by a rendered
+     * buffer.
+     */
+    public void testNotLoggedNotFormatted()
+    {
+        final int[] formattedEvents = new int[1];
+        final SMTPAppender appender = new SMTPAppender()
+        {
+            protected void formatEvent(final LoggingEvent event,
+                final StringBuilder sbuf)
+            {
+                formattedEvents[0]++;
+                super.formatEvent(event, sbuf);
+            }
+        };
+        configure(appender, "unformatted");
+        appender.setBufferSize(10);
+        appender.setBufferMode(SMTPAppender.BUFFER_MODE_RENDERED);
+        appender.setFilterConfig("/filter-config.xml");
+        final Logger unformattedLogger = attach(appender);
+        unformattedLogger.error("Should not be logged to you@example.com");
+        assertEquals("not logged, so not formatted", 0, formattedEvents[0]);
+        unformattedLogger.error("Logged");
+        assertEquals(1, formattedEvents[0]);
+    }
+
+    /**
+     * Tests that a filter without recipients shares the digest of the
+     * appender's own recipients, as its emails go to them.
+     */
+    public void testDigestKeyWithoutRecipients()
+    {
+        final SMTPAppender appender = createAppender("nobody");
+        assertEquals(appender.getDigestKey(new OutboundMessage(null,
+            "subject", "body")), appender.getDigestKey(new OutboundMessage(
+            new FilterType(), "subject", "body")));
+    }
+
+    /**
+     * Tests that subclasses can still add events to the cyclic buffer, and get
+     * them back, and that the body lays them out, moving them to the events
+     * to be sent.
+     */
+    public void testLegacyBuffer()
+    {
+        final SMTPAppender appender = createAppender("legacy");
+        appender.setBufferSize(4);
+        final LoggingEvent event = new LoggingEvent(
+            SMTPAppender.class.getName(), logger, Level.ERROR,
+            "added by a subclass", null);
+        appender.cb.add(event);
+        assertEquals(1, appender.cb.length());
+        assertEquals(4, appender.cb.getMaxSize());
+        assertSame(event, appender.cb.get(0));
+        assertEquals("ERROR | added by a subclass\n", appender.formatBody());
+        assertEquals("moved to the events to be sent", 0,
+            appender.cb.length());
+        assertEquals("ERROR | added by a subclass\n".length(),
+            appender.getBufferBytes());
+    }
+
+    /**
+     * Tests that a rendered buffer keeps each event formatted when appended,
+     * and sends them as they were formatted.
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void testRenderedBuffer() throws IOException, MessagingException
+    {
+        final SMTPAppender appender = createAppender("rendered");
+        appender.setBufferSize(2);
+        appender.setBufferMode(SMTPAppender.BUFFER_MODE_RENDERED);
+        final Logger renderedLogger = attach(appender);
+        renderedLogger.error("Formatted when appended");
+        assertEquals("ERROR | Formatted when appended\n".length(),
+            appender.getBufferBytes());
+        assertEquals("the event itself is not kept", 0, appender.cb.length());
+        renderedLogger.error("Sent as formatted");
+        assertEquals(0, appender.getBufferBytes());
+        assertTrue("rendered events not found when they should have been",
+            checkMail("(?s).*Formatted when appended.*Sent as formatted.*",
+                "rendered"));
+    }
+
+    /**
+     * @param username the user name of the recipient at example.com
+     *
+     * @return an appender sending each error to the given user, which has not
+     *         been activated.
+     */
+    static SMTPAppender createAppender(final String username)
+    {
+        return configure(new SMTPAppender(), username);
+    }
+
+    /**
+     * @param appender the appender, a subclass for the test
+     * @param username the user name of the recipient at example.com
+     *
+     * @return the appender, set up as by {@link #createAppender(String)}.
+     */
+    private static SMTPAppender configure(final SMTPAppender appender,
+        final String username)
+    {
+        appender.setName(username);
+        appender.setLayout(new PatternLayout("%5p | %m%n"));
+        appender.setThreshold(Level.ERROR);
+        appender.setBufferSize(1);
+        appender.setSMTPHost("localhost");
+        appender.setFrom("primary@example.com");
+        appender.setTo(username + "@example.com");
+        appender.setSubject(username + " test");
+        return appender;
+    }
+
+    /**
+     * Activates the appender, and makes it the only appender of the logger
+     * with its name, until the test ends.
+     *
+     * @param appender an appender from {@link #createAppender(String)}
+     *
+     * @return the logger to log the test's errors to.
+     */
+    private Logger attach(final SMTPAppender appender)
+    {
+        appender.activateOptions();
+        final Logger appenderLogger = Logger.getLogger(appender.getName());
+        appenderLogger.setAdditivity(false);
+        appenderLogger.addAppender(appender);
+        attached.add(appender);
+        return appenderLogger;
+    }
+
+    /**
+     * @return the name of a temporary file which does not exist yet, and is
+     *         deleted, with anything in it, when the test ends.
+     *
+     * @throws IOException
+     */
+    private File createTempFile(final String prefix, final String suffix)
+        throws IOException
+    {
+        final File file = File.createTempFile(prefix, suffix);
+        file.delete();
+        temporary.add(file);
+        return file;
+    }
+
     public void testLogNull()
     {
         try
@@ -297,6 +828,21 @@ public class SMTPAppenderTest extends TestCase
     protected void tearDown() throws Exception
     {
         super.tearDown();
+        SMTPAppender.setFloodProtectionDisabled(true);
+        for (final SMTPAppender appender : attached)
+        {
+            Logger.getLogger(appender.getName()).removeAppender(appender);
+            appender.close();
+        }
+        for (final File file : temporary)
+        {
+            final File[] files = file.listFiles();
+            for (int index = 0; files != null && index < files.length; index++)
+            {
+                files[index].delete();
+            }
+            file.delete();
+        }
         Mailbox.clearAll();
     }
 }
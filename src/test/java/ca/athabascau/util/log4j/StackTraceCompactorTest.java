@@ -0,0 +1,87 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+import org.apache.log4j.Layout;
+
+/**
+ * Tests that stack traces are compacted without losing the frames that
+ * matter.
+ */
+public class StackTraceCompactorTest extends TestCase
+{
+    private static final String[] TRACE = {
+        "java.lang.IllegalStateException: failed",
+        "\tat ca.athabascau.Command.execute(Command.java:10)",
+        "\tat java.base/jdk.internal.reflect.Method.invoke(Method.java:1)",
+        "\tat sun.reflect.Delegating.invoke(Delegating.java:2)",
+        "\tat org.apache.catalina.core.Chain.doFilter(Chain.java:3)",
+        "\tat ca.athabascau.Filter.doFilter(Filter.java:20)",
+        "\tat org.apache.catalina.core.Chain.doFilter(Chain.java:3)",
+        "\tat java.lang.Thread.run(Thread.java:4)",
+        "Caused by: java.lang.NullPointerException",
+        "\tat ca.athabascau.Dao.load(Dao.java:30)",
+        "\tat ca.athabascau.Command.execute(Command.java:10)",
+        "\tat java.base/jdk.internal.reflect.Method.invoke(Method.java:1)",
+        "\tat ca.athabascau.Other.call(Other.java:40)",
+        "\t... 5 more"
+    };
+
+    /**
+     * Tests that runs of frames in the folded packages, and runs already
+     * shown, become one line each, and that everything else is kept.
+     */
+    public void testFold()
+    {
+        final StackTraceCompactor compactor = new StackTraceCompactor(
+            "jdk.internal.reflect.*, sun.reflect, org.apache.catalina.*", 0);
+        assertEquals(lines(
+            "java.lang.IllegalStateException: failed",
+            "\tat ca.athabascau.Command.execute(Command.java:10)",
+            "\t... 3 frames in jdk.internal.reflect.*, sun.reflect, " +
+                "org.apache.catalina.*",
+            "\tat ca.athabascau.Filter.doFilter(Filter.java:20)",
+            "\tat org.apache.catalina.core.Chain.doFilter(Chain.java:3)",
+            "\tat java.lang.Thread.run(Thread.java:4)",
+            "Caused by: java.lang.NullPointerException",
+            "\tat ca.athabascau.Dao.load(Dao.java:30)",
+            "\t... 2 frames shown above",
+            "\tat ca.athabascau.Other.call(Other.java:40)",
+            "\t... 5 more"), compact(compactor));
+    }
+
+    /**
+     * Tests that frames beyond the maximum are counted, for each cause.
+     */
+    public void testMaxFrames()
+    {
+        final StackTraceCompactor compactor = new StackTraceCompactor(null,
+            2);
+        assertEquals(lines(
+            "java.lang.IllegalStateException: failed",
+            "\tat ca.athabascau.Command.execute(Command.java:10)",
+            "\tat java.base/jdk.internal.reflect.Method.invoke(Method.java:1)",
+            "\t... 5 frames not shown",
+            "Caused by: java.lang.NullPointerException",
+            "\tat ca.athabascau.Dao.load(Dao.java:30)",
+            "\t... 2 frames shown above",
+            "\tat ca.athabascau.Other.call(Other.java:40)",
+            "\t... 5 more"), compact(compactor));
+    }
+
+    private static String compact(final StackTraceCompactor compactor)
+    {
+        final StringBuilder sbuf = new StringBuilder();
+        compactor.append(TRACE, sbuf);
+        return sbuf.toString();
+    }
+
+    private static String lines(final String... lines)
+    {
+        final StringBuilder sbuf = new StringBuilder();
+        for (final String line : lines)
+        {
+            sbuf.append(line).append(Layout.LINE_SEP);
+        }
+        return sbuf.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Tests that a stack trace is rendered once for a throwable, and for others
+ * with exactly the same trace, but not for a different one.
+ */
+public class ThrowableRenderCacheTest extends TestCase
+{
+    private static final Logger logger = Logger.getLogger(
+        ThrowableRenderCacheTest.class);
+
+    /**
+     * Tests that a throwable logged again, or another thrown from the same
+     * place with the same message, shares the first rendering.
+     */
+    public void testHit()
+    {
+        final ThrowableRenderCache cache = new ThrowableRenderCache(10, null);
+        final Exception exception = new IllegalStateException("same");
+        final String rendering = cache.render(createEvent(exception));
+        assertTrue(rendering.startsWith(
+            "java.lang.IllegalStateException: same"));
+        assertSame("same throwable", rendering,
+            cache.render(createEvent(exception)));
+
+        String repeated = null;
+        for (int index = 0; index < 3; index++)
+        {   // thrown from the same place each time
+            final String again = cache.render(createEvent(
+                new IllegalArgumentException("repeated")));
+            if (repeated != null)
+            {
+                assertSame("same trace", repeated, again);
+            }
+            repeated = again;
+        }
+        assertEquals(2, cache.getMisses());
+        assertEquals(3, cache.getHits());
+        assertEquals(0.6, cache.getHitRate(), 0.001);
+    }
+
+    /**
+     * Tests that a different message, or cause, is rendered on its own.
+     */
+    public void testMiss()
+    {
+        final ThrowableRenderCache cache = new ThrowableRenderCache(10, null);
+        for (int index = 0; index < 3; index++)
+        {
+            final String rendering = cache.render(createEvent(
+                new IllegalStateException("message " + index,
+                    index == 2 ? new NullPointerException() : null)));
+            assertTrue(rendering.contains("message " + index));
+            assertEquals(index == 2, rendering.contains("Caused by"));
+        }
+        assertEquals(0, cache.getHits());
+        assertNull(cache.render(createEvent(null)));
+    }
+
+    private static LoggingEvent createEvent(final Throwable throwable)
+    {
+        return new LoggingEvent(ThrowableRenderCacheTest.class.getName(),
+            logger, Level.ERROR, "failed", throwable);
+    }
+}
@@ -0,0 +1,135 @@
+package ca.athabascau.util.log4j;
+
+import junit.framework.TestCase;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Properties;
+
+/**
+ * Tests that SMTP connections are reused, closed when idle, and replaced when
+ * they have gone bad.
+ */
+public class TransportPoolTest extends TestCase
+{
+    private Session session;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        CountingTransport.connects = 0;
+        CountingTransport.sent = 0;
+        CountingTransport.failNext = false;
+        session = Session.getInstance(new Properties());
+        session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp",
+            CountingTransport.class.getName(), "test", null));
+    }
+
+    public void testReuse() throws MessagingException
+    {
+        final TransportPool pool = new TransportPool(session, 1, 60000);
+        try
+        {
+            for (int index = 0; index < 5; index++)
+            {
+                pool.send(createMessage());
+            }
+            assertEquals("connection should have been reused", 1,
+                CountingTransport.connects);
+            assertEquals(5, CountingTransport.sent);
+            assertEquals(1, pool.getOpenConnections());
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    public void testIdle() throws MessagingException, InterruptedException
+    {
+        final TransportPool pool = new TransportPool(session, 1, 50);
+        try
+        {
+            pool.send(createMessage());
+            Thread.sleep(100);
+            pool.closeIdle();
+            assertEquals("idle connection should have been closed", 0,
+                pool.getOpenConnections());
+            pool.send(createMessage());
+            assertEquals(2, CountingTransport.connects);
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    public void testReconnect() throws MessagingException
+    {
+        final TransportPool pool = new TransportPool(session, 1, 60000);
+        try
+        {
+            pool.send(createMessage());
+            CountingTransport.failNext = true;
+            pool.send(createMessage());
+            assertEquals("a failed reused connection should be replaced", 2,
+                CountingTransport.connects);
+            assertEquals(2, CountingTransport.sent);
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    private Message createMessage() throws MessagingException
+    {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("primary@example.com"));
+        message.setRecipient(Message.RecipientType.TO,
+            new InternetAddress("you@example.com"));
+        message.setText("pooled");
+        return message;
+    }
+
+    /**
+     * Counts connections and messages, and can be told to drop the connection
+     * the next time it sends.
+     */
+    public static class CountingTransport extends Transport
+    {
+        static int connects;
+        static int sent;
+        static boolean failNext;
+
+        public CountingTransport(final Session session, final URLName urlname)
+        {
+            super(session, urlname);
+        }
+
+        protected boolean protocolConnect(final String host, final int port,
+            final String user, final String password)
+        {
+            connects++;
+            return true;
+        }
+
+        public void sendMessage(final Message message,
+            final Address[] addresses) throws MessagingException
+        {
+            if (failNext)
+            {
+                failNext = false;
+                throw new MessagingException("connection reset");
+            }
+            sent++;
+        }
+    }
+}
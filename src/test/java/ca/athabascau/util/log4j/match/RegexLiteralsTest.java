@@ -0,0 +1,62 @@
+package ca.athabascau.util.log4j.match;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests the extraction of required literals from regular expressions, and the
+ * automaton which searches for them.
+ */
+public class RegexLiteralsTest extends TestCase
+{
+    public void testContains()
+    {
+        assertEquals(Arrays.asList("student id - null",
+            "an unknown error occurred", "nullpointerexception"),
+            RegexLiterals.extract("(?s)(?i).*student id - null.*an unknown " +
+                "error occurred.*NullPointerException.*"));
+    }
+
+    public void testEscapesAndQuantifiers()
+    {
+        assertEquals(Arrays.asList("you@example.com"),
+            RegexLiterals.extract(".*you@example\\.com.*"));
+        assertEquals("optional characters are not required",
+            Arrays.asList("error", "occurre"),
+            RegexLiterals.extract("errors?\\s+occurred?"));
+        assertEquals(Arrays.asList("a.b(c)"),
+            RegexLiterals.extract("\\Qa.B(c)\\E"));
+        assertEquals("groups and classes end a literal",
+            Arrays.asList("foo", "bar", "baz"),
+            RegexLiterals.extract("foo(x|y)*bar[a-z]+baz"));
+    }
+
+    public void testNothingRequired()
+    {
+        assertEquals(Collections.emptyList(),
+            RegexLiterals.extract("(?s).*first.*|.*second.*"));
+        assertEquals(Collections.emptyList(),
+            RegexLiterals.extract("(?x) spaced out # comment"));
+        assertEquals(Collections.emptyList(),
+            RegexLiterals.extract("(abc)\\1def"));
+        assertEquals("short literals are not worth searching for",
+            Collections.emptyList(), RegexLiterals.extract(".*ab.*"));
+    }
+
+    public void testAutomaton()
+    {
+        final AhoCorasick automaton = new AhoCorasick(Arrays.asList("he",
+            "she", "his", "hers", "nullpointerexception"));
+        final boolean[] found = new boolean[automaton.getLiteralCount()];
+        assertEquals(3, automaton.scan("uSHErs", found));
+        assertTrue(Arrays.equals(new boolean[]{true, true, false, true, false},
+            found));
+
+        Arrays.fill(found, false);
+        assertEquals(1, automaton.scan(
+            "Caused by: java.lang.NullPointerException", found));
+        assertTrue(found[4]);
+    }
+}
@@ -0,0 +1,134 @@
+package ca.athabascau.util.log4j.xml;
+
+import junit.framework.TestCase;
+import org.apache.commons.lang3.text.StrSubstitutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the filter index finds the same first match as running every
+ * filter in order, and shows how it scales with the number of filters.
+ */
+public class FilterIndexTest extends TestCase
+{
+    private static final String STACK_TRACE;
+
+    static
+    {
+        final StringBuilder trace = new StringBuilder(
+            "ERROR | banner.web | 217 | ErrorCommand logging: student id - " +
+                "null\nca.montage.banner.exception.BannerException: an " +
+                "unknown error occurred\n");
+        for (int index = 0; index < 60; index++)
+        {
+            trace.append("\tat org.apache.catalina.core.StandardValveContext")
+                .append(".invokeNext(StandardValveContext.java:")
+                .append(index).append(")\n");
+        }
+        trace.append("Caused by: java.lang.NullPointerException\n");
+        STACK_TRACE = trace.toString();
+    }
+
+    public void testFirstMatchWins()
+    {
+        final List<FilterType> filters = new ArrayList<FilterType>();
+        filters.add(filter("(?s)(?i).*no such thing.*"));
+        filters.add(filter("(?s).*(student|teacher) id.*"));
+        filters.add(filter("(?s)(?i).*NullPointerException.*"));
+        filters.add(filter("(?s).*"));
+        final FilterIndex index = new FilterIndex(filters);
+        assertSame(filters.get(1), index.findMatch(STACK_TRACE));
+        assertSame(filters.get(2), index.findMatch("a NULLPOINTEREXCEPTION"));
+        assertSame("filters without literals must always run",
+            filters.get(3), index.findMatch("nothing in particular"));
+    }
+
+    /**
+     * The index must agree with a linear scan for every input.
+     */
+    public void testSameAsLinear()
+    {
+        final List<FilterType> filters = generate(200, new Random(42));
+        filters.add(filter("(?s)(?i).*timeout after \\d+ms.*"));
+        filters.add(filter("(?s).*Exception\\b.*"));
+        final FilterIndex index = new FilterIndex(filters);
+        final Random random = new Random(7);
+        for (int index2 = 0; index2 < 500; index2++)
+        {
+            final String entry = STACK_TRACE + "unique error " +
+                random.nextInt(300) + (random.nextBoolean() ?
+                " TIMEOUT AFTER 30ms" : "");
+            assertSame(entry, linear(filters, entry), index.findMatch(entry));
+        }
+    }
+
+    /**
+     * Prints how the cost of finding a match grows with the number of filters,
+     * for an error that matches none of them, which is the worst case.  It
+     * stops at 1000 filters, and only prints the times, as a wall clock
+     * comparison would fail now and then on a busy machine.
+     */
+    public void testScaling()
+    {
+        final Random random = new Random(1);
+        for (int size = 10; size <= 1000; size *= 10)
+        {
+            final List<FilterType> filters = generate(size, random);
+            final FilterIndex index = new FilterIndex(filters);
+            final int iterations = Math.max(3, 20000 / size);
+
+            long before = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                assertNull(index.findMatch(STACK_TRACE));
+            }
+            final long indexed = (System.nanoTime() - before) / iterations;
+
+            before = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                assertNull(linear(filters, STACK_TRACE));
+            }
+            final long linear = (System.nanoTime() - before) / iterations;
+
+            System.out.println(size + " filters: indexed " + indexed / 1000 +
+                "us, linear " + linear / 1000 + "us per unmatched error");
+        }
+    }
+
+    private static FilterType linear(final List<FilterType> filters,
+        final String entry)
+    {
+        for (final FilterType filter : filters)
+        {
+            if (filter.match(entry))
+            {
+                return filter;
+            }
+        }
+        return null;
+    }
+
+    private static List<FilterType> generate(final int size,
+        final Random random)
+    {
+        final List<FilterType> filters = new ArrayList<FilterType>();
+        for (int index = 0; index < size; index++)
+        {
+            filters.add(filter("(?s)(?i).*unique error " + index + "\\b.*" +
+                (random.nextBoolean() ? "bug " + random.nextInt() + ".*" : "")));
+        }
+        return filters;
+    }
+
+    private static FilterType filter(final String regex)
+    {
+        final FilterType filter = new FilterType();
+        filter.setRegex(regex);
+        filter.setTo("you@example.com");
+        filter.compile(new StrSubstitutor());
+        return filter;
+    }
+}
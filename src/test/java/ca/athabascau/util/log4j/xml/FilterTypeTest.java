@@ -0,0 +1,162 @@
+package ca.athabascau.util.log4j.xml;
+
+import junit.framework.TestCase;
+import org.apache.commons.lang3.text.StrSubstitutor;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that filters compile their regex once, and match according to their
+ * mode.
+ */
+public class FilterTypeTest extends TestCase
+{
+    public void testMatches()
+    {
+        final FilterType filter = compile("(?s)(?i).*known error.*", null);
+        assertTrue(filter.match("A KNOWN ERROR\n\tat somewhere"));
+        assertFalse(filter.match("an unknown problem"));
+        assertNotNull("pattern should be compiled", filter.getPattern());
+    }
+
+    public void testFind()
+    {
+        final FilterType filter = compile("known error", FilterType.MODE_FIND);
+        assertTrue(filter.match("a known error\n\tat somewhere"));
+        assertFalse("matches mode should require the whole entry",
+            compile("known error", FilterType.MODE_MATCHES).match(
+                "a known error"));
+    }
+
+    public void testInvalidRegex()
+    {
+        try
+        {
+            compile("(?s).*unclosed(.*", null);
+            fail("invalid regex should have been rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testInvalidMode()
+    {
+        try
+        {
+            compile(".*", "sometimes");
+            fail("invalid mode should have been rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testLiteralShapes()
+    {
+        assertTrue(compile("(?s)(?i).*known error.*", null).isLiteralSearch());
+        assertTrue(compile("(?is).*a.*b\\.c.*\\Q(d)\\E.*", null)
+            .isLiteralSearch());
+        assertTrue(compile("known error", FilterType.MODE_FIND)
+            .isLiteralSearch());
+        assertFalse("anchored at the start",
+            compile("(?s)(?i)known error.*", null).isLiteralSearch());
+        assertFalse(". does not cross lines without (?s)",
+            compile("(?i).*known error.*", null).isLiteralSearch());
+        assertFalse(compile("(?s).*error \\d+.*", null).isLiteralSearch());
+        assertFalse(compile("(?s).*one.*|.*two.*", null).isLiteralSearch());
+    }
+
+    /**
+     * The literal search must give the same answer as the regex, for both
+     * ASCII and unicode case folding.
+     */
+    public void testLiteralSameAsRegex()
+    {
+        final String[] regexes = {"(?s)(?i).*ab.*", "(?s)(?i).*ab.*ba.*",
+            "(?s).*aB.*", "(?s)(?iu).*\u00e9a.*k.*", "(?s)(?i).*\u00e9a.*k.*",
+            "(?s)(?i).*.*a\\..*", "(?s)(?i).*", "(?i)ab"};
+        final char[] alphabet = {'a', 'A', 'b', 'B', '.', '\n', '\u00e9',
+            '\u00c9', 'k', 'K', '\u212a', 's', '\u017f'};
+        final Random random = new Random(3);
+        for (final String regex : regexes)
+        {
+            for (final String mode : new String[]{null, FilterType.MODE_FIND})
+            {
+                final FilterType filter = compile(regex, mode);
+                assertTrue(regex, filter.isLiteralSearch() ||
+                    mode == null && regex.startsWith("(?i)"));
+                final Pattern pattern = Pattern.compile(regex);
+                for (int index = 0; index < 2000; index++)
+                {
+                    final StringBuilder entry = new StringBuilder();
+                    final int length = random.nextInt(12);
+                    for (int i = 0; i < length; i++)
+                    {
+                        entry.append(alphabet[random.nextInt(alphabet.length)]);
+                    }
+                    final Matcher matcher = pattern.matcher(entry);
+                    assertEquals(regex + " " + mode + " [" + entry + "]",
+                        mode == null ? matcher.matches() : matcher.find(),
+                        filter.match(entry.toString()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the literal search with the regex it replaces, on a stack trace
+     * of typical size, where the regex has to backtrack the furthest.
+     */
+    public void testLiteralPerf()
+    {
+        final StringBuilder trace = new StringBuilder(
+            "ErrorCommand logging: student id - null\n");
+        for (int index = 0; index < 150; index++)
+        {
+            trace.append("\tat org.apache.catalina.core.StandardPipeline")
+                .append(".invoke(StandardPipeline.java:").append(index)
+                .append(")\n");
+        }
+        trace.append("Caused by: java.lang.NullPointerException\n");
+        final String entry = trace.toString();
+        final String regex = "(?s)(?i).*student id - null.*an unknown error " +
+            "occurred.*NullPointerException.*";
+        final FilterType literal = compile(regex, null);
+        assertTrue(literal.isLiteralSearch());
+        final Pattern pattern = Pattern.compile(regex);
+
+        final int iterations = 2000;
+        long before = System.nanoTime();
+        for (int index = 0; index < iterations; index++)
+        {
+            assertFalse(pattern.matcher(entry).matches());
+        }
+        final long regexTime = (System.nanoTime() - before) / iterations;
+
+        before = System.nanoTime();
+        for (int index = 0; index < iterations; index++)
+        {
+            assertFalse(literal.match(entry));
+        }
+        final long literalTime = (System.nanoTime() - before) / iterations;
+
+        System.out.println(entry.length() + " char stack trace: regex " +
+            regexTime / 1000 + "us, literal search " + literalTime / 1000 +
+            "us per match");
+        assertTrue("literal search should be faster than the regex",
+            literalTime < regexTime);
+    }
+
+    private static FilterType compile(final String regex, final String mode)
+    {
+        final FilterType filter = new FilterType();
+        filter.setRegex(regex);
+        filter.setMode(mode);
+        filter.setTo("you@example.com");
+        filter.compile(new StrSubstitutor());
+        return filter;
+    }
+}